@@ -0,0 +1,63 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>KeyBenchmark</code> is a concrete class that measures RSA key-pair generation
+ * by <code>KeyUtils.generate</code> and certificate signing by
+ * <code>CertificateGenerator.generate</code> across key sizes. The Certificate Authority
+ * and the certified client use keys of the same size.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see PGPBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyBenchmark {
+
+    @Param({"1024", "2048", "3072", "4096"})
+    public int keySize;
+
+    private KeyPair authority;
+    private KeyPair client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        authority = generateKeyPair();
+        client = generateKeyPair();
+    }
+
+    @Benchmark
+    public KeyPair generateKeyPair() throws Throwable {
+        return (KeyPair) Subjects.GENERATE_KEY_PAIR.invoke("RSA", keySize);
+    }
+
+    @Benchmark
+    public X509Certificate generateCertificate() throws Throwable {
+        return (X509Certificate) Subjects.GENERATE_CERTIFICATE.invoke("benchmark", client.getPublic(),
+                authority.getPrivate());
+    }
+}
@@ -0,0 +1,77 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * <code>PGPBenchmark</code> is a concrete class that measures
+ * <code>PGPUtils.PGPEncode</code> and <code>PGPUtils.PGPDecode</code> across payload
+ * sizes and kinds of content. Payloads are Base64 encoded before they are wrapped in a
+ * <code>Message</code>, as an image is by the dispatcher, so the sizes are of the image
+ * and not of the encoded message.
+ * The PGP framing assumes 1024-bit RSA keys, so the key size is not a parameter here.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see KeyBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class PGPBenchmark {
+
+    private static final int KEY_SIZE = 1024;
+
+    @Param({"1024", "65536", "1048576", "16777216", "67108864"})
+    public int payloadSize;
+
+    @Param({"RANDOM", "PNG", "TEXT"})
+    public Payloads.Content content;
+
+    private KeyPair sender;
+    private KeyPair receiver;
+    private Logger logger;
+    private Object message;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        sender = (KeyPair) Subjects.GENERATE_KEY_PAIR.invoke("RSA", KEY_SIZE);
+        receiver = (KeyPair) Subjects.GENERATE_KEY_PAIR.invoke("RSA", KEY_SIZE);
+        logger = Payloads.silentLogger();
+        String image = Base64.getEncoder().encodeToString(Payloads.generate(content, payloadSize));
+        message = Subjects.NEW_MESSAGE.invoke(image, "benchmark");
+        encoded = encode();
+    }
+
+    @Benchmark
+    public byte[] encode() throws Throwable {
+        return (byte[]) Subjects.PGP_ENCODE.invoke(message, sender.getPrivate(), receiver.getPublic(), logger);
+    }
+
+    @Benchmark
+    public Object decode() throws Throwable {
+        return Subjects.PGP_DECODE.invoke(encoded, receiver.getPrivate(), sender.getPublic(), logger);
+    }
+}
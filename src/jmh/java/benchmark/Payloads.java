@@ -0,0 +1,109 @@
+package benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>Payloads</code> is a holder for the inputs shared by the benchmarks.
+ * Payloads are generated from a fixed seed so every run measures the same bytes.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ */
+final class Payloads {
+
+    private static final long SEED = 0x5EED_C0DEL;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_CHUNK_LENGTH = 8192;
+    private static final String[] WORDS = {
+            "pretty", "good", "privacy", "session", "key", "signature", "certificate", "authority",
+            "message", "caption", "image", "client", "server", "the", "a", "of", "and", "to"
+    };
+
+    /**
+     * Kinds of content that a payload can resemble
+     */
+    enum Content {
+        /**
+         * Uniformly random bytes, which do not compress
+         */
+        RANDOM,
+        /**
+         * A PNG signature followed by chunk headers framing high-entropy image data,
+         * which compresses about as poorly as a real PNG
+         */
+        PNG,
+        /**
+         * English-like text drawn from a small vocabulary, which compresses well
+         */
+        TEXT
+    }
+
+    /**
+     * Sole class constructor
+     */
+    private Payloads() {
+    }
+
+    /**
+     * Generates a payload
+     *
+     * @param content kind of content to generate
+     * @param size    payload size in bytes
+     * @return <code>byte[]</code>
+     */
+    static byte[] generate(Content content, int size) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        byte[] payload = new byte[size];
+        switch (content) {
+            case RANDOM:
+                fill(random, payload, 0, size);
+                break;
+            case PNG:
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                buffer.put(PNG_SIGNATURE, 0, Math.min(PNG_SIGNATURE.length, size));
+                while (buffer.remaining() >= 12) {
+                    int length = Math.min(PNG_CHUNK_LENGTH, buffer.remaining() - 12);
+                    buffer.putInt(length).put("IDAT".getBytes(StandardCharsets.US_ASCII));
+                    fill(random, payload, buffer.position(), length);
+                    buffer.position(buffer.position() + length).putInt(random.nextInt());
+                }
+                break;
+            case TEXT:
+                int position = 0;
+                while (position < size) {
+                    byte[] word = (WORDS[random.nextInt(WORDS.length)] + ' ').getBytes(StandardCharsets.US_ASCII);
+                    int length = Math.min(word.length, size - position);
+                    System.arraycopy(word, 0, payload, position, length);
+                    position += length;
+                }
+                break;
+        }
+        return payload;
+    }
+
+    private static void fill(SplittableRandom random, byte[] bytes, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = (byte) random.nextInt();
+        }
+    }
+
+    /**
+     * Returns a logger that discards everything, so that benchmarks measure
+     * the cost of building log messages but not of writing them
+     *
+     * @return <code>Logger</code>
+     */
+    static Logger silentLogger() {
+        Logger logger = Logger.getLogger("benchmark");
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.OFF);
+        return logger;
+    }
+}
@@ -0,0 +1,58 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.logging.Logger;
+
+/**
+ * <code>Subjects</code> is a holder for the methods under benchmark.
+ * JMH does not generate benchmarks in the unnamed package, and classes in a named
+ * package cannot refer to classes in the unnamed package, so the benchmarked methods are
+ * bound once through {@link MethodHandle}s. The handles are constants, so the JIT inlines
+ * through them and the indirection does not show in the measurements.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ */
+final class Subjects {
+
+    static final MethodHandle NEW_MESSAGE;
+    static final MethodHandle PGP_ENCODE;
+    static final MethodHandle PGP_DECODE;
+    static final MethodHandle GENERATE_KEY_PAIR;
+    static final MethodHandle GENERATE_CERTIFICATE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> message = Class.forName("Message");
+            Class<?> pgpUtils = Class.forName("PGPUtils");
+            NEW_MESSAGE = lookup.findConstructor(message,
+                    MethodType.methodType(void.class, String.class, String.class));
+            PGP_ENCODE = lookup.findStatic(pgpUtils, "PGPEncode",
+                    MethodType.methodType(byte[].class, message, PrivateKey.class, PublicKey.class, Logger.class));
+            PGP_DECODE = lookup.findStatic(pgpUtils, "PGPDecode",
+                    MethodType.methodType(message, byte[].class, PrivateKey.class, PublicKey.class, Logger.class));
+            GENERATE_KEY_PAIR = lookup.findStatic(Class.forName("KeyUtils"), "generate",
+                    MethodType.methodType(KeyPair.class, String.class, int.class));
+            GENERATE_CERTIFICATE = lookup.findStatic(Class.forName("CertificateGenerator"), "generate",
+                    MethodType.methodType(X509Certificate.class, String.class, PublicKey.class, PrivateKey.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Sole class constructor
+     */
+    private Subjects() {
+    }
+}
@@ -1,5 +1,4 @@
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.security.KeyStoreException;
 import java.security.cert.X509Certificate;
@@ -27,12 +26,12 @@ public class AuthenticationHandler extends Thread {
     private final Socket socket;
     private final Client client;
     private final CommandMessageFactory commandMessageFactory = new CommandMessageFactory();
-    private final ObjectOutputStream outputStream;
+    private final BoundedObjectOutputStream outputStream;
 
     /**
      * Class constructor
      */
-    public AuthenticationHandler(Socket socket, ObjectOutputStream outputStream, Client client) {
+    public AuthenticationHandler(Socket socket, BoundedObjectOutputStream outputStream, Client client) {
         this.socket = socket;
         this.client = client;
         this.outputStream = outputStream;
@@ -47,7 +46,7 @@ public class AuthenticationHandler extends Thread {
     public void run() {
 
         try {
-            outputStream.writeObject(client.getAlias());
+            outputStream.send(client.getAlias());
         } catch (IOException ex) {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
@@ -59,7 +58,7 @@ public class AuthenticationHandler extends Thread {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
         try {
-            outputStream.writeObject(certificate);
+            outputStream.send(certificate);
         } catch (IOException ex) {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
@@ -74,7 +73,7 @@ public class AuthenticationHandler extends Thread {
 
         CommandMessage commandMessage = commandMessageFactory.getCommandMessage("AUTH", client.getAlias());
         try {
-            outputStream.writeObject(commandMessage);
+            outputStream.send(commandMessage);
         } catch (IOException ex) {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+
+/**
+ * <code>BatchSignature</code> is a concrete class that represents the signature of
+ * a message signed as part of a batch. The sender signs the root of a {@link MerkleTree}
+ * built over the messages of a batch once, and each message carries that signature with
+ * its inclusion proof. A receiver verifies the root signature once per batch and each
+ * message with a few hashes.
+ * <p>
+ * In an encoded message the signature is followed by {@link #MARKER}, which cannot be
+ * a caption length, then the leaf index, the number of leaves, the number of sibling
+ * hashes and the sibling hashes.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see PGPUtils
+ */
+public class BatchSignature {
+
+    /**
+     * Marks a batch signed message in place of a caption length
+     */
+    public static final int MARKER = -1;
+    private final CipherSuite suite;
+    private final HashAlgorithm hash;
+    private final byte[] signature;
+    private final int index;
+    private final int count;
+    private final byte[][] proof;
+
+    /**
+     * Class constructor specifying the root signature and the inclusion proof of a message
+     *
+     * @param suite     cipher suite that signed the root
+     * @param hash      algorithm of the tree
+     * @param signature signature of the root of the batch
+     * @param index     index of the message in the batch
+     * @param count     number of messages in the batch
+     * @param proof     sibling hashes from the message towards the root
+     */
+    public BatchSignature(CipherSuite suite, HashAlgorithm hash, byte[] signature, int index, int count,
+                          byte[][] proof) {
+        this.suite = suite;
+        this.hash = hash;
+        this.signature = signature;
+        this.index = index;
+        this.count = count;
+        this.proof = proof;
+    }
+
+    /**
+     * Reads the inclusion proof that follows a signature in an encoded message
+     *
+     * @param suite     cipher suite of the message
+     * @param hash      hash algorithm of the message
+     * @param signature signature of the root of the batch
+     * @param buffer    buffer positioned at the {@link #MARKER}
+     * @return <code>BatchSignature</code>
+     */
+    public static BatchSignature decode(CipherSuite suite, HashAlgorithm hash, byte[] signature,
+                                        ByteBuffer buffer) {
+        if (buffer.getInt() != MARKER) {
+            throw new IllegalArgumentException("Message is not batch signed");
+        }
+        int index = buffer.getInt();
+        int count = buffer.getInt();
+        byte[][] proof = new byte[buffer.get() & 0xFF][MerkleTree.HASH_LENGTH];
+        for (byte[] sibling : proof) {
+            buffer.get(sibling);
+        }
+        return new BatchSignature(suite, hash, signature, index, count, proof);
+    }
+
+    /**
+     * Writes the marker and inclusion proof that follow the signature in an encoded message
+     *
+     * @return <code>byte[]</code>
+     */
+    public byte[] encodeProof() {
+        ByteBuffer buffer = ByteBuffer.allocate(getEncodedProofLength());
+        buffer.putInt(MARKER).putInt(index).putInt(count).put((byte) proof.length);
+        for (byte[] sibling : proof) {
+            buffer.put(sibling);
+        }
+        return buffer.array();
+    }
+
+    public int getEncodedProofLength() {
+        return 13 + proof.length * MerkleTree.HASH_LENGTH;
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    public HashAlgorithm getHash() {
+        return hash;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public byte[][] getProof() {
+        return proof;
+    }
+}
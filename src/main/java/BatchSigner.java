@@ -0,0 +1,160 @@
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>BatchSigner</code> is a concrete class that collects the leaf hashes of messages
+ * sent in a burst and signs them together with one private key operation. A batch is
+ * signed once it holds the maximum number of messages, or when the window opened by its
+ * first message expires, whichever comes first. Each message receives the signature of
+ * the root of a {@link MerkleTree} over the batch and its inclusion proof, which are sent
+ * in place of its own signature by {@link PGPUtils#PGPEncode(Message, BatchSignature,
+ * java.security.PublicKey, Logger)}.
+ * <p>
+ * A message sent alone waits for the window before it is signed, so the window trades
+ * latency for fewer signatures and should be a few milliseconds.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see BatchSignature
+ */
+public class BatchSigner implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(BatchSigner.class.getName());
+    private final PrivateKey privateKey;
+    private final HashAlgorithm hash;
+    private final int maxMessages;
+    private final long window;
+    private final TimeUnit unit;
+    private final ScheduledExecutorService timer;
+    private List<byte[]> leaves = new ArrayList<>();
+    private List<CompletableFuture<BatchSignature>> pending = new ArrayList<>();
+    private ScheduledFuture<?> deadline;
+
+    /**
+     * Class constructor specifying the signing key, the maximum number of messages
+     * in a batch and the window a batch is held open for. Batches are hashed with
+     * the algorithm returned by {@link PGPUtils#getHashAlgorithm()}.
+     *
+     * @param privateKey  private key of sender
+     * @param maxMessages maximum number of messages signed together
+     * @param window      time a batch waits for further messages after its first
+     * @param unit        unit of <code>window</code>
+     */
+    public BatchSigner(PrivateKey privateKey, int maxMessages, long window, TimeUnit unit) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("A batch must hold at least one message");
+        }
+        this.privateKey = privateKey;
+        this.hash = PGPUtils.getHashAlgorithm();
+        this.maxMessages = maxMessages;
+        this.window = window;
+        this.unit = unit;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-signer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a message to the open batch
+     *
+     * @param leaf leaf hash of the message computed by {@link MerkleTree#leaf(HashAlgorithm, byte[], int, int)}
+     *             with {@link #getHashAlgorithm()}
+     * @return <code>CompletableFuture</code> completed with the batch signature of the message
+     */
+    public CompletableFuture<BatchSignature> sign(byte[] leaf) {
+        CompletableFuture<BatchSignature> signature = new CompletableFuture<>();
+        List<byte[]> full = null;
+        List<CompletableFuture<BatchSignature>> signatures = null;
+        synchronized (this) {
+            leaves.add(leaf);
+            pending.add(signature);
+            if (leaves.size() >= maxMessages) {
+                full = leaves;
+                signatures = pending;
+                reset();
+            } else if (deadline == null) {
+                deadline = timer.schedule(this::expire, window, unit);
+            }
+        }
+        if (full != null) {
+            sign(full, signatures);
+        }
+        return signature;
+    }
+
+    public HashAlgorithm getHashAlgorithm() {
+        return hash;
+    }
+
+    /**
+     * Signs any open batch and stops the timer
+     */
+    @Override
+    public void close() {
+        expire();
+        timer.shutdown();
+    }
+
+    /**
+     * Signs the open batch once its window has expired
+     */
+    private void expire() {
+        List<byte[]> expired;
+        List<CompletableFuture<BatchSignature>> signatures;
+        synchronized (this) {
+            if (leaves.isEmpty()) {
+                return;
+            }
+            expired = leaves;
+            signatures = pending;
+            reset();
+        }
+        sign(expired, signatures);
+    }
+
+    /**
+     * Opens a new batch. Must be called while holding the lock.
+     */
+    private void reset() {
+        leaves = new ArrayList<>();
+        pending = new ArrayList<>();
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**
+     * Signs a closed batch and completes the futures of its messages
+     *
+     * @param batch      leaf hashes of the batch
+     * @param signatures futures of the messages in the order of <code>batch</code>
+     */
+    private void sign(List<byte[]> batch, List<CompletableFuture<BatchSignature>> signatures) {
+        try {
+            List<BatchSignature> signed = PGPUtils.signBatch(batch, hash, privateKey);
+            for (int i = 0; i < signed.size(); i++) {
+                signatures.get(i).complete(signed.get(i));
+            }
+        } catch (GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+            for (CompletableFuture<BatchSignature> signature : signatures) {
+                signature.completeExceptionally(ex);
+            }
+        }
+    }
+}
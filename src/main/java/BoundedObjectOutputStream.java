@@ -0,0 +1,122 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * <code>BoundedObjectOutputStream</code> is a concrete class that extends
+ * {@link ObjectOutputStream} to bound the memory held by a long-lived connection. An
+ * <code>ObjectOutputStream</code> keeps a reference to every object it has written so
+ * that repeated objects can be written as back-references, and the
+ * <code>ObjectInputStream</code> at the other end keeps every object it has read for
+ * the same reason. Objects written with {@link #send(Object)} are counted, and the
+ * stream is reset once the bytes or objects written since the last reset reach a limit,
+ * which clears the handle tables on both ends.
+ * <p>
+ * The limits are read from the <code>cryptosystem.stream.resetBytes</code> and
+ * <code>cryptosystem.stream.resetObjects</code> system properties and default to
+ * 1 MB and 256 objects. The bytes written since the last reset are an upper bound on
+ * the serialized data retained by either handle table and are reported by
+ * {@link #getRetainedBytes()}.
+ *
+ * @author Aidan Bailey
+ * @author Kialan Pillay
+ * @author Emily Morris
+ * @author Insaaf Dhansay
+ * @version %I%, %G%
+ */
+public class BoundedObjectOutputStream extends ObjectOutputStream {
+
+    private static final long RESET_BYTES = Long.getLong("cryptosystem.stream.resetBytes", 1024 * 1024);
+    private static final int RESET_OBJECTS = Integer.getInteger("cryptosystem.stream.resetObjects", 256);
+    private final CountingOutputStream counter;
+    private final long resetBytes;
+    private final int resetObjects;
+    private volatile long resetAt;
+    private volatile long resets;
+    private int objects;
+
+    /**
+     * Class constructor specifying the stream to write to, with the configured limits
+     */
+    public BoundedObjectOutputStream(OutputStream out) throws IOException {
+        this(out, RESET_BYTES, RESET_OBJECTS);
+    }
+
+    /**
+     * Class constructor specifying the stream to write to and the limits
+     * that trigger a reset
+     *
+     * @param out          stream to write to
+     * @param resetBytes   bytes written between resets
+     * @param resetObjects objects written between resets
+     */
+    public BoundedObjectOutputStream(OutputStream out, long resetBytes, int resetObjects) throws IOException {
+        this(new CountingOutputStream(out), resetBytes, resetObjects);
+    }
+
+    private BoundedObjectOutputStream(CountingOutputStream counter, long resetBytes, int resetObjects)
+            throws IOException {
+        super(counter);
+        this.counter = counter;
+        this.resetBytes = resetBytes;
+        this.resetObjects = resetObjects;
+        this.resetAt = counter.count;
+    }
+
+    /**
+     * Writes an object and resets the stream if either limit has been reached. The object
+     * is written unshared, so the writer does not keep a reference to it. Concurrent
+     * senders are serialized.
+     *
+     * @param object object to write
+     */
+    public synchronized void send(Object object) throws IOException {
+        writeUnshared(object);
+        if (++objects >= resetObjects || counter.count - resetAt >= resetBytes) {
+            reset();
+            objects = 0;
+            resets++;
+        }
+        flush();
+        if (objects == 0) {
+            resetAt = counter.count;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written since the stream was last reset
+     *
+     * @return <code>long</code>
+     */
+    public long getRetainedBytes() {
+        return counter.count - resetAt;
+    }
+
+    public long getResets() {
+        return resets;
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private volatile long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>CAKeyHolder</code> is a concrete class that holds the {@link KeyPair} of the
+ * Certificate Authority for the whole process. The default holder reads the PKCS12
+ * keystore lazily on first use, then watches the file with a {@link WatchService}
+ * and atomically swaps in the new key pair whenever the file changes. A failed
+ * reload keeps the previous key pair.
+ * The keystore location and password are read from the <code>cryptosystem.keystore</code>
+ * and <code>cryptosystem.keystore.password</code> system properties, or the
+ * <code>CRYPTOSYSTEM_KEYSTORE_PASSWORD</code> environment variable, falling back to
+ * the defaults written by {@link CertificateAuthority}.
+ * Tests and embedded callers can {@link #install(CAKeyHolder)} a holder backed
+ * by an in-memory key pair or keystore instead.
+ *
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see SecretsManager
+ */
+public class CAKeyHolder {
+
+    public static final String KEYSTORE_PROPERTY = "cryptosystem.keystore";
+    public static final String PASSWORD_PROPERTY = "cryptosystem.keystore.password";
+    public static final String PASSWORD_VARIABLE = "CRYPTOSYSTEM_KEYSTORE_PASSWORD";
+    public static final String ALIAS = "CA";
+    private static final Logger LOGGER = Logger.getLogger(CAKeyHolder.class.getName());
+    private static final String DEFAULT_FILENAME = "keystore.pkcs12";
+    private static final String DEFAULT_PASSWORD = "crypto";
+    private static volatile CAKeyHolder instance;
+    private final AtomicReference<KeyPair> keyPair = new AtomicReference<>();
+    private final AtomicInteger loadCount = new AtomicInteger();
+    private final Path path;
+    private final char[] password;
+    private volatile long lastLoadNanos;
+    private Thread watcher;
+
+    /**
+     * Class constructor specifying a keystore file, or <code>null</code>
+     * for a holder that is supplied in memory
+     */
+    private CAKeyHolder(Path path, char[] password) {
+        this.path = path;
+        this.password = password;
+    }
+
+    /**
+     * Returns the process-wide holder, creating a file-backed holder
+     * for the configured keystore on first use
+     *
+     * @return <code>CAKeyHolder</code>
+     */
+    public static CAKeyHolder getInstance() {
+        CAKeyHolder holder = instance;
+        if (holder == null) {
+            synchronized (CAKeyHolder.class) {
+                holder = instance;
+                if (holder == null) {
+                    holder = fromFile(keystorePath(), keystorePassword());
+                    holder.watch();
+                    instance = holder;
+                }
+            }
+        }
+        return holder;
+    }
+
+    /**
+     * Replaces the process-wide holder
+     *
+     * @param holder holder to share
+     */
+    public static synchronized void install(CAKeyHolder holder) {
+        CAKeyHolder previous = instance;
+        instance = holder;
+        if (previous != null && previous != holder) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Creates a holder that lazily loads the specified keystore file
+     *
+     * @param path     keystore file
+     * @param password keystore password
+     * @return <code>CAKeyHolder</code>
+     */
+    public static CAKeyHolder fromFile(Path path, char[] password) {
+        return new CAKeyHolder(path.toAbsolutePath(), password.clone());
+    }
+
+    /**
+     * Creates a holder for an existing key pair
+     *
+     * @param CAKeyPair key pair of the Certificate Authority
+     * @return <code>CAKeyHolder</code>
+     */
+    public static CAKeyHolder fromKeyPair(KeyPair CAKeyPair) {
+        CAKeyHolder holder = new CAKeyHolder(null, new char[0]);
+        holder.keyPair.set(CAKeyPair);
+        return holder;
+    }
+
+    /**
+     * Creates a holder from the bytes of a PKCS12 keystore
+     *
+     * @param keystore encoded keystore
+     * @param password keystore password
+     * @return <code>CAKeyHolder</code>
+     */
+    public static CAKeyHolder fromKeyStore(byte[] keystore, char[] password)
+            throws IOException, GeneralSecurityException {
+        return fromKeyPair(read(new ByteArrayInputStream(keystore), password));
+    }
+
+    /**
+     * Returns the configured keystore location
+     *
+     * @return <code>Path</code>
+     */
+    public static Path keystorePath() {
+        return Paths.get(System.getProperty(KEYSTORE_PROPERTY, DEFAULT_FILENAME));
+    }
+
+    /**
+     * Returns the configured keystore password
+     *
+     * @return <code>char[]</code>
+     */
+    public static char[] keystorePassword() {
+        String password = System.getProperty(PASSWORD_PROPERTY, System.getenv(PASSWORD_VARIABLE));
+        return (password == null ? DEFAULT_PASSWORD : password).toCharArray();
+    }
+
+    /**
+     * Retrieves the CA <code>PrivateKeyEntry</code> from an encoded keystore
+     *
+     * @param stream   keystore contents
+     * @param password keystore password
+     * @return <code>KeyPair</code>
+     */
+    private static KeyPair read(InputStream stream, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(stream, password);
+
+        KeyStore.ProtectionParameter param = new KeyStore.PasswordProtection(password);
+        KeyStore.PrivateKeyEntry privateKeyEntry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(ALIAS, param);
+        if (privateKeyEntry == null) {
+            throw new GeneralSecurityException("Keystore has no entry " + ALIAS);
+        }
+        PublicKey CAPublicKey = privateKeyEntry.getCertificate().getPublicKey();
+        PrivateKey CAPrivateKey = privateKeyEntry.getPrivateKey();
+        return new KeyPair(CAPublicKey, CAPrivateKey);
+    }
+
+    /**
+     * Returns the current key pair, loading the keystore on first use
+     *
+     * @return <code>KeyPair</code>
+     * @throws IllegalStateException if the keystore has never been loaded successfully
+     */
+    public KeyPair getKeyPair() {
+        KeyPair current = keyPair.get();
+        if (current == null) {
+            synchronized (this) {
+                current = keyPair.get();
+                if (current == null) {
+                    try {
+                        current = load();
+                    } catch (IOException | GeneralSecurityException ex) {
+                        throw new IllegalStateException("Unable to load CA keystore " + path, ex);
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Reads the keystore file and swaps in its key pair
+     *
+     * @return <code>KeyPair</code>
+     */
+    private synchronized KeyPair load() throws IOException, GeneralSecurityException {
+        if (path == null) {
+            return keyPair.get();
+        }
+        long start = System.nanoTime();
+        KeyPair loaded;
+        try (InputStream stream = Files.newInputStream(path)) {
+            loaded = read(stream, password);
+        }
+        lastLoadNanos = System.nanoTime() - start;
+        keyPair.set(loaded);
+        loadCount.incrementAndGet();
+        LOGGER.info(String.format("Loaded CA keystore %s in %.2f ms", path, lastLoadNanos / 1e6));
+        return loaded;
+    }
+
+    /**
+     * Reloads the keystore file. The previous key pair is kept if the
+     * file cannot be read.
+     *
+     * @return <code>boolean</code> returns <code>True</code> if a new key pair was loaded
+     * <code>False</code> otherwise
+     */
+    public boolean reload() {
+        try {
+            return path != null && load() != null;
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, "Keeping previous CA keys: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts a daemon thread that reloads the keystore whenever
+     * its file is created or modified
+     */
+    public synchronized void watch() {
+        if (path == null || watcher != null) {
+            return;
+        }
+        watcher = new Thread(this::poll, "ca-keystore-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Blocks on a {@link WatchService} registered on the keystore's directory
+     */
+    private void poll() {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (path.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    reload();
+                }
+                if (!key.reset()) {
+                    break;
+                }
+            }
+        } catch (IOException | ClosedWatchServiceException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops watching the keystore file
+     */
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Returns the duration of the most recent keystore load
+     *
+     * @return <code>long</code> nanoseconds, or <code>0</code> if the keystore has not been read from disk
+     */
+    public long getLastLoadNanos() {
+        return lastLoadNanos;
+    }
+
+    /**
+     * Returns the number of times the keystore has been read from disk
+     *
+     * @return <code>int</code>
+     */
+    public int getLoadCount() {
+        return loadCount.get();
+    }
+}
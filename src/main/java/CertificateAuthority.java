@@ -1,17 +1,24 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
 /**
  * <code>CertificateAuthority</code> is a class that generates a {@link KeyPair}
  * and stores the {@link KeyStore.Entry} in a PKCS12 {@link KeyStore} that is
- * written to disk. Generation must occur in an offline step
- * prior to <code>Client</code>s initiating a connection request to the server.
+ * written to disk at the location configured for {@link CAKeyHolder}.
+ * Generation must occur in an offline step prior to <code>Client</code>s initiating
+ * a connection request to the server.
+ * The <code>CertificateAuthority</code> also publishes the {@link RevocationList}:
+ * an empty list is published alongside the keystore, and certificates are revoked
+ * or reinstated by publishing delta files with the <code>revoke</code> and
+ * <code>reinstate</code> commands followed by serial numbers.
  *
  * @author Insaaf Dhansay
  * @author Kialan Pillay
@@ -20,18 +27,38 @@ import java.security.cert.X509Certificate;
  * @version %I%, %G%
  * @see CertificateGenerator
  * @see SecretsManager
+ * @see RevocationList
  */
 public class CertificateAuthority {
 
+    private static final Prettier PRETTIER = new Prettier();
+
     /**
-     * Generates a key pair for secure storage.
+     * Generates a key pair for secure storage and publishes an empty
+     * revocation list. If a <code>revoke</code> or <code>reinstate</code> command
+     * is specified, publishes a revocation delta for the specified serial numbers instead.
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 1 && (args[0].equals("revoke") || args[0].equals("reinstate"))) {
+            long[] serials = new long[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                serials[i - 1] = Long.parseLong(args[i]);
+            }
+            PrivateKey CAPrivateKey = new SecretsManager().getPrivateKey();
+            long[] none = new long[0];
+            boolean revoke = args[0].equals("revoke");
+            long sequence = RevocationList.publishDelta(Paths.get(RevocationList.DEFAULT_FILENAME),
+                    revoke ? serials : none, revoke ? none : serials, CAPrivateKey);
+            PRETTIER.print("System", "Published revocation delta " + sequence);
+            return;
+        }
+
         KeyPair CAKeyPair = KeyUtils.generate();
-        String filename = "keystore.pkcs12";
-        char[] password = "crypto".toCharArray();
+        String filename = CAKeyHolder.keystorePath().toString();
+        char[] password = CAKeyHolder.keystorePassword();
 
         store(filename, password, CAKeyPair);
+        RevocationList.publish(Paths.get(RevocationList.DEFAULT_FILENAME), 0, new long[0], CAKeyPair.getPrivate());
     }
 
     /**
@@ -54,7 +81,7 @@ public class CertificateAuthority {
                 new X509Certificate[]{rootCertificate});
         KeyStore.ProtectionParameter param = new KeyStore.PasswordProtection(password);
 
-        keyStore.setEntry("CA", entry, param);
+        keyStore.setEntry(CAKeyHolder.ALIAS, entry, param);
 
         try (FileOutputStream fileOutputStream = new FileOutputStream(filename)) {
             keyStore.store(fileOutputStream, password);
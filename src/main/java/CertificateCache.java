@@ -0,0 +1,181 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <code>CertificateCache</code> is a concrete class that provides thread-safe
+ * in-memory storage of client certificates for a {@link Session}.
+ * Entries are indexed by client alias and by SHA-256 fingerprint and hold the
+ * parsed {@link X509Certificate} together with its DER encoding, which is computed
+ * once on insertion so that certificate delivery never re-encodes.
+ * Each entry carries a lock-free delivery flag.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ */
+public class CertificateCache {
+
+    private final ConcurrentMap<String, Entry> aliasIndex = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Entry> fingerprintIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Computes the hex-encoded SHA-256 fingerprint of an encoded certificate
+     *
+     * @param encoded DER encoding of a certificate
+     * @return <code>String</code>
+     */
+    public static String fingerprint(byte[] encoded) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(encoded);
+        StringBuilder stringBuilder = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Stores a certificate against a client alias, replacing any
+     * existing entry. The delivery flag of the new entry is cleared.
+     *
+     * @param alias       client alias
+     * @param certificate signed certificate containing client public key
+     * @return <code>Entry</code>
+     */
+    public Entry put(String alias, X509Certificate certificate)
+            throws CertificateEncodingException, NoSuchAlgorithmException {
+        byte[] encoded = certificate.getEncoded();
+        Entry entry = new Entry(alias, certificate, encoded, fingerprint(encoded));
+        Entry previous = aliasIndex.put(alias, entry);
+        if (previous != null) {
+            fingerprintIndex.remove(previous.getFingerprint(), previous);
+        }
+        fingerprintIndex.put(entry.getFingerprint(), entry);
+        return entry;
+    }
+
+    /**
+     * Returns the entry for a specified client
+     *
+     * @param alias client alias
+     * @return <code>Entry</code> or <code>null</code> if no certificate is stored
+     */
+    public Entry get(String alias) {
+        return aliasIndex.get(alias);
+    }
+
+    /**
+     * Returns the entry with the specified SHA-256 fingerprint
+     *
+     * @param fingerprint hex-encoded certificate fingerprint
+     * @return <code>Entry</code> or <code>null</code> if no certificate is stored
+     */
+    public Entry getByFingerprint(String fingerprint) {
+        return fingerprintIndex.get(fingerprint);
+    }
+
+    /**
+     * Removes the entry for a specified client from both indices
+     *
+     * @param alias client alias
+     * @return <code>boolean</code> returns <code>True</code> if an entry was removed
+     * <code>False</code> otherwise
+     */
+    public boolean remove(String alias) {
+        Entry entry = aliasIndex.remove(alias);
+        if (entry == null) {
+            return false;
+        }
+        fingerprintIndex.remove(entry.getFingerprint(), entry);
+        return true;
+    }
+
+    /**
+     * Marks the certificate of a specified client as delivered
+     *
+     * @param alias client alias
+     * @return <code>boolean</code> returns <code>True</code> if this call changed the flag
+     * <code>False</code> otherwise
+     */
+    public boolean markDelivered(String alias) {
+        Entry entry = aliasIndex.get(alias);
+        return entry != null && entry.delivered.compareAndSet(false, true);
+    }
+
+    /**
+     * Returns the certificate delivery record for a specified client
+     *
+     * @param alias client alias
+     * @return <code>boolean</code>
+     */
+    public boolean isDelivered(String alias) {
+        Entry entry = aliasIndex.get(alias);
+        return entry != null && entry.delivered.get();
+    }
+
+    /**
+     * Clears the delivery flag of every entry
+     */
+    public void resetDelivered() {
+        for (Entry entry : aliasIndex.values()) {
+            entry.delivered.set(false);
+        }
+    }
+
+    public int size() {
+        return aliasIndex.size();
+    }
+
+    /**
+     * <code>Entry</code> is an immutable certificate record with a
+     * mutable delivery flag.
+     */
+    public static final class Entry {
+
+        private final String alias;
+        private final X509Certificate certificate;
+        private final byte[] encoded;
+        private final String fingerprint;
+        private final AtomicBoolean delivered = new AtomicBoolean(false);
+
+        private Entry(String alias, X509Certificate certificate, byte[] encoded, String fingerprint) {
+            this.alias = alias;
+            this.certificate = certificate;
+            this.encoded = encoded;
+            this.fingerprint = fingerprint;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        /**
+         * Returns the DER encoding of the certificate. The array is shared
+         * and must not be modified by callers.
+         *
+         * @return <code>byte[]</code>
+         */
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public boolean isDelivered() {
+            return delivered.get();
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.CertIOException;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
@@ -10,8 +11,10 @@ import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import java.math.BigInteger;
 import java.security.PrivateKey;
+import java.security.Provider;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.Security;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Calendar;
@@ -20,7 +23,8 @@ import java.util.GregorianCalendar;
 
 /**
  * <code>CertificateGenerator</code> is a concrete class that generates {@link X509Certificate}
- * certificates.
+ * certificates. The BouncyCastle provider is registered once per process and
+ * serial numbers are drawn at random so that they are unique across processes.
  *
  * @author Insaaf Dhansay
  * @author Kialan Pillay
@@ -30,6 +34,12 @@ import java.util.GregorianCalendar;
  */
 public class CertificateGenerator {
 
+    static final String SIGNATURE_ALGORITHM = "SHA256WithRSAEncryption";
+    static final Provider PROVIDER = registerProvider();
+    private static final X500Name ISSUER = new X500Name("CN=CA");
+    private static final JcaX509CertificateConverter CONVERTER = new JcaX509CertificateConverter().setProvider(PROVIDER);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     /**
      * Sole class constructor
      */
@@ -37,6 +47,48 @@ public class CertificateGenerator {
 
     }
 
+    /**
+     * Registers the BouncyCastle provider if it is not already installed
+     *
+     * @return <code>Provider</code>
+     */
+    private static Provider registerProvider() {
+        Provider provider = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+        if (provider == null) {
+            provider = new BouncyCastleProvider();
+            Security.addProvider(provider);
+        }
+        return provider;
+    }
+
+    /**
+     * Creates a builder of certificate signers that use the provider selected
+     * by {@link CryptoProviders}
+     *
+     * @return <code>JcaContentSignerBuilder</code>
+     */
+    static JcaContentSignerBuilder signerBuilder() {
+        JcaContentSignerBuilder builder = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM);
+        Provider provider = CryptoProviders.getProvider(CryptoProviders.Operation.SHA256_WITH_RSA);
+        return provider == null ? builder : builder.setProvider(provider);
+    }
+
+    /**
+     * Allocates a certificate serial number. Every client issues its own certificate
+     * in its own process, so serial numbers are random rather than counted: 63 random
+     * bits make a collision unlikely across millions of certificates, and the serial
+     * fits exactly in the <code>long</code> keys of a {@link RevocationList}.
+     *
+     * @return <code>BigInteger</code>
+     */
+    static BigInteger nextSerialNumber() {
+        long serial;
+        do {
+            serial = RANDOM.nextLong() & Long.MAX_VALUE;
+        } while (serial == 0);
+        return BigInteger.valueOf(serial);
+    }
+
     /**
      * Generates a signed public key certificate using a <code>SHA256WithRSAEncryption</code>
      * encryption algorithm.
@@ -47,27 +99,61 @@ public class CertificateGenerator {
      * @return <code>X509Certificate</code>
      */
     public static X509Certificate generate(String alias, PublicKey clientPublicKey, PrivateKey CAPrivateKey) {
-
-        X500Name issuer = new X500Name("CN=CA");
-        X500Name subject = new X500Name("CN=" + alias);
-        Date before = new Date();
-        Date after = new GregorianCalendar(2021, Calendar.DECEMBER, 31).getTime();
-        BigInteger sn = new BigInteger(64, new SecureRandom());
-
-        X509v3CertificateBuilder v3CertificateBuilder = new JcaX509v3CertificateBuilder(issuer, sn, before, after, subject, clientPublicKey);
         X509Certificate certificate = null;
         try {
-            ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption")
-                    .setProvider(new BouncyCastleProvider())
-                    .build(CAPrivateKey);
-            X509CertificateHolder certificateHolder = v3CertificateBuilder.build(signer);
-            certificate = new JcaX509CertificateConverter()
-                    .setProvider(new BouncyCastleProvider())
-                    .getCertificate(certificateHolder);
+            ContentSigner signer = signerBuilder().build(CAPrivateKey);
+            certificate = generate(alias, clientPublicKey, signer);
         } catch (CertificateException | OperatorCreationException e) {
             e.printStackTrace();
         }
         return certificate;
 
     }
+
+    /**
+     * Generates a public key certificate signed by the specified {@link ContentSigner}.
+     * The signer is used by the calling thread only for the duration of the call.
+     *
+     * @param alias           alias of the certificate subject
+     * @param clientPublicKey public key of a client
+     * @param signer          signer holding the private key of the Certificate Authority
+     * @return <code>X509Certificate</code>
+     */
+    static X509Certificate generate(String alias, PublicKey clientPublicKey, ContentSigner signer)
+            throws CertificateException {
+        return generate(alias, clientPublicKey, null, signer);
+    }
+
+    /**
+     * Generates a public key certificate signed by the specified {@link ContentSigner}
+     * that offers the cipher suites of a client. The public keys of every suite are
+     * placed in the {@link SuiteKeys#EXTENSION} extension.
+     *
+     * @param alias  alias of the certificate subject
+     * @param keys   key-pairs of the client for each suite it offers
+     * @param signer signer holding the private key of the Certificate Authority
+     * @return <code>X509Certificate</code>
+     */
+    static X509Certificate generate(String alias, SuiteKeys keys, ContentSigner signer) throws CertificateException {
+        return generate(alias, keys.getSubjectPublicKey(), keys, signer);
+    }
+
+    private static X509Certificate generate(String alias, PublicKey clientPublicKey, SuiteKeys keys,
+                                            ContentSigner signer) throws CertificateException {
+        X500Name subject = new X500Name("CN=" + alias);
+        Date before = new Date();
+        Date after = new GregorianCalendar(2021, Calendar.DECEMBER, 31).getTime();
+
+        X509v3CertificateBuilder v3CertificateBuilder = new JcaX509v3CertificateBuilder(ISSUER, nextSerialNumber(),
+                before, after, subject, clientPublicKey);
+        if (keys != null) {
+            try {
+                v3CertificateBuilder.addExtension(SuiteKeys.EXTENSION, false, keys.toExtension());
+            } catch (CertIOException ex) {
+                throw new CertificateException(ex);
+            }
+        }
+        X509CertificateHolder certificateHolder = v3CertificateBuilder.build(signer);
+        return CONVERTER.getCertificate(certificateHolder);
+    }
 }
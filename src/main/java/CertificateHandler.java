@@ -1,6 +1,9 @@
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -34,14 +37,22 @@ public class CertificateHandler extends Thread {
     }
 
     /**
-     * Reads an object from the input stream and casts it to a
-     * <code>X509Certificate</code>.
+     * Reads an object from the input stream and converts it to a
+     * <code>X509Certificate</code>. The server delivers certificates in
+     * their DER encoding, which is parsed using a {@link CertificateFactory}.
      */
     public void run() {
         try {
-            X509Certificate certificate = (X509Certificate) inputStream.readObject();
+            Object object = inputStream.readObject();
+            X509Certificate certificate;
+            if (object instanceof byte[]) {
+                CertificateFactory factory = CertificateFactory.getInstance("X.509");
+                certificate = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream((byte[]) object));
+            } else {
+                certificate = (X509Certificate) object;
+            }
             client.storeOtherCertificate(certificate);
-        } catch (IOException | ClassNotFoundException ex) {
+        } catch (IOException | ClassNotFoundException | CertificateException ex) {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
     }
@@ -0,0 +1,160 @@
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * <code>CertificateIssuer</code> is a concrete class that issues {@link X509Certificate}
+ * certificates on behalf of a Certificate Authority at high throughput.
+ * An issuer holds a fixed pool of {@link ContentSigner}s built once from the CA
+ * private key. Signers are borrowed by one thread at a time and returned after
+ * each certificate, so threads never share a signer and never rebuild one.
+ * Serial numbers are allocated by {@link CertificateGenerator}.
+ *
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see CertificateGenerator
+ * @see SecretsManager
+ */
+public class CertificateIssuer {
+
+    private static final Logger LOGGER = Logger.getLogger(CertificateIssuer.class.getName());
+    private final BlockingQueue<ContentSigner> signers;
+    private final int poolSize;
+
+    /**
+     * Class constructor specifying the CA private key. The signer pool
+     * is sized to the number of available processors.
+     */
+    public CertificateIssuer(PrivateKey CAPrivateKey) throws OperatorCreationException {
+        this(CAPrivateKey, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Class constructor specifying the CA private key and signer pool size
+     */
+    public CertificateIssuer(PrivateKey CAPrivateKey, int poolSize) throws OperatorCreationException {
+        this.poolSize = Math.max(1, poolSize);
+        this.signers = new ArrayBlockingQueue<>(this.poolSize);
+        JcaContentSignerBuilder builder = CertificateGenerator.signerBuilder();
+        for (int i = 0; i < this.poolSize; i++) {
+            signers.add(builder.build(CAPrivateKey));
+        }
+    }
+
+    /**
+     * Issues a signed public key certificate using a pooled signer.
+     * Blocks while every signer is in use.
+     *
+     * @param alias     alias of the certificate subject
+     * @param publicKey public key of a client
+     * @return <code>X509Certificate</code>
+     */
+    public X509Certificate issue(String alias, PublicKey publicKey) throws CertificateException, InterruptedException {
+        ContentSigner signer = signers.take();
+        try {
+            return CertificateGenerator.generate(alias, publicKey, signer);
+        } finally {
+            signers.add(signer);
+        }
+    }
+
+    /**
+     * Issues a signed certificate offering the cipher suites of a client using a
+     * pooled signer. Blocks while every signer is in use.
+     *
+     * @param alias alias of the certificate subject
+     * @param keys  key-pairs of the client for each suite it offers
+     * @return <code>X509Certificate</code>
+     */
+    public X509Certificate issue(String alias, SuiteKeys keys) throws CertificateException, InterruptedException {
+        ContentSigner signer = signers.take();
+        try {
+            return CertificateGenerator.generate(alias, keys, signer);
+        } finally {
+            signers.add(signer);
+        }
+    }
+
+    /**
+     * Issues a certificate for each subject in parallel, using one worker per
+     * pooled signer. Logs the batch throughput once every certificate has been issued.
+     *
+     * @param subjects public keys keyed by subject alias
+     * @return <code>Map</code> of certificates keyed by alias, in the iteration order of <code>subjects</code>
+     */
+    public Map<String, X509Certificate> issueAll(Map<String, PublicKey> subjects)
+            throws CertificateException, InterruptedException {
+        return issueAll(subjects, this::issue);
+    }
+
+    /**
+     * Issues a certificate offering the cipher suites of each subject in parallel
+     *
+     * @param subjects key-pairs for the offered suites keyed by subject alias
+     * @return <code>Map</code> of certificates keyed by alias, in the iteration order of <code>subjects</code>
+     * @see #issueAll(Map)
+     */
+    public Map<String, X509Certificate> issueAllSuites(Map<String, SuiteKeys> subjects)
+            throws CertificateException, InterruptedException {
+        return issueAll(subjects, this::issue);
+    }
+
+    private <K> Map<String, X509Certificate> issueAll(Map<String, K> subjects, Issuance<K> issuance)
+            throws CertificateException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        long start = System.nanoTime();
+        try {
+            List<Future<X509Certificate>> futures = new ArrayList<>(subjects.size());
+            for (Map.Entry<String, K> subject : subjects.entrySet()) {
+                futures.add(executor.submit(() -> issuance.issue(subject.getKey(), subject.getValue())));
+            }
+            Map<String, X509Certificate> certificates = new LinkedHashMap<>();
+            int i = 0;
+            for (String alias : subjects.keySet()) {
+                certificates.put(alias, futures.get(i++).get());
+            }
+            long elapsed = System.nanoTime() - start;
+            LOGGER.info(String.format("Issued %d certificates in %.1f ms (%.0f certificates/s)",
+                    certificates.size(), elapsed / 1e6, certificates.size() / (elapsed / 1e9)));
+            return certificates;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CertificateException) {
+                throw (CertificateException) ex.getCause();
+            }
+            throw new CertificateException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Issues a certificate for a subject holding a key of type <code>K</code>
+     */
+    @FunctionalInterface
+    private interface Issuance<K> {
+        X509Certificate issue(String alias, K key) throws CertificateException, InterruptedException;
+    }
+}
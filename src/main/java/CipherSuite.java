@@ -0,0 +1,329 @@
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.Signature;
+import java.security.interfaces.RSAKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <code>CipherSuite</code> is an enumeration of the public key algorithms that
+ * {@link PGPUtils} uses to sign messages and to wrap their session keys. RSA suites
+ * sign and wrap with the same key-pair, using PKCS #1 padding as in earlier versions.
+ * The <code>X25519_ED25519</code> suite signs with Ed25519 and wraps session keys with
+ * AES key wrap under a key agreed by X25519 between a fresh ephemeral key-pair and the
+ * X25519 key of the receiver. Keys are generated by the bundled BouncyCastle provider, and
+ * the provider of each operation is selected by {@link CryptoProviders}.
+ * <p>
+ * Suites are declared in order of preference. Each client offers a set of suites in its
+ * certificate (see {@link SuiteKeys}), and both clients pick the same suite with
+ * {@link #negotiate(Collection, Collection)}. The suites offered by default are read from
+ * the <code>cryptosystem.suites</code> system property, a comma separated list of suite names.
+ *
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @version %I%, %G%
+ * @see SuiteKeys
+ */
+public enum CipherSuite {
+
+    X25519_ED25519(4, "Ed25519", 255),
+    RSA_3072(3, "RSA", 3072),
+    RSA_2048(2, "RSA", 2048),
+    RSA_1024(1, "RSA", 1024);
+
+    private static final String DEFAULT_SUITES = "X25519_ED25519,RSA_1024";
+    private static final String AGREEMENT_ALGORITHM = "X25519";
+
+    /**
+     * Length of the X.509 encoding of an X25519 public key
+     */
+    private static final int X25519_ENCODED_LENGTH = 44;
+
+    private final int id;
+    private final String algorithm;
+    private final int keySize;
+
+    CipherSuite(final int id, final String algorithm, final int keySize) {
+        this.id = id;
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * Returns the suite with the specified identifier
+     *
+     * @param id identifier written in the frame header
+     * @return <code>CipherSuite</code>
+     */
+    public static CipherSuite forId(final int id) throws NoSuchAlgorithmException {
+        for (final CipherSuite suite : values()) {
+            if (suite.id == id) {
+                return suite;
+            }
+        }
+        throw new NoSuchAlgorithmException("Unknown cipher suite " + id);
+    }
+
+    /**
+     * Returns the suite that signs with the specified key
+     *
+     * @param key signing key, private or public
+     * @return <code>CipherSuite</code>
+     */
+    public static CipherSuite forSigningKey(final Key key) throws NoSuchAlgorithmException {
+        if (key instanceof RSAKey) {
+            final int bitLength = ((RSAKey) key).getModulus().bitLength();
+            for (final CipherSuite suite : values()) {
+                if (suite.isRSA() && suite.keySize == bitLength) {
+                    return suite;
+                }
+            }
+        } else if ("Ed25519".equals(key.getAlgorithm()) || "EdDSA".equals(key.getAlgorithm())) {
+            return X25519_ED25519;
+        }
+        throw new NoSuchAlgorithmException("No cipher suite signs with " + key.getAlgorithm() + " keys");
+    }
+
+    /**
+     * Returns the suites offered by default, from the <code>cryptosystem.suites</code>
+     * system property
+     *
+     * @return <code>List</code> of suites in the configured order
+     */
+    public static List<CipherSuite> configured() {
+        final List<CipherSuite> suites = new ArrayList<>();
+        for (final String name : System.getProperty("cryptosystem.suites", DEFAULT_SUITES).split(",")) {
+            suites.add(valueOf(name.trim().toUpperCase()));
+        }
+        return suites;
+    }
+
+    /**
+     * Picks the most preferred suite offered by both clients. The result depends only
+     * on the two sets of suites, so both clients agree on it without another round trip.
+     *
+     * @param offered suites offered by this client
+     * @param other   suites offered by the other client
+     * @return <code>CipherSuite</code>
+     */
+    public static CipherSuite negotiate(final Collection<CipherSuite> offered, final Collection<CipherSuite> other)
+            throws NoSuchAlgorithmException {
+        for (final CipherSuite suite : values()) {
+            if (offered.contains(suite) && other.contains(suite)) {
+                return suite;
+            }
+        }
+        throw new NoSuchAlgorithmException("No common cipher suite in " + offered + " and " + other);
+    }
+
+    private boolean isRSA() {
+        return "RSA".equals(algorithm);
+    }
+
+    /**
+     * Generates a key-pair for signing
+     *
+     * @return <code>KeyPair</code>
+     */
+    public KeyPair generateSigningKeyPair() throws NoSuchAlgorithmException {
+        if (isRSA()) {
+            return KeyUtils.generate(algorithm, keySize);
+        }
+        return KeyPairGenerator.getInstance(algorithm, CertificateGenerator.PROVIDER).generateKeyPair();
+    }
+
+    /**
+     * Generates a key-pair for wrapping session keys. RSA suites wrap with the
+     * signing key-pair.
+     *
+     * @param signingKeyPair key-pair returned by {@link #generateSigningKeyPair()}
+     * @return <code>KeyPair</code>
+     */
+    public KeyPair generateAgreementKeyPair(final KeyPair signingKeyPair) throws NoSuchAlgorithmException {
+        if (isRSA()) {
+            return signingKeyPair;
+        }
+        return KeyPairGenerator.getInstance(AGREEMENT_ALGORITHM, CertificateGenerator.PROVIDER).generateKeyPair();
+    }
+
+    /**
+     * Decodes a public key of this suite from its X.509 encoding
+     *
+     * @param encoded X.509 encoding of the key
+     * @param signing whether the key is a signing key or an agreement key
+     * @return <code>PublicKey</code>
+     */
+    PublicKey decodePublicKey(final byte[] encoded, final boolean signing) throws GeneralSecurityException {
+        final KeyFactory factory = isRSA() ? KeyFactory.getInstance(algorithm)
+                : KeyFactory.getInstance(signing ? algorithm : AGREEMENT_ALGORITHM, CertificateGenerator.PROVIDER);
+        return factory.generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Signs a message digest
+     *
+     * @param digest digest of the message
+     * @param key    signing key of the sender
+     * @return <code>byte[]</code>
+     */
+    public byte[] sign(final byte[] digest, final PrivateKey key) throws NoSuchAlgorithmException,
+            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException,
+            SignatureException {
+        if (isRSA()) {
+            return RSAEncryption(digest, key);
+        }
+        final Signature signature = CryptoProviders.signature(CryptoProviders.Operation.ED25519);
+        signature.initSign(key);
+        signature.update(digest);
+        return signature.sign();
+    }
+
+    /**
+     * Verifies the signature of a message digest
+     *
+     * @param digest    digest of the message
+     * @param signature signature to verify
+     * @param key       signing key of the sender
+     * @return <code>boolean</code>
+     */
+    public boolean verify(final byte[] digest, final byte[] signature, final PublicKey key)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException,
+            BadPaddingException, SignatureException {
+        if (isRSA()) {
+            return Arrays.equals(RSADecryption(signature, key), digest);
+        }
+        final Signature verifier = CryptoProviders.signature(CryptoProviders.Operation.ED25519);
+        verifier.initVerify(key);
+        verifier.update(digest);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * Wraps session data for the receiver
+     *
+     * @param sessionData initialisation vector and session key
+     * @param key         agreement key of the receiver
+     * @return <code>byte[]</code>
+     */
+    public byte[] wrap(final byte[] sessionData, final PublicKey key) throws NoSuchAlgorithmException,
+            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        if (isRSA()) {
+            return RSAEncryption(sessionData, key);
+        }
+        final KeyPair ephemeral = KeyPairGenerator.getInstance(AGREEMENT_ALGORITHM, CertificateGenerator.PROVIDER)
+                .generateKeyPair();
+        final byte[] ephemeralKey = ephemeral.getPublic().getEncoded();
+        final Cipher cipher = CryptoProviders.cipher(CryptoProviders.Operation.AES_WRAP);
+        cipher.init(Cipher.WRAP_MODE, keyEncryptionKey(ephemeral.getPrivate(), key, ephemeralKey));
+        final byte[] wrapped = cipher.wrap(new SecretKeySpec(sessionData, "AES"));
+        final byte[] output = Arrays.copyOf(ephemeralKey, ephemeralKey.length + wrapped.length);
+        System.arraycopy(wrapped, 0, output, ephemeralKey.length, wrapped.length);
+        return output;
+    }
+
+    /**
+     * Unwraps session data wrapped by {@link #wrap(byte[], PublicKey)}
+     *
+     * @param wrapped wrapped session data
+     * @param key     agreement key of the receiver
+     * @return <code>byte[]</code>
+     */
+    public byte[] unwrap(final byte[] wrapped, final PrivateKey key) throws NoSuchAlgorithmException,
+            NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        if (isRSA()) {
+            return RSADecryption(wrapped, key);
+        }
+        if (wrapped.length <= X25519_ENCODED_LENGTH) {
+            throw new InvalidKeyException("Wrapped session data is too short");
+        }
+        final byte[] ephemeralKey = Arrays.copyOf(wrapped, X25519_ENCODED_LENGTH);
+        final PublicKey ephemeral;
+        try {
+            ephemeral = decodePublicKey(ephemeralKey, false);
+        } catch (GeneralSecurityException ex) {
+            throw new InvalidKeyException("Malformed ephemeral key", ex);
+        }
+        final Cipher cipher = CryptoProviders.cipher(CryptoProviders.Operation.AES_WRAP);
+        cipher.init(Cipher.UNWRAP_MODE, keyEncryptionKey(key, ephemeral, ephemeralKey));
+        return cipher.unwrap(Arrays.copyOfRange(wrapped, X25519_ENCODED_LENGTH, wrapped.length), "AES",
+                Cipher.SECRET_KEY).getEncoded();
+    }
+
+    /**
+     * Derives the key that wraps the session data from an X25519 shared secret
+     * and the ephemeral public key
+     *
+     * @param privateKey   private half of one side of the agreement
+     * @param publicKey    public half of the other side of the agreement
+     * @param ephemeralKey X.509 encoding of the ephemeral public key
+     * @return <code>SecretKeySpec</code>
+     */
+    private static SecretKeySpec keyEncryptionKey(final PrivateKey privateKey, final PublicKey publicKey,
+                                                  final byte[] ephemeralKey)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        final KeyAgreement agreement = CryptoProviders.keyAgreement(CryptoProviders.Operation.X25519);
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        final MessageDigest digest = CryptoProviders.messageDigest(CryptoProviders.Operation.SHA_256);
+        digest.update(agreement.generateSecret());
+        digest.update(ephemeralKey);
+        return new SecretKeySpec(digest.digest(), 0, 16, "AES");
+    }
+
+    /**
+     * RSA encrypts a byte-array with a specified key using the {@link Cipher}.
+     *
+     * @param messageBytes bytes of message to be encrypted
+     * @param key          specified RSA key
+     * @return <code>byte[]</code>
+     */
+    private static byte[] RSAEncryption(final byte[] messageBytes, final Key key) throws NoSuchPaddingException,
+            NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+        final Cipher encryptCipher = CryptoProviders.cipher(CryptoProviders.Operation.RSA);
+        encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+        return encryptCipher.doFinal(messageBytes);
+    }
+
+    /**
+     * Decrypts an RSA encrypted byte-array with a specified key using the
+     * {@link Cipher}.
+     *
+     * @param encryptedMessageBytes bytes of message to be decrypted
+     * @param key                   specified RSA key
+     * @return <code>byte[]</code>
+     */
+    private static byte[] RSADecryption(final byte[] encryptedMessageBytes, final Key key) throws InvalidKeyException,
+            NoSuchAlgorithmException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException {
+        final Cipher decryptCipher = CryptoProviders.cipher(CryptoProviders.Operation.RSA);
+        decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        return decryptCipher.doFinal(encryptedMessageBytes);
+    }
+}
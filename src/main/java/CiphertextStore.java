@@ -0,0 +1,295 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * <code>CiphertextStore</code> is a concrete class that keeps received messages encrypted
+ * on disk and decrypts them on demand. A client in deferred mode stores each message
+ * after checking that its envelope is well formed with {@link PGPUtils#checkEnvelope(byte[])},
+ * so receiving a message costs no private key operation, decryption or decompression, and
+ * images stay encrypted at rest until they are opened with {@link #open(long, SuiteKeys, PublicKey)}.
+ * Only the framing is checked when a message is stored; its signature is verified when it
+ * is opened, so a stored message has not been authenticated.
+ * <p>
+ * Each message is written to <code>&lt;id&gt;.pgp</code> and atomically renamed into place
+ * before its entry is appended to <code>index.tsv</code>, one tab separated line of the
+ * identifier, sender, time received, size, the SHA-256 digest of the ciphertext, the
+ * fingerprint of the keys it was encrypted for and the fingerprint of the certificate of
+ * the sender, which is kept in <code>&lt;fingerprint&gt;.crt</code>. The caption is
+ * encrypted, so it is only known once a message is opened. A torn entry at the end of the
+ * index, left by a crash, is truncated when the store is opened, and malformed entries
+ * are skipped.
+ * <p>
+ * The client keeps the keys messages are encrypted for in the password-protected PKCS12
+ * key store {@link #KEYS} next to the messages, so that they can be opened after a restart.
+ * Entries stored under other keys, or without the certificate of their sender, are not
+ * loaded; their number is logged and reported by {@link #getUnopenable()}, and opening
+ * one fails with an explanation.
+ *
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @version %I%, %G%
+ * @see PGPUtils
+ */
+public class CiphertextStore {
+
+    /**
+     * Name of the key store that holds the keys of the client in the directory of the store
+     */
+    public static final String KEYS = "keys.pkcs12";
+    private static final String INDEX = "index.tsv";
+    private static final String EXTENSION = ".pgp";
+    private static final String CERTIFICATE_EXTENSION = ".crt";
+    private static final Logger LOGGER = Logger.getLogger(CiphertextStore.class.getName());
+    private final Path directory;
+    private final Path index;
+    private final String keyFingerprint;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private final Set<Long> unopenable = new HashSet<>();
+    private long nextId = 1;
+
+    /**
+     * Class constructor specifying the directory to store messages in and the keys they
+     * are encrypted for. The directory is created if it does not exist, and entries stored
+     * under the same keys are loaded.
+     *
+     * @param directory      directory of the store
+     * @param keyFingerprint fingerprint of the public keys of the receiving client
+     */
+    public CiphertextStore(Path directory, String keyFingerprint) throws IOException {
+        this.directory = directory;
+        this.index = directory.resolve(INDEX);
+        this.keyFingerprint = keyFingerprint;
+        Files.createDirectories(directory);
+        if (Files.exists(index)) {
+            byte[] contents = Files.readAllBytes(index);
+            int end = contents.length;
+            while (end > 0 && contents[end - 1] != '\n') {
+                end--;
+            }
+            if (end < contents.length) {
+                LOGGER.warning("Truncating torn entry at the end of " + index);
+                try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+                    channel.truncate(end);
+                }
+            }
+            for (String line : new String(contents, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Entry entry;
+                try {
+                    entry = Entry.parse(line);
+                } catch (IOException ex) {
+                    LOGGER.warning("Skipping " + ex.getMessage());
+                    continue;
+                }
+                if (keyFingerprint.equals(entry.keyFingerprint) && !entry.senderFingerprint.isEmpty()) {
+                    entries.put(entry.getId(), entry);
+                } else {
+                    unopenable.add(entry.getId());
+                }
+                nextId = Math.max(nextId, entry.getId() + 1);
+            }
+        }
+        if (!unopenable.isEmpty()) {
+            LOGGER.warning(unopenable.size() + " messages in " + directory
+                    + " were stored under other keys and cannot be opened");
+        }
+    }
+
+    /**
+     * Stores a received message without decrypting it, together with the certificate
+     * of its sender if it is not already held
+     *
+     * @param sender      alias of the sender
+     * @param certificate certificate of the sender
+     * @param pgpMessage  encoded message
+     * @return <code>Entry</code> of the stored message
+     */
+    public synchronized Entry store(String sender, X509Certificate certificate, byte[] pgpMessage)
+            throws IOException, GeneralSecurityException {
+        PGPUtils.checkEnvelope(pgpMessage);
+        byte[] encodedCertificate = certificate.getEncoded();
+        String senderFingerprint = CertificateCache.fingerprint(encodedCertificate);
+        Path certificatePath = certificatePath(senderFingerprint);
+        if (!Files.exists(certificatePath)) {
+            write(certificatePath, encodedCertificate);
+        }
+        Entry entry = new Entry(nextId, sender.replaceAll("\\s", "_"), System.currentTimeMillis(),
+                pgpMessage.length, ContentIndex.digest(pgpMessage), keyFingerprint, senderFingerprint);
+        write(path(entry.getId()), pgpMessage);
+        Files.write(index, (entry + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        entries.put(entry.getId(), entry);
+        nextId++;
+        return entry;
+    }
+
+    /**
+     * Reads, decrypts and verifies a stored message. The cipher suite is read from the
+     * message, and the certificate of the sender is verified with the public key of the
+     * Certificate Authority before its signing key is used.
+     *
+     * @param id    identifier of the message
+     * @param keys  keys of the receiver
+     * @param caKey public key of the Certificate Authority
+     * @return <code>Message</code>
+     */
+    public Message open(long id, SuiteKeys keys, PublicKey caKey)
+            throws IOException, GeneralSecurityException, DataFormatException {
+        Entry entry = getEntry(id);
+        if (entry == null) {
+            throw new IOException(isUnopenable(id)
+                    ? "Message " + id + " was stored under other keys and cannot be opened"
+                    : "No stored message " + id);
+        }
+        byte[] pgpMessage = Files.readAllBytes(path(id));
+        CipherSuite suite = PGPUtils.checkEnvelope(pgpMessage);
+        byte[] encodedCertificate = Files.readAllBytes(certificatePath(entry.senderFingerprint));
+        if (!entry.senderFingerprint.equals(CertificateCache.fingerprint(encodedCertificate))) {
+            throw new GeneralSecurityException("Certificate of the sender of message " + id + " has been altered");
+        }
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(encodedCertificate));
+        certificate.verify(caKey);
+        SuiteKeys senderKeys = SuiteKeys.fromCertificate(certificate);
+        if (!keys.getSuites().contains(suite) || !senderKeys.getSuites().contains(suite)) {
+            throw new GeneralSecurityException("Message " + id + " uses " + suite + ", which is not offered");
+        }
+        return PGPUtils.PGPDecode(pgpMessage, keys.getAgreementKey(suite), senderKeys.getPublicSigningKey(suite),
+                LOGGER);
+    }
+
+    public synchronized Entry getEntry(long id) {
+        return entries.get(id);
+    }
+
+    private synchronized boolean isUnopenable(long id) {
+        return unopenable.contains(id);
+    }
+
+    /**
+     * Returns the number of stored messages that were encrypted for other keys
+     *
+     * @return <code>int</code>
+     */
+    public synchronized int getUnopenable() {
+        return unopenable.size();
+    }
+
+    /**
+     * Returns the entries of the stored messages in the order they were received
+     *
+     * @return <code>List</code>
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+    }
+
+    private Path path(long id) {
+        return directory.resolve(id + EXTENSION);
+    }
+
+    private Path certificatePath(String fingerprint) {
+        return directory.resolve(fingerprint + CERTIFICATE_EXTENSION);
+    }
+
+    /**
+     * Writes a file to a temporary file that is atomically renamed into place
+     */
+    private static void write(Path target, byte[] data) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".part");
+        Files.write(temp, data);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * <code>Entry</code> is a line of the index of a {@link CiphertextStore}
+     */
+    public static final class Entry {
+
+        private final long id;
+        private final String sender;
+        private final long time;
+        private final long size;
+        private final String digest;
+        private final String keyFingerprint;
+        private final String senderFingerprint;
+
+        private Entry(long id, String sender, long time, long size, String digest, String keyFingerprint,
+                      String senderFingerprint) {
+            this.id = id;
+            this.sender = sender;
+            this.time = time;
+            this.size = size;
+            this.digest = digest;
+            this.keyFingerprint = keyFingerprint;
+            this.senderFingerprint = senderFingerprint;
+        }
+
+        /**
+         * Parses a line of the index. Lines written before the key fingerprint or the
+         * certificate of the sender were recorded leave them empty and cannot be opened.
+         */
+        private static Entry parse(String line) throws IOException {
+            String[] fields = line.split("\t");
+            if (fields.length < 5 || fields.length > 7) {
+                throw new IOException("Malformed index entry: " + line);
+            }
+            try {
+                return new Entry(Long.parseLong(fields[0]), fields[1], Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]), fields[4], fields.length > 5 ? fields[5] : "",
+                        fields.length > 6 ? fields[6] : "");
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed index entry: " + line, ex);
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        @Override
+        public String toString() {
+            return id + "\t" + sender + "\t" + time + "\t" + size + "\t" + digest + "\t" + keyFingerprint
+                    + "\t" + senderFingerprint;
+        }
+    }
+}
@@ -1,21 +1,28 @@
 import java.io.*;
 import java.net.Socket;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
 /**
  * <code>Client</code> is a concrete class that represents a connected
- * client. A <code>Client</code> generates a public-private key pair and
- * a signed certificate with it's public key. The certificate is used to
- * authenticate the communication {@link Session}. A <code>Client</code>
+ * client. A <code>Client</code> generates key-pairs for the cipher suites it offers and
+ * a signed certificate with it's public keys. The certificate is used to
+ * authenticate the communication {@link Session} and to negotiate the
+ * {@link CipherSuite} used for messages. A <code>Client</code>
  * spawns two handlers that control the dispatch and retrieval of messages
  * to and from the {@link Server} to facilitate the simultaneous exchange
- * of encrypted messages.
+ * of encrypted messages. When the <code>cryptosystem.deferred</code> system property
+ * is set, received messages are kept encrypted in a {@link CiphertextStore} and decrypted
+ * when they are opened, and the key-pairs of the client are kept with them in a
+ * password-protected key store so that they can be opened after a restart. Every saved
+ * image is recorded in a {@link MessageHistory}.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -30,9 +37,18 @@ public class Client {
     private static final SecretsManager SECRETS_MANAGER = new SecretsManager();
     private final String hostname;
     private final int port;
-    private final PublicKey CAPublicKey;
-    private final KeyPair keyPair;
+    private SuiteKeys keys;
+    private String keyFingerprint;
+    private char[] storePassword;
+    private final TrustCache trustCache;
+    private final RevocationList revocationList;
+    private final boolean deferred = Boolean.getBoolean("cryptosystem.deferred");
+    private final ContentIndex<Boolean> heldByOther = new ContentIndex<>(ContentIndex.SENDER_CAPACITY);
+    private CiphertextStore store;
+    private MessageHistory history;
     private KeyStore keyStore;
+    private SuiteKeys otherKeys;
+    private CipherSuite suite;
     private boolean otherKeyAuthenticated;
     private String alias;
     private String path;
@@ -43,8 +59,10 @@ public class Client {
     public Client(String hostname, int port) throws NoSuchAlgorithmException {
         this.hostname = hostname;
         this.port = port;
-        this.CAPublicKey = SECRETS_MANAGER.getPublicKey();
-        this.keyPair = KeyUtils.generate("RSA", 1024);
+        this.keys = SuiteKeys.generate(CipherSuite.configured());
+        this.keyFingerprint = ContentIndex.digest(keys.getSubjectPublicKey().getEncoded());
+        this.trustCache = TrustCache.persistent(SECRETS_MANAGER::getKeyPair);
+        this.revocationList = new RevocationList(SECRETS_MANAGER::getPublicKey);
         this.otherKeyAuthenticated = false;
         loadKeyStore();
     }
@@ -93,10 +111,24 @@ public class Client {
             LOGGER.warning(ex.getMessage());
         }
 
-        PRETTIER.print("System", "Please wait until a secure session is established.");
-
         client.setAlias(alias);
         client.setPath(path);
+
+        if (client.isDeferred()) {
+            PRETTIER.print("System", "Enter the password that protects the keys of stored messages");
+            try {
+                String password = stdin.readLine();
+                while (password != null && !client.unlockStore(password.toCharArray())) {
+                    PRETTIER.print("System", "The keys cannot be unlocked with this password. Try again");
+                    password = stdin.readLine();
+                }
+            } catch (IOException ex) {
+                LOGGER.warning(ex.getMessage());
+            }
+        }
+
+        PRETTIER.print("System", "Please wait until a secure session is established.");
+
         client.getCASignedCertificate();
         client.connect();
     }
@@ -119,17 +151,54 @@ public class Client {
     }
 
     /**
-     * Generates a certificate containing the public key of the client
+     * Generates a certificate containing the public keys of the client
      * signed using the private key of the Certificate Authority.
-     * Stores the certificate in an in-memory key store.
+     * Stores the certificate in an in-memory key store. In deferred mode, keys
+     * that are not yet kept with the stored messages are saved with the certificate.
      */
     private void getCASignedCertificate() {
-        X509Certificate certificate = SECRETS_MANAGER.generateCertificate(this.alias, this.keyPair.getPublic());
+        X509Certificate certificate = SECRETS_MANAGER.generateCertificate(this.alias, this.keys);
         try {
             keyStore.setCertificateEntry(alias, certificate);
         } catch (KeyStoreException ex) {
             LOGGER.warning(ex.getMessage());
         }
+        Path storedKeys = storeDirectory().resolve(CiphertextStore.KEYS);
+        if (deferred && storePassword != null && !Files.exists(storedKeys)) {
+            try {
+                keys.save(storedKeys, storePassword, certificate);
+            } catch (IOException | GeneralSecurityException ex) {
+                LOGGER.log(Level.WARNING, "Keys cannot be saved, stored messages can only be opened by this run: "
+                        + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Unlocks the key-pairs that stored messages are encrypted for, so that messages stored
+     * by an earlier run can be opened. The first run keeps the key-pairs it generated, and
+     * saves them under the password once its certificate has been issued.
+     *
+     * @param password password of the key store
+     * @return <code>boolean</code> whether the key store could be read with the password
+     */
+    public boolean unlockStore(char[] password) {
+        Path storedKeys = storeDirectory().resolve(CiphertextStore.KEYS);
+        if (Files.exists(storedKeys)) {
+            try {
+                keys = SuiteKeys.load(storedKeys, password);
+                keyFingerprint = ContentIndex.digest(keys.getSubjectPublicKey().getEncoded());
+            } catch (IOException | GeneralSecurityException ex) {
+                LOGGER.warning(ex.getMessage());
+                return false;
+            }
+        }
+        storePassword = password;
+        return true;
+    }
+
+    private Path storeDirectory() {
+        return Paths.get(path).resolve("encrypted");
     }
 
     /**
@@ -141,13 +210,13 @@ public class Client {
     private void connect() {
         try {
             Socket socket = new Socket(hostname, port);
-            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+            BoundedObjectOutputStream outputStream = new BoundedObjectOutputStream(socket.getOutputStream());
             ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
 
             new AuthenticationHandler(socket, outputStream, this).start();
             new CertificateHandler(socket, inputStream, this).start();
             new MessageDispatchHandler(socket, outputStream, this).start();
-            new MessageRetrievalHandler(socket, inputStream, this).start();
+            new MessageRetrievalHandler(socket, inputStream, outputStream, this).start();
 
         } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, ex.getMessage());
@@ -168,6 +237,91 @@ public class Client {
         return this.alias;
     }
 
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Returns the history of saved images, in the <code>history</code>
+     * subdirectory of the output directory
+     *
+     * @return <code>MessageHistory</code>
+     */
+    public synchronized MessageHistory getHistory() throws IOException {
+        if (history == null) {
+            history = new MessageHistory(Paths.get(path).resolve("history"));
+        }
+        return history;
+    }
+
+    /**
+     * Records an image received from the other client in the history
+     *
+     * @param caption caption of the image
+     * @param digest  hex-encoded SHA-256 digest of the image
+     * @param file    saved image file
+     */
+    public void recordHistory(String caption, String digest, Path file) {
+        try {
+            getHistory().append(getOtherAlias(), caption, digest, file.getFileName().toString());
+        } catch (IOException | KeyStoreException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether the other client has confirmed that it holds an image,
+     * in which case a reference may be sent in its place
+     *
+     * @param digest hex-encoded SHA-256 digest of the image
+     * @return <code>boolean</code>
+     */
+    public boolean isHeldByOther(String digest) {
+        return heldByOther.get(digest) != null;
+    }
+
+    /**
+     * Records a receipt from the other client. An image it holds may be sent as a
+     * reference from now on. An image it could not restore is sent in full again.
+     *
+     * @param receipt receipt message
+     */
+    public void acceptReceipt(Message receipt) {
+        String digest = receipt.getReceiptDigest();
+        if (receipt.isHeld()) {
+            heldByOther.put(digest, Boolean.TRUE);
+        } else {
+            heldByOther.remove(digest);
+            PRETTIER.print("System", "The image '" + receipt.getCaption()
+                    + "' could not be restored by the recipient. Send it again to deliver it in full");
+        }
+    }
+
+    /**
+     * Returns the store of received messages awaiting decryption, in the
+     * <code>encrypted</code> subdirectory of the output directory. Only messages
+     * encrypted for the keys of this client are loaded.
+     *
+     * @return <code>CiphertextStore</code>, or <code>null</code> if decryption is not deferred
+     */
+    public synchronized CiphertextStore getStore() throws IOException {
+        if (store == null && deferred) {
+            store = new CiphertextStore(storeDirectory(), keyFingerprint);
+        }
+        return store;
+    }
+
+    /**
+     * Decrypts a stored message with the keys of this client and the certificate
+     * of its sender that was stored with it
+     *
+     * @param id identifier of the stored message
+     * @return <code>Message</code>
+     */
+    public Message openStored(long id) throws IOException, GeneralSecurityException, DataFormatException {
+        return getStore().open(id, keys, SECRETS_MANAGER.getPublicKey());
+    }
+
     public void setAlias(String alias) {
         this.alias = alias;
     }
@@ -176,12 +330,24 @@ public class Client {
         return (X509Certificate) keyStore.getCertificate(alias);
     }
 
-    public PrivateKey getPrivateKey() {
-        return keyPair.getPrivate();
+    public PrivateKey getSigningKey() {
+        return keys.getSigningKey(suite);
     }
 
-    public PublicKey getOtherPublicKey() throws KeyStoreException {
-        return keyStore.getCertificate("other").getPublicKey();
+    public PrivateKey getAgreementKey() {
+        return keys.getAgreementKey(suite);
+    }
+
+    public PublicKey getOtherSigningKey() {
+        return otherKeys.getPublicSigningKey(suite);
+    }
+
+    public PublicKey getOtherAgreementKey() {
+        return otherKeys.getPublicAgreementKey(suite);
+    }
+
+    public X509Certificate getOtherCertificate() throws KeyStoreException {
+        return (X509Certificate) keyStore.getCertificate("other");
     }
 
     public String getOtherAlias() throws KeyStoreException {
@@ -206,14 +372,35 @@ public class Client {
 
     /**
      * Verifies the authenticity of a client using it's certificate.
-     * Verification uses the public key
-     * of the trusted Certificate Authority.
+     * Verification uses the current public key
+     * of the trusted Certificate Authority, so certificates issued after the CA keystore
+     * is reloaded are accepted. Certificates that have previously
+     * been verified are looked up by fingerprint in the {@link TrustCache}
+     * and skip the signature check until they expire. Every certificate
+     * is checked against the {@link RevocationList}.
      * Unverified certificates throw an <code>InvalidKeyException</code>
-     * exception
+     * exception. Once verified, the cipher suite is negotiated from the
+     * suites offered in both certificates, and the client is disconnected
+     * if there is no common suite.
      */
     public void verifyOtherCertificate() {
         try {
-            this.keyStore.getCertificate("other").verify(CAPublicKey);
+            X509Certificate certificate = (X509Certificate) this.keyStore.getCertificate("other");
+            if (!revocationList.refresh()) {
+                LOGGER.severe("Certificate cannot be checked, the CA key is unavailable");
+                kill();
+            }
+            if (revocationList.isRevoked(certificate)) {
+                LOGGER.severe("Certificate " + certificate.getSerialNumber() + " has been revoked");
+                kill();
+            }
+            String fingerprint = CertificateCache.fingerprint(certificate.getEncoded());
+            if (!trustCache.isTrusted(fingerprint)) {
+                certificate.verify(SECRETS_MANAGER.getPublicKey());
+                trustCache.trust(fingerprint, certificate.getNotAfter().getTime());
+            }
+            otherKeys = SuiteKeys.fromCertificate(certificate);
+            negotiateSuite();
             this.otherKeyAuthenticated = true;
 
         } catch (InvalidKeyException ex) {
@@ -225,6 +412,19 @@ public class Client {
         }
     }
 
+    /**
+     * Picks the cipher suite offered by both clients
+     */
+    private void negotiateSuite() {
+        try {
+            suite = CipherSuite.negotiate(keys.getSuites(), otherKeys.getSuites());
+            LOGGER.info("Negotiated cipher suite " + suite);
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.severe(ex.getMessage());
+            kill();
+        }
+    }
+
     public boolean isOtherKeyAuthenticated() {
         return otherKeyAuthenticated;
     }
@@ -234,6 +434,15 @@ public class Client {
      */
     public void kill() {
         PRETTIER.print("System", "You are being disconnected from CryptoSystem");
+        synchronized (this) {
+            if (history != null) {
+                try {
+                    history.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, ex.getMessage());
+                }
+            }
+        }
         System.exit(0);
     }
 }
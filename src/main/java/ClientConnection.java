@@ -0,0 +1,421 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * <code>ClientConnection</code> is a concrete class that embeds a client in another
+ * program without the console. It connects to a {@link Server}, sends the alias and a
+ * certificate signed by the Certificate Authority, verifies the certificate of the other
+ * client like {@link Client} does, negotiates a {@link CipherSuite} and authenticates the session.
+ * <p>
+ * Images are sent with {@link #sendAsync(byte[], String)}, which returns without waiting
+ * for the message to be encoded or written. Messages are encoded on a worker pool and written
+ * to the socket by a single writer thread in the order <code>sendAsync</code> was called. When
+ * the pool is saturated the caller encodes the message itself, which bounds the memory held
+ * by pending messages. Received messages are decoded on the same pool and published in
+ * the order they were received to subscribers of this {@link Flow.Publisher}, or to a
+ * callback registered with {@link #onMessage(Consumer)}. A slow subscriber applies
+ * back-pressure to the socket.
+ * <p>
+ * Programs that send bursts of small images can enable batch signing with
+ * {@link #enableBatchSigning(int, long, TimeUnit)}, so that images sent close together
+ * share one signature through a {@link BatchSigner}.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see Client
+ */
+public class ClientConnection implements Flow.Publisher<Message>, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ClientConnection.class.getName());
+    private static final int WORKER_QUEUE_CAPACITY = 1024;
+    private final String hostname;
+    private final int port;
+    private final String alias;
+    private final SuiteKeys keys;
+    private final X509Certificate certificate;
+    private final Supplier<PublicKey> CAPublicKey;
+    private final TrustCache trustCache;
+    private final RevocationList revocationList;
+    private final ThreadPoolExecutor workers;
+    private final ExecutorService writer;
+    private final Semaphore decoding;
+    private final SubmissionPublisher<Message> publisher = new SubmissionPublisher<>();
+    private final CompletableFuture<X509Certificate> peer = new CompletableFuture<>();
+    private final CommandMessageFactory commandMessageFactory = new CommandMessageFactory();
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private volatile SuiteKeys otherKeys;
+    private volatile CipherSuite suite;
+    private BatchSigner batchSigner;
+    private int batchMessages;
+    private long batchWindow;
+    private TimeUnit batchUnit;
+    private Socket socket;
+    private BoundedObjectOutputStream outputStream;
+    private volatile boolean closed;
+
+    /**
+     * Class constructor specifying server hostname, port and alias. Generates
+     * key-pairs for the configured cipher suites and has them certified by the
+     * Certificate Authority.
+     */
+    public ClientConnection(String hostname, int port, String alias) throws NoSuchAlgorithmException {
+        this(hostname, port, alias, SuiteKeys.generate(CipherSuite.configured()), new SecretsManager());
+    }
+
+    private ClientConnection(String hostname, int port, String alias, SuiteKeys keys,
+                             SecretsManager secretsManager) throws NoSuchAlgorithmException {
+        this(hostname, port, alias, keys, secretsManager.generateCertificate(alias, keys),
+                secretsManager::getPublicKey, TrustCache.persistent(secretsManager::getKeyPair));
+    }
+
+    /**
+     * Class constructor specifying server hostname, port and alias, an RSA key-pair,
+     * its certificate and the public key of the Certificate Authority
+     */
+    public ClientConnection(String hostname, int port, String alias, KeyPair keyPair,
+                            X509Certificate certificate, PublicKey CAPublicKey) throws NoSuchAlgorithmException {
+        this(hostname, port, alias, SuiteKeys.of(keyPair), certificate, CAPublicKey);
+    }
+
+    /**
+     * Class constructor specifying server hostname, port and alias, key-pairs for
+     * the offered cipher suites, the certificate offering them and the public key
+     * of the Certificate Authority
+     */
+    public ClientConnection(String hostname, int port, String alias, SuiteKeys keys,
+                            X509Certificate certificate, PublicKey CAPublicKey) throws NoSuchAlgorithmException {
+        this(hostname, port, alias, keys, certificate, () -> CAPublicKey, new TrustCache(CAPublicKey));
+    }
+
+    /**
+     * Class constructor specifying server hostname and port, alias, key-pairs, certificate
+     * a source of the current public key of the Certificate Authority, which is looked
+     * up whenever a peer is verified, and the cache of verified certificates
+     */
+    private ClientConnection(String hostname, int port, String alias, SuiteKeys keys,
+                             X509Certificate certificate, Supplier<PublicKey> CAPublicKey, TrustCache trustCache)
+            throws NoSuchAlgorithmException {
+        this.hostname = hostname;
+        this.port = port;
+        this.alias = alias;
+        this.keys = keys;
+        this.certificate = certificate;
+        this.CAPublicKey = CAPublicKey;
+        this.trustCache = trustCache;
+        this.revocationList = new RevocationList(CAPublicKey);
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORKER_QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, alias + "-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, alias + "-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.decoding = new Semaphore(2 * threads);
+    }
+
+    /**
+     * Connects to the server and sends the alias and certificate of this client.
+     * The handshake completes in the background; use {@link #authenticatedPeer()}
+     * to wait for it.
+     */
+    public void connect() throws IOException {
+        socket = new Socket(hostname, port);
+        outputStream = new BoundedObjectOutputStream(socket.getOutputStream());
+        ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
+        outputStream.send(alias);
+        outputStream.send(certificate);
+        Thread reader = new Thread(() -> read(inputStream), alias + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns a future that completes with the alias of the other client once its
+     * certificate has been verified and this client has authenticated the session
+     *
+     * @return <code>CompletableFuture</code>
+     */
+    public CompletableFuture<String> authenticatedPeer() {
+        return peer.thenApply(other -> other.getSubjectDN().getName().substring(3));
+    }
+
+    /**
+     * Signs images sent with {@link #sendAsync(byte[], String)} in batches rather than
+     * one at a time. A batch is signed once it holds <code>maxMessages</code> images or
+     * when <code>window</code> has passed since its first image.
+     *
+     * @param maxMessages maximum number of images signed together
+     * @param window      time a batch waits for further images after its first
+     * @param unit        unit of <code>window</code>
+     */
+    public synchronized void enableBatchSigning(int maxMessages, long window, TimeUnit unit) {
+        if (batchSigner != null) {
+            batchSigner.close();
+            batchSigner = null;
+        }
+        batchMessages = maxMessages;
+        batchWindow = window;
+        batchUnit = unit;
+    }
+
+    /**
+     * Returns the batch signer for the negotiated cipher suite, creating it on first use
+     *
+     * @return <code>BatchSigner</code>, or <code>null</code> if batch signing is not enabled
+     */
+    private synchronized BatchSigner batchSigner() {
+        if (batchSigner == null && batchMessages > 0) {
+            batchSigner = new BatchSigner(keys.getSigningKey(suite), batchMessages, batchWindow, batchUnit);
+        }
+        return batchSigner;
+    }
+
+    /**
+     * Encodes and sends an image to the other client without blocking the caller.
+     * Images are written in the order this method is called, once the peer
+     * has been authenticated.
+     *
+     * @param image   raw image bytes
+     * @param caption image caption
+     * @return <code>CompletableFuture</code> completed once the encrypted message is written to the socket,
+     * or failed if the connection is closed
+     */
+    public synchronized CompletableFuture<Void> sendAsync(byte[] image, String caption) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Connection is closed"));
+        }
+        CompletableFuture<byte[]> encoded = peer.thenComposeAsync(other -> {
+            BatchSigner signer = batchSigner();
+            return signer == null ? CompletableFuture.completedFuture(encode(image, caption))
+                    : encode(image, caption, signer);
+        }, workers);
+        lastWrite = lastWrite.handle((ignored, ex) -> null)
+                .thenCombineAsync(encoded, (ignored, frame) -> write(frame), writer);
+        return lastWrite;
+    }
+
+    /**
+     * Registers a callback invoked with every message received from the other client
+     *
+     * @param consumer callback for received messages
+     * @return <code>CompletableFuture</code> completed when the connection is closed
+     */
+    public CompletableFuture<Void> onMessage(Consumer<Message> consumer) {
+        return publisher.consume(consumer);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Waits for pending messages to be written, sends a {@link QuitMessage}
+     * and closes the connection. Messages still waiting for the other client
+     * to be authenticated are failed rather than waited for.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> quit;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            quit = lastWrite.handle((ignored, ex) -> null).thenRunAsync(() ->
+                    write(commandMessageFactory.getCommandMessage("QUIT", alias)), writer);
+        }
+        peer.completeExceptionally(new IOException("Connection closed before the other client was authenticated"));
+        try {
+            quit.join();
+        } catch (CompletionException ex) {
+            LOGGER.log(Level.WARNING, ex.getCause().getMessage());
+        }
+        shutdown();
+    }
+
+    private void shutdown() {
+        closed = true;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+        synchronized (this) {
+            if (batchSigner != null) {
+                batchSigner.close();
+            }
+        }
+        workers.shutdown();
+        writer.shutdown();
+        publisher.close();
+    }
+
+    /**
+     * Reads the certificate of the other client and authenticates the session,
+     * then reads messages until the connection closes. Each message is decoded on
+     * the worker pool and published once every earlier message has been published.
+     *
+     * @param inputStream stream attached to the socket
+     */
+    private void read(ObjectInputStream inputStream) {
+        try {
+            X509Certificate other = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream((byte[]) inputStream.readObject()));
+            verify(other);
+            otherKeys = SuiteKeys.fromCertificate(other);
+            suite = CipherSuite.negotiate(keys.getSuites(), otherKeys.getSuites());
+            LOGGER.info("Negotiated cipher suite " + suite);
+            outputStream.send(commandMessageFactory.getCommandMessage("AUTH", alias));
+            peer.complete(other);
+        } catch (IOException | ClassNotFoundException | GeneralSecurityException ex) {
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+            peer.completeExceptionally(ex);
+            shutdown();
+            return;
+        }
+
+        CompletableFuture<Void> published = CompletableFuture.completedFuture(null);
+        try {
+            while (true) {
+                Object object = inputStream.readObject();
+                if (object instanceof CommandMessage) {
+                    LOGGER.info(((CommandMessage) object).getMessage());
+                    break;
+                }
+                byte[] frame = (byte[]) object;
+                decoding.acquire();
+                CompletableFuture<Message> decoded = CompletableFuture.supplyAsync(() -> decode(frame), workers)
+                        .whenComplete((message, ex) -> decoding.release());
+                published = published.thenCombine(decoded.handle((message, ex) -> {
+                    if (ex != null) {
+                        LOGGER.log(Level.WARNING, ex.getCause().getMessage());
+                    }
+                    return message;
+                }), (ignored, message) -> {
+                    if (message != null && !message.isReceipt()) {
+                        publisher.submit(message);
+                    }
+                    return null;
+                });
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            if (!closed) {
+                LOGGER.log(Level.WARNING, ex.getMessage());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        published.thenRun(this::shutdown);
+    }
+
+    /**
+     * Verifies a certificate against the {@link RevocationList} and the public key of the
+     * Certificate Authority. Certificates in the {@link TrustCache} skip the signature check.
+     *
+     * @param other certificate of the other client
+     */
+    private void verify(X509Certificate other) throws GeneralSecurityException {
+        if (!revocationList.refresh()) {
+            throw new GeneralSecurityException("Certificate " + other.getSerialNumber()
+                    + " cannot be checked, the CA key is unavailable");
+        }
+        if (revocationList.isRevoked(other)) {
+            throw new GeneralSecurityException("Certificate " + other.getSerialNumber() + " has been revoked");
+        }
+        String fingerprint = CertificateCache.fingerprint(other.getEncoded());
+        if (!trustCache.isTrusted(fingerprint)) {
+            other.verify(CAPublicKey.get());
+            trustCache.trust(fingerprint, other.getNotAfter().getTime());
+        }
+    }
+
+    private byte[] encode(byte[] image, String caption) {
+        try {
+            Message message = new Message(Base64.getEncoder().encodeToString(image), caption);
+            return PGPUtils.PGPEncode(message, keys.getSigningKey(suite), otherKeys.getPublicAgreementKey(suite),
+                    LOGGER);
+        } catch (GeneralSecurityException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private CompletableFuture<byte[]> encode(byte[] image, String caption, BatchSigner signer) {
+        Message message = new Message(Base64.getEncoder().encodeToString(image), caption);
+        byte[] leaf;
+        try {
+            byte[] messageBytes = message.toString().getBytes();
+            leaf = MerkleTree.leaf(signer.getHashAlgorithm(), messageBytes, 0, messageBytes.length);
+        } catch (NoSuchAlgorithmException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return signer.sign(leaf).thenApplyAsync(signature -> {
+            try {
+                return PGPUtils.PGPEncode(message, signature, otherKeys.getPublicAgreementKey(suite), LOGGER);
+            } catch (GeneralSecurityException ex) {
+                throw new CompletionException(ex);
+            }
+        }, workers);
+    }
+
+    private Message decode(byte[] frame) {
+        try {
+            return PGPUtils.PGPDecode(frame, keys.getAgreementKey(suite), otherKeys.getPublicSigningKey(suite), LOGGER);
+        } catch (GeneralSecurityException | DataFormatException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * Writes an object to the socket. The stream is reset periodically so that
+     * neither end retains a reference to every frame it has sent.
+     *
+     * @param object object to write
+     * @return <code>Void</code>
+     */
+    private Void write(Object object) {
+        try {
+            outputStream.send(object);
+            return null;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
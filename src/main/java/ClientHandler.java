@@ -1,8 +1,6 @@
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
-import java.security.KeyStoreException;
 import java.security.cert.X509Certificate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,7 +11,7 @@ import java.util.logging.Logger;
  * an incoming connection request. A <code>ClientHandler</code> is responsible
  * for retrieving dispatched messages from a client and delivering
  * messages to a client on behalf of the server. <code>ClientHandler</code> reads from an
- * {@link ObjectInputStream} and writes to an {@link ObjectOutputStream}.
+ * {@link ObjectInputStream} and writes to a {@link BoundedObjectOutputStream}.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -26,22 +24,28 @@ public class ClientHandler extends Thread {
     private static final Logger LOGGER = Logger.getLogger(ClientHandler.class.getName());
     private final Socket socket;
     private final Server server;
-    private ObjectOutputStream outputStream;
+    private final Session session;
+    private final long acceptedNanos;
+    private volatile BoundedObjectOutputStream outputStream;
     private String alias;
 
     /**
-     * Class constructor specifying client socket and server instance
+     * Class constructor specifying client socket, server instance and
+     * the session that the client joins
      */
-    public ClientHandler(Socket socket, Server server) {
+    public ClientHandler(Socket socket, Server server, Session session) {
         this.socket = socket;
         this.server = server;
+        this.session = session;
         this.alias = "";
+        this.acceptedNanos = System.nanoTime();
     }
 
     /**
      * Retrieves the client's alias and certificate from
      * the <code>ObjectInputStream</code> and stores the certificate in
-     * the {@link Session}. The thread is paused until another client connects
+     * the {@link Session}. Clients presenting a revoked certificate are rejected
+     * and their socket is closed. The thread is paused until another client connects
      * and the session is initiated. Once a session is alive, if the certificate is
      * yet to be delivered, the handler sends a request to the server.
      * Once an {@link AuthenticateMessage} is received from the client, it
@@ -49,48 +53,64 @@ public class ClientHandler extends Thread {
      * Once a session is activated, continuously retrieves
      * messages from the client and passes them to the server for delivery
      * to the destination. Disconnects the client and closes the socket
-     * if a {@link QuitMessage} is received.
+     * if a {@link QuitMessage} is received. A client whose connection fails is
+     * dropped by the server.
      */
     public void run() {
         try {
             ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream = new BoundedObjectOutputStream(socket.getOutputStream());
 
             alias = inputStream.readObject().toString();
-            server.storeAlias(alias);
+            FlightEvents.AliasReceived aliasEvent = new FlightEvents.AliasReceived();
+            aliasEvent.alias = alias;
+            aliasEvent.commit();
+            server.storeAlias(this);
 
             X509Certificate certificate;
             certificate = (X509Certificate) inputStream.readObject();
-            server.storeCertificate(certificate, alias);
+            boolean accepted = server.storeCertificate(certificate, this);
+            FlightEvents.CertificateReceived certificateEvent = new FlightEvents.CertificateReceived();
+            certificateEvent.alias = alias;
+            certificateEvent.serialNumber = certificate.getSerialNumber().toString();
+            certificateEvent.accepted = accepted;
+            certificateEvent.commit();
+            if (!accepted) {
+                server.rejectClient(alias, this);
+                socket.close();
+                return;
+            }
 
-            while (!server.isSessionAlive()) {
+            while (!session.isAlive()) {
                 Thread.sleep(100);
             }
 
-            if (server.isSessionAlive()) {
-                if (!server.isSessionCertificateDelivered(alias)) {
+            if (session.isAlive()) {
+                if (!server.isSessionCertificateDelivered(this)) {
                     server.deliverCertificate(this);
                 }
                 try {
                     Object message = inputStream.readObject();
 
                     if (message instanceof AuthenticateMessage) {
-                        server.authenticateClient();
+                        server.authenticateClient(this);
                     }
 
-                    if (server.getSessionAuthenticatedClients().get() == 2) {
-                        server.activateSession();
+                    if (session.getAuthenticatedClients().get() == 2) {
+                        server.activateSession(session);
                     }
 
                 } catch (IOException | ClassNotFoundException ex) {
                     LOGGER.log(Level.SEVERE, ex.getMessage());
-                    server.kill();
+                    drop();
+                    return;
                 }
             }
 
 
             while (true) {
-                if (server.isSessionActive()) {
+                if (session.isActive()) {
+                    server.getMetrics().handshakeCompleted(System.nanoTime() - acceptedNanos);
                     try {
 
                         Object message = null;
@@ -99,7 +119,8 @@ public class ClientHandler extends Thread {
                                 message = inputStream.readObject();
                             } catch (IOException | ClassNotFoundException ex) {
                                 LOGGER.log(Level.SEVERE, ex.getMessage());
-                                server.kill();
+                                drop();
+                                return;
                             }
                             if (!(message instanceof CommandMessage)) {
                                 server.deliver(message, this);
@@ -110,10 +131,12 @@ public class ClientHandler extends Thread {
 
                         server.disconnectClient(alias, this);
                         socket.close();
+                        return;
 
                     } catch (IOException ex) {
                         LOGGER.log(Level.SEVERE, ex.getMessage());
-                        server.kill();
+                        drop();
+                        return;
                     }
                 } else {
                     Thread.sleep(100);
@@ -121,15 +144,24 @@ public class ClientHandler extends Thread {
             }
         } catch (IOException | ClassNotFoundException | InterruptedException ex) {
             LOGGER.log(Level.SEVERE, ex.getMessage());
-            server.kill();
-        }
-        catch (KeyStoreException ex) {
-            LOGGER.log(Level.SEVERE, ex.getMessage());
+            drop();
         }
 
 
     }
 
+    /**
+     * Drops the client from the server and closes its socket
+     */
+    private void drop() {
+        server.dropClient(this);
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
     /**
      * Delivers data to a client by writing
      * to the <code>OutputStream</code> attached to it's socket
@@ -137,10 +169,25 @@ public class ClientHandler extends Thread {
      * @param obj data to deliver to recipient
      */
     public void write(Object obj) throws IOException {
-        outputStream.writeObject(obj);
+        outputStream.send(obj);
+    }
+
+    /**
+     * Returns the number of bytes written to the client that the output stream,
+     * and the input stream of the client, may still retain
+     *
+     * @return <code>long</code>
+     */
+    public long getRetainedBytes() {
+        BoundedObjectOutputStream stream = outputStream;
+        return stream == null ? 0 : stream.getRetainedBytes();
     }
 
     public String getAlias() {
         return alias;
     }
+
+    public Session getSession() {
+        return session;
+    }
 }
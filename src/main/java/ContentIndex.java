@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <code>ContentIndex</code> is a concrete class that tracks recently exchanged images
+ * by the SHA-256 digest of their contents. It is bounded and evicts the least
+ * recently used digest once full.
+ * The recipient indexes the images it has saved and confirms each one to the sender
+ * with a {@link Message#held(String)} receipt, which the sender records in its own
+ * index. The recipient's index is larger than the sender's, so a digest the sender
+ * still holds is normally still held by the recipient, and a reference the recipient
+ * cannot restore is reported with a {@link Message#missing(String, String)} receipt.
+ * A sender in content-addressed mode transmits a
+ * {@link Message#reference(String, String)} instead of a confirmed image.
+ *
+ * @param <V> value stored against each digest
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see MessageDispatchHandler
+ * @see MessageRetrievalHandler
+ */
+public class ContentIndex<V> {
+
+    public static final int SENDER_CAPACITY = 1024;
+    public static final int RECIPIENT_CAPACITY = 2 * SENDER_CAPACITY;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private final Map<String, V> entries;
+
+    /**
+     * Class constructor specifying the maximum number of digests to track
+     */
+    public ContentIndex(int capacity) {
+        this.entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Computes the hex-encoded SHA-256 digest of a byte-array
+     *
+     * @param data bytes to hash
+     * @return <code>String</code>
+     */
+    public static String digest(byte[] data) throws NoSuchAlgorithmException {
+        return hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    /**
+     * Computes the hex-encoded SHA-256 digest of a file, reading it in fixed-size
+     * chunks so that files of any size are hashed in bounded memory
+     *
+     * @param path file to hash
+     * @return <code>String</code>
+     */
+    public static String digest(Path path) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder stringBuilder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the value for a digest and marks it as recently used
+     *
+     * @param digest hex-encoded SHA-256 digest
+     * @return <code>V</code> or <code>null</code> if the digest is not held
+     */
+    public synchronized V get(String digest) {
+        return entries.get(digest);
+    }
+
+    /**
+     * Records a digest as held, evicting the least recently used digest if full
+     *
+     * @param digest hex-encoded SHA-256 digest
+     * @param value  value to store
+     */
+    public synchronized void put(String digest, V value) {
+        entries.put(digest, value);
+    }
+
+    /**
+     * Stops tracking a digest
+     *
+     * @param digest hex-encoded SHA-256 digest
+     */
+    public synchronized void remove(String digest) {
+        entries.remove(digest);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
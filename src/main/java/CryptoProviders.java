@@ -0,0 +1,413 @@
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>CryptoProviders</code> is a concrete class that selects the JCA provider of each
+ * cryptographic operation used by {@link PGPUtils}, {@link CipherSuite} and the Certificate
+ * Authority. By default the JDK chooses the provider of AES, RSA and the SHA-2 digests, and
+ * the bundled BouncyCastle provider performs the remaining operations, as in earlier versions.
+ * <p>
+ * A provider is chosen for an operation with the <code>cryptosystem.providers</code> system
+ * property, a comma separated list of <code>OPERATION=provider</code> entries such as
+ * <code>AES_CBC=SunJCE,ED25519=SunEC</code>. When the <code>cryptosystem.providers.auto</code>
+ * system property is set, every installed provider of each remaining operation is timed
+ * briefly when this class is loaded and the fastest is selected. The measured rates and
+ * the selections are logged.
+ * <p>
+ * Keys are generated and decoded by BouncyCastle whichever provider is selected, so a
+ * provider that does not accept them is never selected by the auto mode.
+ *
+ * @author Emily Morris
+ * @author Aidan Bailey
+ * @author Kialan Pillay
+ * @author Insaaf Dhansay
+ * @version %I%, %G%
+ * @see CryptoProviders.Operation
+ */
+public class CryptoProviders {
+
+    /**
+     * Operations whose provider can be selected
+     */
+    public enum Operation {
+        AES_CBC("Cipher", "AES/CBC/PKCS5Padding", false),
+        AES_WRAP("Cipher", "AESWrap", false),
+        RSA("Cipher", "RSA/ECB/PKCS1Padding", false),
+        SHA256_WITH_RSA("Signature", "SHA256withRSA", true),
+        ED25519("Signature", "Ed25519", true),
+        X25519("KeyAgreement", "X25519", true),
+        SHA_256("MessageDigest", "SHA-256", false),
+        SHA_512_256("MessageDigest", "SHA-512/256", false),
+        BLAKE2B_256("MessageDigest", "BLAKE2B-256", true),
+        BLAKE3_256("MessageDigest", "BLAKE3-256", true);
+
+        private final String type;
+        private final String algorithm;
+        private final boolean bouncyCastle;
+
+        Operation(String type, String algorithm, boolean bouncyCastle) {
+            this.type = type;
+            this.algorithm = algorithm;
+            this.bouncyCastle = bouncyCastle;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CryptoProviders.class.getName());
+
+    /**
+     * Time each candidate provider runs before it is measured
+     */
+    private static final long WARMUP_NANOS = 100_000_000L;
+
+    /**
+     * Time each candidate provider is measured for
+     */
+    private static final long TRIAL_NANOS = 50_000_000L;
+
+    /**
+     * Number of bytes hashed or encrypted by each run of a bulk trial
+     */
+    private static final int TRIAL_BYTES = 8 * 1024;
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final AtomicReferenceArray<Provider> SELECTED = new AtomicReferenceArray<>(OPERATIONS.length);
+    private static final boolean[] CONFIGURED = new boolean[OPERATIONS.length];
+
+    static {
+        // also installs BouncyCastle before providers are looked up by name
+        for (Operation operation : OPERATIONS) {
+            if (operation.bouncyCastle) {
+                SELECTED.set(operation.ordinal(), CertificateGenerator.PROVIDER);
+            }
+        }
+        configure(System.getProperty("cryptosystem.providers", ""));
+        if (Boolean.getBoolean("cryptosystem.providers.auto")) {
+            tune();
+        }
+    }
+
+    /**
+     * Sole class constructor
+     */
+    private CryptoProviders() {
+    }
+
+    /**
+     * Applies the providers named in a <code>cryptosystem.providers</code> list. Names of
+     * unknown operations or providers are logged and ignored.
+     *
+     * @param preferences comma separated list of <code>OPERATION=provider</code> entries
+     */
+    private static void configure(String preferences) {
+        for (String preference : preferences.split(",")) {
+            if (preference.isBlank()) {
+                continue;
+            }
+            String[] entry = preference.split("=", 2);
+            Provider provider = entry.length == 2 ? Security.getProvider(entry[1].trim()) : null;
+            if (provider == null) {
+                LOGGER.log(Level.WARNING, "Unknown crypto provider preference " + preference.trim());
+                continue;
+            }
+            try {
+                Operation operation = Operation.valueOf(entry[0].trim().toUpperCase());
+                SELECTED.set(operation.ordinal(), provider);
+                CONFIGURED[operation.ordinal()] = true;
+                LOGGER.log(Level.CONFIG, operation + ": " + provider.getName());
+            } catch (IllegalArgumentException ex) {
+                LOGGER.log(Level.WARNING, "Unknown crypto operation " + entry[0].trim());
+            }
+        }
+    }
+
+    /**
+     * Times each installed provider of every operation that was not configured and
+     * selects the fastest. Providers that fail an operation are skipped.
+     */
+    public static void tune() {
+        Fixtures fixtures;
+        try {
+            fixtures = new Fixtures();
+        } catch (GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+            return;
+        }
+        for (Operation operation : OPERATIONS) {
+            if (CONFIGURED[operation.ordinal()]) {
+                continue;
+            }
+            Provider fastest = null;
+            double fastestRate = 0;
+            StringBuilder rates = new StringBuilder();
+            for (Provider provider : Security.getProviders()) {
+                double rate;
+                try {
+                    rate = measure(trial(operation, provider, fixtures));
+                } catch (GeneralSecurityException | RuntimeException ex) {
+                    continue;
+                }
+                rates.append(rates.length() == 0 ? "" : ", ").append(provider.getName()).append(' ')
+                        .append(isBulk(operation) ? String.format("%.0f MB/s", rate / 1e6)
+                                : String.format("%.0f ops/s", rate));
+                if (rate > fastestRate) {
+                    fastest = provider;
+                    fastestRate = rate;
+                }
+            }
+            if (fastest == null) {
+                LOGGER.log(Level.WARNING, "No provider of " + operation + " could be timed");
+                continue;
+            }
+            SELECTED.set(operation.ordinal(), fastest);
+            LOGGER.log(Level.INFO, operation + ": " + fastest.getName() + " (" + rates + ")");
+        }
+    }
+
+    /**
+     * Returns the provider selected for an operation
+     *
+     * @param operation cryptographic operation
+     * @return <code>Provider</code>, or <code>null</code> if the JDK chooses the provider
+     */
+    public static Provider getProvider(Operation operation) {
+        return SELECTED.get(operation.ordinal());
+    }
+
+    /**
+     * Selects the provider of an operation, replacing any configured or timed selection
+     *
+     * @param operation cryptographic operation
+     * @param provider  provider to select, or <code>null</code> to let the JDK choose
+     */
+    public static void setProvider(Operation operation, Provider provider) {
+        SELECTED.set(operation.ordinal(), provider);
+    }
+
+    /**
+     * Creates a {@link Cipher} from the provider selected for an operation
+     *
+     * @param operation cipher operation
+     * @return <code>Cipher</code>
+     */
+    public static Cipher cipher(Operation operation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Provider provider = getProvider(operation);
+        return provider == null ? Cipher.getInstance(operation.algorithm)
+                : Cipher.getInstance(operation.algorithm, provider);
+    }
+
+    /**
+     * Creates a {@link Signature} from the provider selected for an operation
+     *
+     * @param operation signature operation
+     * @return <code>Signature</code>
+     */
+    public static Signature signature(Operation operation) throws NoSuchAlgorithmException {
+        Provider provider = getProvider(operation);
+        return provider == null ? Signature.getInstance(operation.algorithm)
+                : Signature.getInstance(operation.algorithm, provider);
+    }
+
+    /**
+     * Creates a {@link KeyAgreement} from the provider selected for an operation
+     *
+     * @param operation key agreement operation
+     * @return <code>KeyAgreement</code>
+     */
+    public static KeyAgreement keyAgreement(Operation operation) throws NoSuchAlgorithmException {
+        Provider provider = getProvider(operation);
+        return provider == null ? KeyAgreement.getInstance(operation.algorithm)
+                : KeyAgreement.getInstance(operation.algorithm, provider);
+    }
+
+    /**
+     * Creates a {@link MessageDigest} from the provider selected for an operation
+     *
+     * @param operation digest operation
+     * @return <code>MessageDigest</code>
+     */
+    public static MessageDigest messageDigest(Operation operation) throws NoSuchAlgorithmException {
+        Provider provider = getProvider(operation);
+        return provider == null ? MessageDigest.getInstance(operation.algorithm)
+                : MessageDigest.getInstance(operation.algorithm, provider);
+    }
+
+    private static boolean isBulk(Operation operation) {
+        return operation == Operation.AES_CBC || operation.type.equals("MessageDigest");
+    }
+
+    /**
+     * Runs a trial for the warm-up period, then counts its runs
+     *
+     * @param trial trial of one provider
+     * @return <code>double</code> bytes per second for bulk operations, otherwise operations per second
+     */
+    private static double measure(Trial trial) throws GeneralSecurityException {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            trial.run();
+        }
+        long runs = 0;
+        long start = System.nanoTime();
+        end = start + TRIAL_NANOS;
+        long now;
+        do {
+            trial.run();
+            runs++;
+            now = System.nanoTime();
+        } while (now < end);
+        return runs * (trial.bytes == 0 ? 1 : trial.bytes) * 1e9 / (now - start);
+    }
+
+    /**
+     * Prepares a trial of an operation on a provider. Trials of signatures, RSA and key
+     * agreement check their result, so a provider that mishandles the keys fails. A key
+     * agreement trial agrees in both directions between two key pairs and compares the secrets.
+     *
+     * @param operation operation to time
+     * @param provider  candidate provider
+     * @param fixtures  keys and data shared by the trials
+     * @return <code>Trial</code>
+     */
+    private static Trial trial(Operation operation, Provider provider, Fixtures fixtures)
+            throws GeneralSecurityException {
+        switch (operation) {
+            case AES_CBC: {
+                Cipher cipher = Cipher.getInstance(operation.algorithm, provider);
+                return new Trial(TRIAL_BYTES, () -> {
+                    cipher.init(Cipher.ENCRYPT_MODE, fixtures.aesKey, fixtures.iv);
+                    cipher.doFinal(fixtures.data);
+                });
+            }
+            case AES_WRAP: {
+                Cipher cipher = Cipher.getInstance(operation.algorithm, provider);
+                SecretKeySpec sessionData = new SecretKeySpec(Arrays.copyOf(fixtures.data, 32), "AES");
+                return new Trial(0, () -> {
+                    cipher.init(Cipher.WRAP_MODE, fixtures.aesKey);
+                    cipher.wrap(sessionData);
+                });
+            }
+            case RSA: {
+                Cipher cipher = Cipher.getInstance(operation.algorithm, provider);
+                byte[] digest = Arrays.copyOf(fixtures.data, 32);
+                return new Trial(0, () -> {
+                    cipher.init(Cipher.ENCRYPT_MODE, fixtures.rsa.getPrivate());
+                    byte[] signature = cipher.doFinal(digest);
+                    cipher.init(Cipher.DECRYPT_MODE, fixtures.rsa.getPublic());
+                    if (!Arrays.equals(cipher.doFinal(signature), digest)) {
+                        throw new GeneralSecurityException(provider.getName() + " failed RSA");
+                    }
+                });
+            }
+            case SHA256_WITH_RSA:
+                return signatureTrial(operation, provider, fixtures.rsa, fixtures);
+            case ED25519:
+                return signatureTrial(operation, provider, fixtures.ed25519, fixtures);
+            case X25519: {
+                KeyAgreement agreement = KeyAgreement.getInstance(operation.algorithm, provider);
+                return new Trial(0, () -> {
+                    agreement.init(fixtures.x25519.getPrivate());
+                    agreement.doPhase(fixtures.x25519Peer.getPublic(), true);
+                    byte[] secret = agreement.generateSecret();
+                    agreement.init(fixtures.x25519Peer.getPrivate());
+                    agreement.doPhase(fixtures.x25519.getPublic(), true);
+                    if (!Arrays.equals(agreement.generateSecret(), secret)) {
+                        throw new GeneralSecurityException(provider.getName() + " failed " + operation);
+                    }
+                });
+            }
+            default: {
+                MessageDigest digest = MessageDigest.getInstance(operation.algorithm, provider);
+                return new Trial(TRIAL_BYTES, () -> digest.digest(fixtures.data));
+            }
+        }
+    }
+
+    private static Trial signatureTrial(Operation operation, Provider provider, KeyPair keyPair, Fixtures fixtures)
+            throws NoSuchAlgorithmException {
+        Signature signer = Signature.getInstance(operation.algorithm, provider);
+        Signature verifier = Signature.getInstance(operation.algorithm, provider);
+        byte[] digest = Arrays.copyOf(fixtures.data, 32);
+        return new Trial(0, () -> {
+            signer.initSign(keyPair.getPrivate());
+            signer.update(digest);
+            byte[] signature = signer.sign();
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(digest);
+            if (!verifier.verify(signature)) {
+                throw new GeneralSecurityException(provider.getName() + " failed " + operation);
+            }
+        });
+    }
+
+    /**
+     * Work run repeatedly by a trial
+     */
+    @FunctionalInterface
+    private interface Work {
+        void run() throws GeneralSecurityException;
+    }
+
+    /**
+     * A repeatable operation of one provider and the bytes it processes
+     */
+    private static final class Trial {
+        private final int bytes;
+        private final Work work;
+
+        private Trial(int bytes, Work work) {
+            this.bytes = bytes;
+            this.work = work;
+        }
+
+        private void run() throws GeneralSecurityException {
+            work.run();
+        }
+    }
+
+    /**
+     * Keys and data shared by the trials, generated as the application generates them
+     */
+    private static final class Fixtures {
+        private final byte[] data = new byte[TRIAL_BYTES];
+        private final SecretKeySpec aesKey;
+        private final IvParameterSpec iv;
+        private final KeyPair rsa;
+        private final KeyPair ed25519;
+        private final KeyPair x25519;
+        private final KeyPair x25519Peer;
+
+        private Fixtures() throws GeneralSecurityException {
+            new Random(0).nextBytes(data);
+            aesKey = new SecretKeySpec(data, 0, 16, "AES");
+            iv = new IvParameterSpec(data, 16, 16);
+            rsa = KeyUtils.generate("RSA", 1024);
+            ed25519 = KeyPairGenerator.getInstance("Ed25519", CertificateGenerator.PROVIDER).generateKeyPair();
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("X25519", CertificateGenerator.PROVIDER);
+            x25519 = generator.generateKeyPair();
+            x25519Peer = generator.generateKeyPair();
+        }
+    }
+}
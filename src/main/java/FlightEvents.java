@@ -0,0 +1,180 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * <code>FlightEvents</code> is a holder for the JDK Flight Recorder events emitted
+ * over the lifetime of a connection and a message. Events are recorded only while a
+ * recording that enables them is running, for example when the JVM is started with
+ * <code>-XX:StartFlightRecording</code>, and cost close to nothing otherwise.
+ * All events are in the <code>CryptoSystem</code> category.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ */
+public final class FlightEvents {
+
+    /**
+     * Sole class constructor
+     */
+    private FlightEvents() {
+    }
+
+    @Name("cryptosystem.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category({"CryptoSystem", "Server"})
+    @Description("The server accepted a client connection")
+    @StackTrace(false)
+    public static class ConnectionAccepted extends Event {
+        @Label("Remote Port")
+        public int remotePort;
+    }
+
+    @Name("cryptosystem.AliasReceived")
+    @Label("Alias Received")
+    @Category({"CryptoSystem", "Server"})
+    @Description("A client handler received the alias of its client")
+    @StackTrace(false)
+    public static class AliasReceived extends Event {
+        @Label("Alias")
+        public String alias;
+    }
+
+    @Name("cryptosystem.CertificateReceived")
+    @Label("Certificate Received")
+    @Category({"CryptoSystem", "Server"})
+    @Description("A client handler received the certificate of its client")
+    @StackTrace(false)
+    public static class CertificateReceived extends Event {
+        @Label("Alias")
+        public String alias;
+
+        @Label("Serial Number")
+        public String serialNumber;
+
+        @Label("Accepted")
+        public boolean accepted;
+    }
+
+    @Name("cryptosystem.SessionAlive")
+    @Label("Session Alive")
+    @Category({"CryptoSystem", "Server"})
+    @Description("A second client connected and the session was initiated")
+    @StackTrace(false)
+    public static class SessionAlive extends Event {
+    }
+
+    @Name("cryptosystem.SessionActive")
+    @Label("Session Active")
+    @Category({"CryptoSystem", "Server"})
+    @Description("Both clients authenticated and the session was activated")
+    @StackTrace(false)
+    public static class SessionActive extends Event {
+    }
+
+    @Name("cryptosystem.FrameRelayed")
+    @Label("Frame Relayed")
+    @Category({"CryptoSystem", "Server"})
+    @Description("The server wrote a frame from one client to the other")
+    @StackTrace(false)
+    public static class FrameRelayed extends Event {
+        @Label("Source Alias")
+        public String source;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("cryptosystem.MessageEncoded")
+    @Label("Message Encoded")
+    @Category({"CryptoSystem", "PGP"})
+    @Description("A message was PGP encoded")
+    @StackTrace(false)
+    public static class MessageEncoded extends Event {
+        @Label("Plaintext Size")
+        @DataAmount
+        public long plaintextBytes;
+
+        @Label("Encoded Size")
+        @DataAmount
+        public long encodedBytes;
+
+        @Label("Hash")
+        @Timespan
+        public long hashNanos;
+
+        @Label("Sign")
+        @Timespan
+        public long signNanos;
+
+        @Label("Compress")
+        @Timespan
+        public long compressNanos;
+
+        @Label("Encrypt")
+        @Timespan
+        public long encryptNanos;
+
+        @Label("Wrap")
+        @Timespan
+        public long wrapNanos;
+    }
+
+    @Name("cryptosystem.MessageDecoded")
+    @Label("Message Decoded")
+    @Category({"CryptoSystem", "PGP"})
+    @Description("A message was PGP decoded")
+    @StackTrace(false)
+    public static class MessageDecoded extends Event {
+        @Label("Encoded Size")
+        @DataAmount
+        public long encodedBytes;
+
+        @Label("Plaintext Size")
+        @DataAmount
+        public long plaintextBytes;
+
+        @Label("Unwrap")
+        @Timespan
+        public long unwrapNanos;
+
+        @Label("Decrypt")
+        @Timespan
+        public long decryptNanos;
+
+        @Label("Inflate")
+        @Timespan
+        public long inflateNanos;
+
+        @Label("Hash")
+        @Timespan
+        public long hashNanos;
+
+        @Label("Verify")
+        @Timespan
+        public long verifyNanos;
+    }
+
+    @Name("cryptosystem.ImagePersisted")
+    @Label("Image Persisted")
+    @Category({"CryptoSystem", "Client"})
+    @Description("A received image was written to disk")
+    @StackTrace(false)
+    public static class ImagePersisted extends Event {
+        @Label("Path")
+        public String path;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+    }
+}
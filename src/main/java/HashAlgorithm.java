@@ -0,0 +1,85 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <code>HashAlgorithm</code> is an enumeration of the message digests that
+ * {@link PGPUtils} can sign. Every digest is 256 bits long. SHA-256 and SHA-512/256
+ * are provided by the JDK, and BLAKE2b-256 and BLAKE3-256 by the bundled BouncyCastle
+ * provider, unless {@link CryptoProviders} selects another provider. Which is fastest
+ * depends on the JDK and CPU: SHA-256 is accelerated on processors with SHA extensions,
+ * SHA-512/256 is usually faster than SHA-256 on 64-bit processors without them.
+ * <p>
+ * The algorithm used for new messages is read from the <code>cryptosystem.hash</code>
+ * system property and defaults to <code>SHA_256</code>. Each message records the
+ * algorithm in its frame header, so a receiver decodes messages hashed with any of them.
+ *
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @version %I%, %G%
+ * @see MerkleTree
+ */
+public enum HashAlgorithm {
+
+    SHA_256(1, CryptoProviders.Operation.SHA_256),
+    SHA_512_256(2, CryptoProviders.Operation.SHA_512_256),
+    BLAKE2B_256(3, CryptoProviders.Operation.BLAKE2B_256),
+    BLAKE3_256(4, CryptoProviders.Operation.BLAKE3_256);
+
+    private final int id;
+    private final CryptoProviders.Operation operation;
+
+    HashAlgorithm(final int id, final CryptoProviders.Operation operation) {
+        this.id = id;
+        this.operation = operation;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the algorithm with the specified identifier
+     *
+     * @param id identifier written in the frame header
+     * @return <code>HashAlgorithm</code>
+     */
+    public static HashAlgorithm forId(final int id) throws NoSuchAlgorithmException {
+        for (final HashAlgorithm hash : values()) {
+            if (hash.id == id) {
+                return hash;
+            }
+        }
+        throw new NoSuchAlgorithmException("Unknown hash algorithm " + id);
+    }
+
+    /**
+     * Returns the algorithm named by the <code>cryptosystem.hash</code> system property
+     *
+     * @return <code>HashAlgorithm</code>
+     */
+    public static HashAlgorithm configured() {
+        return valueOf(System.getProperty("cryptosystem.hash", SHA_256.name()).trim().toUpperCase());
+    }
+
+    /**
+     * Creates a {@link MessageDigest} for this algorithm from the provider selected
+     * by {@link CryptoProviders}
+     *
+     * @return <code>MessageDigest</code>
+     */
+    public MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return CryptoProviders.messageDigest(operation);
+    }
+
+    /**
+     * Hashes a byte-array
+     *
+     * @param data bytes to hash
+     * @return <code>byte[]</code>
+     */
+    public byte[] digest(final byte[] data) throws NoSuchAlgorithmException {
+        return newDigest().digest(data);
+    }
+}
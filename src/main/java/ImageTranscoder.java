@@ -0,0 +1,266 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <code>ImageTranscoder</code> is a concrete class that reduces images before they are
+ * encoded with {@link PGPUtils}, so that fewer bytes are compressed, encrypted and sent.
+ * Images larger than the maximum dimension are scaled down, preserving their aspect ratio,
+ * and written as JPEG at the target quality, or as PNG if they have transparency. The
+ * original bytes are sent instead if the image cannot be read by {@link ImageIO}, or if it
+ * already fits within the maximum dimension and transcoding would not make it smaller, so
+ * that no image larger than the maximum dimension is sent once it can be read. The format
+ * of the bytes that are sent is recognised by {@link #extension(byte[])}. Files are only
+ * read, never modified. Thumbnails are decoded with source subsampling, so a large image
+ * is never decoded at full resolution to produce one.
+ * <p>
+ * The limits of a new session are read from the <code>cryptosystem.image.maxDimension</code>
+ * and <code>cryptosystem.image.quality</code> system properties. Transcoding is off unless
+ * a maximum dimension is set. Transcoders are safe for use by several threads.
+ *
+ * @author Kialan Pillay
+ * @author Emily Morris
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @version %I%, %G%
+ */
+public class ImageTranscoder {
+
+    static final float DEFAULT_QUALITY = 0.85f;
+    private final int maxDimension;
+    private final float quality;
+    private final LongAdder originalBytes = new LongAdder();
+    private final LongAdder transcodedBytes = new LongAdder();
+
+    /**
+     * Class constructor specifying the maximum dimension and JPEG quality
+     *
+     * @param maxDimension maximum width and height in pixels
+     * @param quality      JPEG quality between <code>0</code> and <code>1</code>
+     */
+    public ImageTranscoder(int maxDimension, float quality) {
+        if (maxDimension < 1 || quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Invalid maximum dimension or quality");
+        }
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+    }
+
+    /**
+     * Creates a transcoder from the <code>cryptosystem.image</code> system properties
+     *
+     * @return <code>ImageTranscoder</code>, or <code>null</code> if no maximum dimension is set
+     */
+    public static ImageTranscoder configured() {
+        Integer maxDimension = Integer.getInteger("cryptosystem.image.maxDimension");
+        if (maxDimension == null) {
+            return null;
+        }
+        String quality = System.getProperty("cryptosystem.image.quality");
+        return new ImageTranscoder(maxDimension, quality == null ? DEFAULT_QUALITY : Float.parseFloat(quality));
+    }
+
+    /**
+     * Reads and transcodes an image file
+     *
+     * @param path image to transcode
+     * @return <code>byte[]</code> of the transcoded image, or of the file if it cannot be reduced
+     */
+    public byte[] transcode(Path path) throws IOException {
+        byte[] original = Files.readAllBytes(path);
+        byte[] transcoded = transcode(original);
+        originalBytes.add(original.length);
+        transcodedBytes.add(transcoded.length);
+        return transcoded;
+    }
+
+    /**
+     * Transcodes an encoded image
+     *
+     * @param original bytes of the image
+     * @return <code>byte[]</code> of the transcoded image, or <code>original</code> if it cannot be read,
+     * or fits within the maximum dimension and cannot be reduced
+     */
+    byte[] transcode(byte[] original) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+        if (image == null) {
+            return original;
+        }
+        boolean fits = Math.max(image.getWidth(), image.getHeight()) <= maxDimension;
+        byte[] transcoded = write(image);
+        return fits && transcoded.length >= original.length ? original : transcoded;
+    }
+
+    /**
+     * Reads an image file at reduced resolution and writes it at the maximum dimension.
+     * The file is decoded from a stream with source subsampling, so it is neither read
+     * into memory in full nor decoded at full resolution.
+     *
+     * @param path image file
+     * @return <code>byte[]</code> of the thumbnail, or <code>null</code> if the image cannot be read
+     */
+    public byte[] thumbnail(Path path) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(path.toFile())) {
+            return thumbnail(stream);
+        }
+    }
+
+    /**
+     * Decodes an encoded image at reduced resolution and writes it at the maximum dimension
+     *
+     * @param image bytes of the image
+     * @return <code>byte[]</code> of the thumbnail, or <code>null</code> if the image cannot be read
+     */
+    public byte[] thumbnail(byte[] image) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            return thumbnail(stream);
+        }
+    }
+
+    /**
+     * Decodes an image, skipping rows and columns so that it is decoded at no less
+     * than the maximum dimension, then scales and writes it
+     *
+     * @param stream stream of the encoded image
+     * @return <code>byte[]</code>, or <code>null</code> if no reader recognises the image
+     */
+    private byte[] thumbnail(ImageInputStream stream) throws IOException {
+        Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+        if (readers == null || !readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(stream, true, true);
+            int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / maxDimension);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            return write(reader.read(0, param));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Scales an image to the maximum dimension and writes it as PNG if it has
+     * transparency, or as JPEG otherwise
+     *
+     * @param image decoded image
+     * @return <code>byte[]</code>
+     */
+    private byte[] write(BufferedImage image) throws IOException {
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage scaled = scale(image, alpha);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (alpha) {
+            ImageIO.write(scaled, "png", out);
+        } else {
+            writeJpeg(scaled, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the file extension of an encoded image, recognised from its leading bytes
+     *
+     * @param image bytes of the image
+     * @return <code>String</code> such as <code>.jpg</code>, or <code>.png</code> if the format is not recognised
+     */
+    public static String extension(byte[] image) {
+        if (startsWith(image, 0xFF, 0xD8, 0xFF)) {
+            return ".jpg";
+        } else if (startsWith(image, 'G', 'I', 'F', '8')) {
+            return ".gif";
+        } else if (startsWith(image, 'B', 'M')) {
+            return ".bmp";
+        }
+        return ".png";
+    }
+
+    private static boolean startsWith(byte[] data, int... prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((data[i] & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scales an image to fit the maximum dimension, halving it in steps so that
+     * large reductions are not aliased
+     *
+     * @param image image to scale
+     * @param alpha whether to keep the alpha channel
+     * @return <code>BufferedImage</code>
+     */
+    private BufferedImage scale(BufferedImage image, boolean alpha) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double factor = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * factor));
+        int targetHeight = Math.max(1, (int) Math.round(height * factor));
+        BufferedImage current = image;
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage next = new BufferedImage(width, height,
+                    alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
+
+    private void writeJpeg(BufferedImage image, ByteArrayOutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Returns the number of bytes saved by transcoding, which is negative if scaling
+     * large images down made them larger in total
+     *
+     * @return <code>long</code>
+     */
+    public long getBytesSaved() {
+        return originalBytes.sum() - transcodedBytes.sum();
+    }
+}
@@ -0,0 +1,317 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * <code>LoadGenerator</code> is a concrete class that measures the connection and
+ * throughput ceiling of a single relay. It starts a multi-session {@link Server} on the
+ * loopback interface and a number of headless client pairs in the same JVM. Each
+ * {@link SyntheticClient} runs the real handshake: it sends its alias and a certificate
+ * signed by the Certificate Authority, verifies the certificate of the other client and
+ * sends an {@link AuthenticateMessage}. Clients then send PGP encoded images of a fixed
+ * size to each other at a target aggregate rate for a fixed duration.
+ * <p>
+ * Each client encodes one image for its peer after the handshake and sends it repeatedly,
+ * so the measurement is of the relay rather than of the clients. The first image each
+ * client receives is decoded to check the path end to end. Logging below
+ * <code>WARNING</code> is disabled for the run, because per-message logging would
+ * otherwise dominate the measurement.
+ * <p>
+ * Arguments, all optional, are the number of client pairs, the image size in bytes,
+ * the target rate in images per second across all clients (<code>0</code> for as fast
+ * as possible), the duration in seconds, the server port and the {@link CipherSuite}
+ * offered by every client.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ */
+public class LoadGenerator {
+
+    private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());
+    private static final Prettier PRETTIER = new Prettier();
+    private static final String HOSTNAME = "localhost";
+    private static final long HANDSHAKE_TIMEOUT_SECONDS = 60;
+    private final int pairs;
+    private final int imageSize;
+    private final int rate;
+    private final int duration;
+    private final int port;
+    private final List<CipherSuite> suites;
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final CountDownLatch start = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    /**
+     * Class constructor specifying the load to generate
+     *
+     * @param pairs     number of client pairs
+     * @param imageSize size of each image in bytes
+     * @param rate      target images per second across all clients, or <code>0</code> for no limit
+     * @param duration  duration of the measurement in seconds
+     * @param port      port of the server
+     * @param suites    cipher suites offered by every client
+     */
+    public LoadGenerator(int pairs, int imageSize, int rate, int duration, int port, List<CipherSuite> suites) {
+        this.pairs = pairs;
+        this.imageSize = imageSize;
+        this.rate = rate;
+        this.duration = duration;
+        this.port = port;
+        this.suites = suites;
+    }
+
+    /**
+     * Starts a load generator using the specified arguments
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        int pairs = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int imageSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int duration = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 4444;
+        List<CipherSuite> suites = args.length > 5 ? List.of(CipherSuite.valueOf(args[5])) : CipherSuite.configured();
+        new LoadGenerator(pairs, imageSize, rate, duration, port, suites).run();
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server and clients, sends images for the configured duration
+     * and prints a report
+     */
+    public void run() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Server server = new Server(port, true);
+        Thread serverThread = new Thread(server::listen, "load-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        PRETTIER.print("System", "Generating keys and certificates for " + pairs * 2 + " clients offering " + suites);
+        SecretsManager secretsManager = new SecretsManager();
+        Map<String, SuiteKeys> subjects = new HashMap<>();
+        for (int i = 0; i < pairs * 2; i++) {
+            subjects.put("load-" + i, SuiteKeys.generate(suites));
+        }
+        Map<String, X509Certificate> certificates = secretsManager.generateSuiteCertificates(subjects);
+        byte[] image = new byte[imageSize];
+        new SplittableRandom().nextBytes(image);
+        Message message = new Message(Base64.getEncoder().encodeToString(image), "load");
+
+        long interval = rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(pairs * 2L) / rate;
+        CountDownLatch ready = new CountDownLatch(pairs * 2);
+        List<SyntheticClient> clients = new ArrayList<>();
+        for (int i = 0; i < pairs * 2; i++) {
+            String alias = "load-" + i;
+            SyntheticClient client = new SyntheticClient(alias, subjects.get(alias), certificates.get(alias),
+                    secretsManager.getPublicKey(), message, interval, ready);
+            clients.add(client);
+            client.start();
+        }
+
+        PRETTIER.print("System", "Connecting " + pairs + " client pairs to port " + port);
+        if (!ready.await(HANDSHAKE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            PRETTIER.print("System", ready.getCount() + " clients did not complete the handshake");
+        }
+        PRETTIER.print("System", "Sending " + imageSize + " byte images for " + duration + " seconds");
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        running = false;
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        for (SyntheticClient client : clients) {
+            client.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        report(server.getMetrics(), elapsed);
+        for (SyntheticClient client : clients) {
+            client.quit();
+        }
+    }
+
+    /**
+     * Prints handshake latency percentiles, relay throughput and error counts
+     *
+     * @param metrics metrics recorded by the server
+     * @param elapsed duration of the measurement in seconds
+     */
+    private void report(ServerMetrics metrics, double elapsed) {
+        LatencyHistogram serverHandshakes = metrics.getHandshakeHistogram();
+        LatencyHistogram relay = metrics.getRelayHistogram();
+        PRETTIER.print("System", String.format("Sessions %d/%d open, %d connections accepted",
+                metrics.getSessionsOpen(), pairs, metrics.getConnectionsAccepted()));
+        PRETTIER.print("System", String.format("Client handshake p50=%.1fms p99=%.1fms max=%.1fms (%d)",
+                handshakes.getPercentile(50) / 1e6, handshakes.getPercentile(99) / 1e6,
+                handshakes.getMax() / 1e6, handshakes.getCount()));
+        PRETTIER.print("System", String.format("Server handshake p50=%.1fms p99=%.1fms max=%.1fms (%d)",
+                serverHandshakes.getPercentile(50) / 1e6, serverHandshakes.getPercentile(99) / 1e6,
+                serverHandshakes.getMax() / 1e6, serverHandshakes.getCount()));
+        PRETTIER.print("System", String.format("Sent %d images, received %d images, %.1f images/s, %.1f MB/s",
+                framesSent.sum(), framesReceived.sum(), framesReceived.sum() / elapsed,
+                bytesReceived.sum() / elapsed / (1024 * 1024)));
+        PRETTIER.print("System", String.format("Relay write p50=%.1fus p99=%.1fus max=%.1fus",
+                relay.getPercentile(50) / 1e3, relay.getPercentile(99) / 1e3, relay.getMax() / 1e3));
+        PRETTIER.print("System", String.format("Stream retained per connection max=%.1fKB total=%.1fKB",
+                metrics.getConnectionRetainedBytesMax() / 1024.0, metrics.getConnectionRetainedBytesTotal() / 1024.0));
+        PRETTIER.print("System", "Errors " + errors.sum());
+    }
+
+    /**
+     * <code>SyntheticClient</code> is a concrete class that extends {@link Thread}.
+     * It connects to the server, completes the handshake, sends images to its peer
+     * at a fixed interval and counts the images it receives on a separate thread.
+     */
+    private class SyntheticClient extends Thread {
+
+        private final String alias;
+        private final SuiteKeys keys;
+        private final X509Certificate certificate;
+        private final PublicKey CAPublicKey;
+        private final Message message;
+        private final long interval;
+        private final CountDownLatch ready;
+        private final Logger logger = Logger.getLogger(SyntheticClient.class.getName());
+        private Socket socket;
+        private BoundedObjectOutputStream outputStream;
+
+        SyntheticClient(String alias, SuiteKeys keys, X509Certificate certificate, PublicKey CAPublicKey,
+                        Message message, long interval, CountDownLatch ready) {
+            super(alias);
+            setDaemon(true);
+            this.alias = alias;
+            this.keys = keys;
+            this.certificate = certificate;
+            this.CAPublicKey = CAPublicKey;
+            this.message = message;
+            this.interval = interval;
+            this.ready = ready;
+        }
+
+        /**
+         * Completes the handshake, then sends images until the run ends
+         */
+        public void run() {
+            ObjectInputStream inputStream;
+            SuiteKeys otherKeys;
+            CipherSuite suite;
+            byte[] frame;
+            try {
+                long begin = System.nanoTime();
+                socket = new Socket(HOSTNAME, port);
+                outputStream = new BoundedObjectOutputStream(socket.getOutputStream());
+                inputStream = new ObjectInputStream(socket.getInputStream());
+                outputStream.send(alias);
+                outputStream.send(certificate);
+                byte[] encoded = (byte[]) inputStream.readObject();
+                X509Certificate other = (X509Certificate) CertificateFactory.getInstance("X.509")
+                        .generateCertificate(new ByteArrayInputStream(encoded));
+                other.verify(CAPublicKey);
+                otherKeys = SuiteKeys.fromCertificate(other);
+                suite = CipherSuite.negotiate(keys.getSuites(), otherKeys.getSuites());
+                outputStream.send(new AuthenticateMessage(alias));
+                handshakes.record(System.nanoTime() - begin);
+                frame = PGPUtils.PGPEncode(message, keys.getSigningKey(suite), otherKeys.getPublicAgreementKey(suite),
+                        logger);
+            } catch (IOException | ClassNotFoundException | GeneralSecurityException ex) {
+                LOGGER.log(Level.WARNING, alias + ": " + ex.getMessage());
+                errors.increment();
+                return;
+            } finally {
+                ready.countDown();
+            }
+
+            Thread receiver = new Thread(() -> receive(inputStream, keys.getAgreementKey(suite),
+                    otherKeys.getPublicSigningKey(suite)), alias + "-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            try {
+                start.await();
+                long next = System.nanoTime();
+                while (running) {
+                    outputStream.send(frame);
+                    framesSent.increment();
+                    if (interval > 0) {
+                        next += interval;
+                        LockSupport.parkNanos(next - System.nanoTime());
+                    }
+                }
+            } catch (IOException | InterruptedException ex) {
+                LOGGER.log(Level.WARNING, alias + ": " + ex.getMessage());
+                errors.increment();
+            }
+        }
+
+        /**
+         * Counts the images received from the peer until the connection closes.
+         * The first image is decoded and its signature verified.
+         *
+         * @param inputStream stream attached to the socket
+         * @param key         agreement key of this client
+         * @param otherKey    signing key of the peer
+         */
+        private void receive(ObjectInputStream inputStream, PrivateKey key, PublicKey otherKey) {
+            boolean verified = false;
+            try {
+                while (true) {
+                    Object object = inputStream.readObject();
+                    if (object instanceof CommandMessage) {
+                        return;
+                    }
+                    byte[] frame = (byte[]) object;
+                    if (!verified) {
+                        PGPUtils.PGPDecode(frame, key, otherKey, logger);
+                        verified = true;
+                    }
+                    framesReceived.increment();
+                    bytesReceived.add(frame.length);
+                }
+            } catch (IOException | ClassNotFoundException | GeneralSecurityException | DataFormatException ex) {
+                if (running) {
+                    LOGGER.log(Level.WARNING, alias + ": " + ex.getMessage());
+                    errors.increment();
+                }
+            }
+        }
+
+        /**
+         * Disconnects from the server by sending a {@link QuitMessage}
+         */
+        void quit() {
+            if (outputStream == null) {
+                return;
+            }
+            try {
+                outputStream.send(new QuitMessage(alias));
+                socket.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>MerkleTree</code> is a concrete class that builds a binary hash tree over
+ * a list of leaf hashes using a {@link HashAlgorithm}. Leaves and interior nodes are
+ * hashed with distinct prefixes so that a leaf cannot be passed off as a node, and
+ * each {@link Domain} of tree has its own pair of prefixes so that the root of one
+ * kind of tree cannot be passed off as the root of another. A node without a sibling
+ * is promoted to the next level unchanged. An inclusion proof lists the siblings on
+ * the path from a leaf to the root, and together with the index of the leaf and the
+ * number of leaves is enough to recompute the root.
+ * <p>
+ * {@link PGPUtils} signs batches of messages with the root of a tree over the messages,
+ * and hashes very large messages as a tree over fixed size chunks, whose leaves can be
+ * hashed in parallel.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see BatchSignature
+ * @see MerkleTree.Domain
+ */
+public class MerkleTree {
+
+    public static final int HASH_LENGTH = 32;
+    private final List<byte[][]> levels = new ArrayList<>();
+    private final Domain domain;
+
+    /**
+     * Kinds of tree, each hashed with its own leaf and node prefixes
+     */
+    public enum Domain {
+        BATCH((byte) 0x00, (byte) 0x01),
+        CHUNKS((byte) 0x02, (byte) 0x03);
+
+        private final byte leafPrefix;
+        private final byte nodePrefix;
+
+        Domain(byte leafPrefix, byte nodePrefix) {
+            this.leafPrefix = leafPrefix;
+            this.nodePrefix = nodePrefix;
+        }
+    }
+
+    /**
+     * Class constructor specifying the leaf hashes of a batch and the algorithm that hashed them
+     *
+     * @param leaves leaf hashes computed by {@link #leaf(HashAlgorithm, byte[], int, int)}
+     * @param hash   algorithm of the tree
+     */
+    public MerkleTree(List<byte[]> leaves, HashAlgorithm hash) throws NoSuchAlgorithmException {
+        this(leaves, hash, Domain.BATCH);
+    }
+
+    /**
+     * Class constructor specifying the leaf hashes, the algorithm that hashed them and the kind of tree
+     *
+     * @param leaves leaf hashes computed by {@link #leaf(Domain, HashAlgorithm, byte[], int, int)}
+     * @param hash   algorithm of the tree
+     * @param domain kind of tree
+     */
+    public MerkleTree(List<byte[]> leaves, HashAlgorithm hash, Domain domain) throws NoSuchAlgorithmException {
+        this.domain = domain;
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf");
+        }
+        MessageDigest digest = hash.newDigest();
+        byte[][] level = leaves.toArray(new byte[0][]);
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                next[i] = 2 * i + 1 < level.length ? node(digest, domain, level[2 * i], level[2 * i + 1]) : level[2 * i];
+            }
+            levels.add(next);
+            level = next;
+        }
+    }
+
+    /**
+     * Computes the leaf hash of a range of bytes in a batch
+     *
+     * @param hash   algorithm of the tree
+     * @param data   bytes of the message
+     * @param offset start of the range
+     * @param length length of the range
+     * @return <code>byte[]</code>
+     */
+    public static byte[] leaf(HashAlgorithm hash, byte[] data, int offset, int length)
+            throws NoSuchAlgorithmException {
+        return leaf(Domain.BATCH, hash, data, offset, length);
+    }
+
+    /**
+     * Computes the leaf hash of a range of bytes in a kind of tree
+     *
+     * @param domain kind of tree
+     * @param hash   algorithm of the tree
+     * @param data   bytes of the message
+     * @param offset start of the range
+     * @param length length of the range
+     * @return <code>byte[]</code>
+     */
+    public static byte[] leaf(Domain domain, HashAlgorithm hash, byte[] data, int offset, int length)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = hash.newDigest();
+        digest.update(domain.leafPrefix);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    private static byte[] node(MessageDigest digest, Domain domain, byte[] left, byte[] right) {
+        digest.update(domain.nodePrefix);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    public byte[] getRoot() {
+        return levels.get(levels.size() - 1)[0];
+    }
+
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    /**
+     * Returns the inclusion proof of a leaf
+     *
+     * @param index index of the leaf
+     * @return <code>byte[][]</code> sibling hashes from the leaf towards the root
+     */
+    public byte[][] getProof(int index) {
+        List<byte[]> proof = new ArrayList<>();
+        for (int i = 0; i < levels.size() - 1; i++) {
+            byte[][] level = levels.get(i);
+            int sibling = index ^ 1;
+            if (sibling < level.length) {
+                proof.add(level[sibling]);
+            }
+            index >>= 1;
+        }
+        return proof.toArray(new byte[0][]);
+    }
+
+    /**
+     * Recomputes the root of a batch from a leaf and its inclusion proof
+     *
+     * @param hash  algorithm of the tree
+     * @param leaf  leaf hash
+     * @param index index of the leaf
+     * @param count number of leaves in the tree
+     * @param proof sibling hashes from the leaf towards the root
+     * @return <code>byte[]</code> or <code>null</code> if the proof does not fit a tree of that size
+     */
+    public static byte[] computeRoot(HashAlgorithm hash, byte[] leaf, int index, int count, byte[][] proof)
+            throws NoSuchAlgorithmException {
+        if (count < 1 || index < 0 || index >= count) {
+            return null;
+        }
+        MessageDigest digest = hash.newDigest();
+        byte[] node = leaf;
+        int used = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < size) {
+                if (used == proof.length) {
+                    return null;
+                }
+                byte[] other = proof[used++];
+                node = (index & 1) == 0 ? node(digest, Domain.BATCH, node, other)
+                        : node(digest, Domain.BATCH, other, node);
+            }
+            index >>= 1;
+        }
+        return used == proof.length ? node : null;
+    }
+}
@@ -4,7 +4,15 @@ import java.io.Serializable;
  * <code>Message</code> is an concrete class that represents an unencrypted message
  * transmitted between two clients over a network.
  * A <code>Message</code> consists of the <code>Base64</code> encoding of an image and associated
- * caption.
+ * caption. A reference <code>Message</code> carries the SHA-256 digest of an image
+ * the recipient already holds in place of the image itself. A preview <code>Message</code>
+ * carries a thumbnail of an image that follows in a later message, together with the
+ * SHA-256 digest of that image so the recipient can match the two. A receipt
+ * <code>Message</code> is sent back by a recipient to confirm that it holds an image,
+ * or that it could not restore a referenced image, so that the sender only sends
+ * references to images the recipient has confirmed.
+ * The {@link Kind} of a <code>Message</code> travels as a prefix of its image field and
+ * is parsed once, when the message is constructed or its image is set.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -14,8 +22,51 @@ import java.io.Serializable;
  */
 public class Message implements Serializable {
 
+    /**
+     * Kinds of message. Each kind other than an image is marked by a prefix of the
+     * image field; the prefixes end in a colon, which cannot occur in
+     * <code>Base64</code>, so the markers are unambiguous.
+     */
+    public enum Kind {
+        /**
+         * Carries a <code>Base64</code> encoded image
+         */
+        IMAGE(""),
+        /**
+         * Refers to an image by its digest
+         */
+        REFERENCE("sha256:"),
+        /**
+         * Carries the digest of the full image, a colon and a thumbnail
+         */
+        PREVIEW("preview:"),
+        /**
+         * Receipts for an image the recipient holds and for an image it could not restore
+         */
+        HELD("held:"),
+        MISSING("missing:");
+
+        private final String prefix;
+
+        Kind(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private static Kind of(String base64Image) {
+            if (base64Image != null) {
+                for (Kind kind : values()) {
+                    if (kind != IMAGE && base64Image.startsWith(kind.prefix)) {
+                        return kind;
+                    }
+                }
+            }
+            return IMAGE;
+        }
+    }
+
     private String base64Image;
     private String caption;
+    private Kind kind;
 
     /**
      * Class constructor specifying image and caption
@@ -26,6 +77,140 @@ public class Message implements Serializable {
     public Message(String base64Image, String caption) {
         this.base64Image = base64Image;
         this.caption = caption;
+        this.kind = Kind.of(base64Image);
+    }
+
+    /**
+     * Creates a message that refers to an image by the digest of its contents
+     *
+     * @param digest  hex-encoded SHA-256 digest of the image
+     * @param caption image caption
+     * @return <code>Message</code>
+     */
+    public static Message reference(String digest, String caption) {
+        return new Message(Kind.REFERENCE.prefix + digest, caption);
+    }
+
+    /**
+     * Returns whether this message refers to an image by digest
+     *
+     * @return <code>boolean</code>
+     */
+    public boolean isReference() {
+        return kind == Kind.REFERENCE;
+    }
+
+    /**
+     * Returns the digest of the referenced image
+     *
+     * @return <code>String</code> or <code>null</code> if this is not a reference message
+     */
+    public String getReference() {
+        return isReference() ? base64Image.substring(Kind.REFERENCE.prefix.length()) : null;
+    }
+
+    /**
+     * Creates a message that carries a thumbnail of an image sent after it
+     *
+     * @param digest          hex-encoded SHA-256 digest of the full image
+     * @param base64Thumbnail <code>Base64</code> encoded thumbnail
+     * @param caption         image caption
+     * @return <code>Message</code>
+     */
+    public static Message preview(String digest, String base64Thumbnail, String caption) {
+        return new Message(Kind.PREVIEW.prefix + digest + ":" + base64Thumbnail, caption);
+    }
+
+    /**
+     * Returns whether this message carries a preview of an image
+     *
+     * @return <code>boolean</code>
+     */
+    public boolean isPreview() {
+        return kind == Kind.PREVIEW;
+    }
+
+    /**
+     * Returns the digest of the image this message previews
+     *
+     * @return <code>String</code> or <code>null</code> if this is not a preview message
+     */
+    public String getPreviewOf() {
+        return isPreview() ? base64Image.substring(Kind.PREVIEW.prefix.length(), previewSeparator()) : null;
+    }
+
+    /**
+     * Returns <code>Base64</code> encoding of the thumbnail of a preview message
+     *
+     * @return <code>String</code> or <code>null</code> if this is not a preview message
+     */
+    public String getBase64Preview() {
+        return isPreview() ? base64Image.substring(previewSeparator() + 1) : null;
+    }
+
+    private int previewSeparator() {
+        int separator = base64Image.indexOf(':', Kind.PREVIEW.prefix.length());
+        if (separator < 0) {
+            throw new IllegalArgumentException("Preview message has no digest separator");
+        }
+        return separator;
+    }
+
+    /**
+     * Creates a receipt for an image the recipient has saved
+     *
+     * @param digest hex-encoded SHA-256 digest of the image
+     * @return <code>Message</code>
+     */
+    public static Message held(String digest) {
+        return new Message(Kind.HELD.prefix + digest, "");
+    }
+
+    /**
+     * Creates a receipt for a referenced image the recipient could not restore
+     *
+     * @param digest  hex-encoded SHA-256 digest of the image
+     * @param caption caption of the reference message
+     * @return <code>Message</code>
+     */
+    public static Message missing(String digest, String caption) {
+        return new Message(Kind.MISSING.prefix + digest, caption);
+    }
+
+    /**
+     * Returns whether this message is a receipt
+     *
+     * @return <code>boolean</code>
+     */
+    public boolean isReceipt() {
+        return kind == Kind.HELD || kind == Kind.MISSING;
+    }
+
+    /**
+     * Returns whether this message is a receipt for an image the recipient holds
+     *
+     * @return <code>boolean</code>
+     */
+    public boolean isHeld() {
+        return kind == Kind.HELD;
+    }
+
+    /**
+     * Returns the digest of the image a receipt refers to
+     *
+     * @return <code>String</code> or <code>null</code> if this is not a receipt
+     */
+    public String getReceiptDigest() {
+        return isReceipt() ? base64Image.substring(kind.prefix.length()) : null;
+    }
+
+    /**
+     * Returns the kind of this message
+     *
+     * @return <code>Kind</code>
+     */
+    public Kind getKind() {
+        return kind;
     }
 
     /**
@@ -39,6 +224,7 @@ public class Message implements Serializable {
 
     public void setBase64Image(String base64Image) {
         this.base64Image = base64Image;
+        this.kind = Kind.of(base64Image);
     }
 
     /**
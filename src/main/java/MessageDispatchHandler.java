@@ -3,23 +3,56 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import java.io.*;
 import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.DataFormatException;
 
 /**
  * <code>MessageDispatchHandler</code> is a concrete class that extends {@link Thread}.
  * A dedicated handler thread is spawned by a <code>Client</code> after initiating a connection request.
  * A <code>MessageDispatchHandler</code> is responsible
  * for dispatching encrypted messages to the <code>Server</code> after a communication session has been
- * activated.
+ * activated. A whole directory, or the files matching a glob, can be dispatched with
+ * the <code>batch</code> command: files are read and encoded concurrently on a bounded
+ * pool and streamed to the socket in order while later files are still encoding.
+ * When the <code>cryptosystem.dedup</code> system property is set, images the recipient
+ * has confirmed with a receipt are sent as a reference to their digest.
+ * Images can be scaled down before they are encoded by an {@link ImageTranscoder}, which
+ * is configured for the session from system properties or with the <code>scale</code> command.
+ * When the <code>cryptosystem.progressive</code> system property is set, a large image is
+ * preceded by a separately encrypted and signed thumbnail, so the recipient can show it
+ * and its caption while the full image is still being encoded and transferred.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -31,22 +64,39 @@ public class MessageDispatchHandler extends Thread {
 
     private static final Logger LOGGER = Logger.getLogger(MessageDispatchHandler.class.getName());
     private static final Prettier PRETTIER = new Prettier();
+    private static final int CHUNK_SIZE = 3 * 16 * 1024;
+    private static final long MAX_ENCODED_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int PREVIEW_DIMENSION = 160;
+    private static final float PREVIEW_QUALITY = 0.6f;
+    private static final long PREVIEW_THRESHOLD = 64 * 1024;
     private final Socket socket;
     private final Client client;
     private final CommandMessageFactory commandMessageFactory = new CommandMessageFactory();
-    private final ObjectOutputStream outputStream;
+    private final BoundedObjectOutputStream outputStream;
+    private final int batchThreads = Runtime.getRuntime().availableProcessors();
+    private final boolean contentAddressed = Boolean.getBoolean("cryptosystem.dedup");
+    private volatile ImageTranscoder transcoder = ImageTranscoder.configured();
+    private final boolean progressive = Boolean.getBoolean("cryptosystem.progressive");
+    private final ImageTranscoder previews = new ImageTranscoder(PREVIEW_DIMENSION, PREVIEW_QUALITY);
+    private final ExecutorService previewEncoder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "preview-encoder");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Sole class constructor
      */
-    public MessageDispatchHandler(Socket socket, ObjectOutputStream outputStream, Client client) {
+    public MessageDispatchHandler(Socket socket, BoundedObjectOutputStream outputStream, Client client) {
         this.socket = socket;
         this.client = client;
         this.outputStream = outputStream;
     }
 
     /**
-     * Converts an image file to <code>Base64</code> encoded string
+     * Converts an image file to <code>Base64</code> encoded string.
+     * The file is memory-mapped and encoded in fixed-size chunks, so the raw
+     * image is never copied onto the heap in full.
      *
      * @param file image to encode
      * @returns <code>String</code>
@@ -54,10 +104,7 @@ public class MessageDispatchHandler extends Thread {
     public static String encodeImageToBase64(File file) {
         String base64Image = null;
         try {
-            FileInputStream fileInputStream = new FileInputStream(file);
-            byte[] bytes = new byte[(int) file.length()];
-            fileInputStream.read(bytes);
-            base64Image = Base64.getEncoder().encodeToString(bytes);
+            base64Image = encodeImageToBase64(file.toPath());
         } catch (IOException ex) {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
@@ -65,10 +112,58 @@ public class MessageDispatchHandler extends Thread {
         return base64Image;
     }
 
+    /**
+     * Memory-maps an image file and streams it through a <code>Base64</code>
+     * encoder into an exactly sized array
+     *
+     * @param path image to encode
+     * @return <code>String</code>
+     * @throws IOException if the file cannot be read or its encoding would exceed the maximum string length
+     */
+    static String encodeImageToBase64(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long encodedSize = 4 * ((size + 2) / 3);
+            if (encodedSize > MAX_ENCODED_LENGTH) {
+                throw new IOException("Image " + path + " is too large to send (" + size + " bytes)");
+            }
+            byte[] encoded = new byte[(int) encodedSize];
+            OutputStream sink = new OutputStream() {
+                private int position = 0;
+
+                @Override
+                public void write(int b) {
+                    encoded[position++] = (byte) b;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    System.arraycopy(b, off, encoded, position, len);
+                    position += len;
+                }
+            };
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            try (OutputStream encoder = Base64.getEncoder().wrap(sink)) {
+                while (mapped.hasRemaining()) {
+                    int length = Math.min(chunk.length, mapped.remaining());
+                    mapped.get(chunk, 0, length);
+                    encoder.write(chunk, 0, length);
+                }
+            }
+            return new String(encoded, StandardCharsets.ISO_8859_1);
+        }
+    }
+
     /**
      * Reads in input from the console after the thread is unblocked
      * and continuously writes encrypted messages to the socket output stream.
-     * Writes a {@link QuitMessage} to the output stream if the client requests to disconnect
+     * Writes a {@link QuitMessage} to the output stream if the client requests to disconnect.
+     * Input of the form <code>batch &lt;directory|glob&gt;</code> dispatches every matching file
+     * using the image filename as its caption. <code>scale &lt;pixels&gt; [quality]</code> sets the
+     * maximum dimension and JPEG quality of the images sent, and <code>scale off</code> sends
+     * them unchanged. When decryption is deferred, <code>stored</code> lists the messages held
+     * encrypted and <code>open &lt;id&gt;</code> decrypts one of them.
      *
      * @see PGPUtils
      */
@@ -87,15 +182,30 @@ public class MessageDispatchHandler extends Thread {
         }
         PRETTIER.print("System", "The secure session will be activated now");
 
-        Object message = null;
+        Object message;
         String input = "";
         do {
             BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+            message = null;
             try {
-                PRETTIER.print("System", "Enter the absolute path of an image or 'quit'");
+                PRETTIER.print("System", client.isDeferred()
+                        ? "Enter the absolute path of an image, 'batch <directory|glob>', 'scale <pixels> [quality]|off', 'stored', 'open <id>' or 'quit'"
+                        : "Enter the absolute path of an image, 'batch <directory|glob>', 'scale <pixels> [quality]|off' or 'quit'");
                 input = stdin.readLine();
 
-                if (input.equals("quit")) {
+                if (input.startsWith("batch ")) {
+                    dispatchBatch(input.substring(6).trim());
+                    continue;
+                } else if (input.startsWith("scale ")) {
+                    configureScaling(input.substring(6).trim());
+                    continue;
+                } else if (client.isDeferred() && input.equals("stored")) {
+                    listStored();
+                    continue;
+                } else if (client.isDeferred() && input.startsWith("open ")) {
+                    openStored(input.substring(5).trim());
+                    continue;
+                } else if (input.equals("quit")) {
                     message = commandMessageFactory.getCommandMessage("QUIT", client.getAlias());
                 } else {
                     Path path = Paths.get(input);
@@ -106,18 +216,36 @@ public class MessageDispatchHandler extends Thread {
                     }
                     PRETTIER.print("System", "Enter a caption for the image");
                     String caption = stdin.readLine();
-                    File file = path.toFile();
-
-                    Message m = new Message(encodeImageToBase64(file), caption);
-                    message = encode(m);
+                    ImageTranscoder imageTranscoder = transcoder;
+                    if (imageTranscoder == null) {
+                        String digest = digestIfNeeded(path);
+                        boolean held = isHeldByRecipient(digest);
+                        Path file = path;
+                        // the thumbnail is encoded alongside the image and sent ahead of it
+                        CompletableFuture<Void> preview = progressive
+                                ? CompletableFuture.runAsync(() -> sendPreview(file, null, digest, held, caption), previewEncoder)
+                                : CompletableFuture.completedFuture(null);
+                        message = encodeImage(path, digest, held, caption);
+                        preview.join();
+                    } else {
+                        long size = Files.size(path);
+                        byte[] image = imageTranscoder.transcode(path);
+                        if (image.length < size) {
+                            PRETTIER.print("System", "Image reduced from " + size + " to " + image.length
+                                    + " bytes, saving " + (size - image.length) + " bytes");
+                        }
+                        String digest = digestIfNeeded(image);
+                        message = encodeImage(image, digest, isHeldByRecipient(digest), caption);
+                    }
                 }
 
-            } catch (IOException | KeyStoreException | InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException | NoSuchAlgorithmException | BadPaddingException | InvalidKeyException ex) {
+            } catch (IOException | GeneralSecurityException | IllegalArgumentException ex) {
                 LOGGER.log(Level.WARNING, ex.getMessage());
+                continue;
             }
 
             try {
-                outputStream.writeObject(message);
+                outputStream.send(message);
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, ex.getMessage());
             }
@@ -125,9 +253,343 @@ public class MessageDispatchHandler extends Thread {
         } while (!input.equals("quit"));
     }
 
-    private byte[] encode(Message message) throws KeyStoreException, InvalidAlgorithmParameterException,
+    /**
+     * Sets the maximum dimension and JPEG quality of the images sent in this session,
+     * or turns scaling off
+     *
+     * @param spec <code>&lt;pixels&gt; [quality]</code> or <code>off</code>
+     */
+    private void configureScaling(String spec) {
+        if (spec.equals("off")) {
+            transcoder = null;
+            PRETTIER.print("System", "Images will be sent unchanged");
+            return;
+        }
+        String[] fields = spec.split("\\s+");
+        try {
+            transcoder = new ImageTranscoder(Integer.parseInt(fields[0]),
+                    fields.length > 1 ? Float.parseFloat(fields[1]) : ImageTranscoder.DEFAULT_QUALITY);
+            PRETTIER.print("System", "Images will be scaled to at most " + transcoder.getMaxDimension()
+                    + " pixels at quality " + transcoder.getQuality());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Prints the index of the messages held encrypted by the client
+     */
+    private void listStored() throws IOException {
+        CiphertextStore store = client.getStore();
+        List<CiphertextStore.Entry> entries = store.getEntries();
+        if (entries.isEmpty()) {
+            PRETTIER.print("System", "No messages are stored");
+        }
+        if (store.getUnopenable() > 0) {
+            PRETTIER.print("System", store.getUnopenable()
+                    + " stored messages were encrypted for other keys and cannot be opened");
+        }
+        for (CiphertextStore.Entry entry : entries) {
+            PRETTIER.print("System", String.format("%d from %s at %tF %<tT, %d bytes", entry.getId(),
+                    entry.getSender(), entry.getTime(), entry.getSize()));
+        }
+    }
+
+    /**
+     * Decrypts a stored message and saves its image to the output directory
+     *
+     * @param id identifier of the stored message
+     */
+    private void openStored(String id) {
+        try {
+            Message m = client.openStored(Long.parseLong(id));
+            if (m.isReference()) {
+                PRETTIER.print("System", "Message " + id + " refers to image " + m.getReference() + " sent earlier");
+                return;
+            }
+            if (m.isReceipt()) {
+                client.acceptReceipt(m);
+                PRETTIER.print("System", "Message " + id + " is a receipt for image " + m.getReceiptDigest());
+                return;
+            }
+            if (m.isPreview()) {
+                byte[] thumbnail = Base64.getDecoder().decode(m.getBase64Preview());
+                Path target = Paths.get(client.getPath()).resolve(id + ImageTranscoder.extension(thumbnail));
+                Files.write(target, thumbnail);
+                PRETTIER.print(client.getOtherAlias(), m.getCaption());
+                PRETTIER.print("System", "Preview of image " + m.getPreviewOf() + " has been saved to " + target);
+                return;
+            }
+            byte[] data = Base64.getDecoder().decode(m.getBase64Image());
+            Path target = Paths.get(client.getPath()).resolve(id + ImageTranscoder.extension(data));
+            Files.write(target, data);
+            client.recordHistory(m.getCaption(), ContentIndex.digest(data), target);
+            PRETTIER.print(client.getOtherAlias(), m.getCaption());
+            PRETTIER.print("System", "Decrypted image has been saved to " + target);
+        } catch (IOException | GeneralSecurityException | DataFormatException | IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Resolves a directory or glob to the regular files it denotes, in name order.
+     * A glob may only appear in the final path component, and relative paths are
+     * resolved against the working directory.
+     *
+     * @param spec path of a directory or glob
+     * @return <code>List</code>
+     * @throws IOException if the directory does not exist or the glob is malformed
+     */
+    private static List<Path> resolveBatch(String spec) throws IOException {
+        Path path;
+        try {
+            path = Paths.get(spec).toAbsolutePath();
+        } catch (InvalidPathException ex) {
+            throw new IOException("Invalid batch path " + spec, ex);
+        }
+        Path directory = Files.isDirectory(path) ? path : path.getParent();
+        if (directory == null) {
+            throw new IOException("No directory in batch path " + spec);
+        }
+        String glob = Files.isDirectory(path) ? "*" : path.getFileName().toString();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        } catch (PatternSyntaxException ex) {
+            throw new IOException("Invalid batch glob " + glob, ex);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Reads and encodes the files of a batch on a bounded pool and writes the encrypted
+     * messages to the socket in order. At most twice as many files as there are
+     * threads are in flight at once. Images are transcoded and hashed on the same pool when
+     * scaling is on, and whether the recipient holds each one is decided in send order before
+     * it is encoded. Previews are sent by the pool as soon as they are encoded, ahead of the full
+     * images. Progress is reported every second and a summary is printed once the batch completes.
+     *
+     * @param spec path of a directory or glob
+     */
+    private void dispatchBatch(String spec) throws IOException {
+        List<Path> files = resolveBatch(spec);
+        if (files.isEmpty()) {
+            PRETTIER.print("System", "No images match " + spec);
+            return;
+        }
+        PRETTIER.print("System", "Dispatching " + files.size() + " images");
+
+        ImageTranscoder imageTranscoder = transcoder;
+        long savedBefore = imageTranscoder == null ? 0 : imageTranscoder.getBytesSaved();
+        AtomicInteger sent = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        long start = System.nanoTime();
+        ExecutorService encoders = Executors.newFixedThreadPool(batchThreads);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> PRETTIER.print("System",
+                progress(sent.get(), files.size(), bytes.get(), System.nanoTime() - start)), 1, 1, TimeUnit.SECONDS);
+
+        Deque<Future<ScaledImage>> scaling = new ArrayDeque<>();
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        try {
+            int next = 0;
+            while (next < files.size() || !scaling.isEmpty() || !inFlight.isEmpty()) {
+                while (next < files.size() && scaling.size() + inFlight.size() < 2 * batchThreads) {
+                    Path file = files.get(next++);
+                    String caption = file.getFileName().toString();
+                    if (imageTranscoder != null) {
+                        scaling.add(encoders.submit(() -> {
+                            byte[] image = imageTranscoder.transcode(file);
+                            return new ScaledImage(image, digestIfNeeded(image), caption);
+                        }));
+                        continue;
+                    }
+                    String digest;
+                    try {
+                        digest = digestIfNeeded(file);
+                    } catch (IOException | NoSuchAlgorithmException ex) {
+                        LOGGER.log(Level.WARNING, ex.getMessage());
+                        continue;
+                    }
+                    boolean held = isHeldByRecipient(digest);
+                    inFlight.add(encoders.submit(() -> {
+                        sendPreview(file, null, digest, held, caption);
+                        return encodeImage(file, digest, held, caption);
+                    }));
+                }
+                if (!scaling.isEmpty() && inFlight.size() < batchThreads) {
+                    // whether the recipient holds a scaled image is decided here, in send order
+                    ScaledImage scaled;
+                    try {
+                        scaled = scaling.poll().get();
+                    } catch (ExecutionException ex) {
+                        LOGGER.log(Level.WARNING, ex.getCause().getMessage());
+                        continue;
+                    }
+                    boolean held = isHeldByRecipient(scaled.digest);
+                    inFlight.add(encoders.submit(() -> encodeImage(scaled.image, scaled.digest, held, scaled.caption)));
+                    continue;
+                }
+                if (inFlight.isEmpty()) {
+                    continue;
+                }
+                byte[] message;
+                try {
+                    message = inFlight.poll().get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, ex.getCause().getMessage());
+                    continue;
+                }
+                outputStream.send(message);
+                sent.incrementAndGet();
+                bytes.addAndGet(message.length);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reporter.shutdownNow();
+            encoders.shutdownNow();
+        }
+        PRETTIER.print("System", "Batch complete: " + progress(sent.get(), files.size(), bytes.get(), System.nanoTime() - start));
+        if (imageTranscoder != null) {
+            long saved = imageTranscoder.getBytesSaved() - savedBefore;
+            PRETTIER.print("System", saved >= 0 ? "Scaling saved " + saved + " bytes"
+                    : "Scaling added " + -saved + " bytes");
+        }
+    }
+
+    /**
+     * Formats batch progress as files and megabytes per second
+     *
+     * @return <code>String</code>
+     */
+    private static String progress(int sent, int total, long bytes, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        return String.format("%d/%d images, %.1f files/s, %.2f MB/s",
+                sent, total, sent / seconds, bytes / seconds / (1024 * 1024));
+    }
+
+    /**
+     * Encodes the message for an image file. In content-addressed mode an image the
+     * recipient holds is replaced by a reference to its digest.
+     *
+     * @param path    image to send
+     * @param digest  hex-encoded SHA-256 digest of the image
+     * @param held    whether the recipient holds the image
+     * @param caption image caption
+     * @return <code>byte[]</code>
+     */
+    private byte[] encodeImage(Path path, String digest, boolean held, String caption)
+            throws IOException, GeneralSecurityException {
+        return encode(held ? Message.reference(digest, caption) : new Message(encodeImageToBase64(path), caption));
+    }
+
+    /**
+     * Encodes and sends a thumbnail of an image ahead of the image when progressive
+     * delivery is on. Nothing is sent for images the recipient holds, images smaller
+     * than the threshold, or images whose thumbnail would not be smaller. A preview that
+     * cannot be sent is only logged, since the full image follows. May be called by
+     * several threads.
+     *
+     * @param path    image file, read if <code>image</code> is <code>null</code>
+     * @param image   bytes of the image to send, or <code>null</code>
+     * @param digest  hex-encoded SHA-256 digest of the image
+     * @param held    whether the recipient holds the image
+     * @param caption image caption
+     */
+    private void sendPreview(Path path, byte[] image, String digest, boolean held, String caption) {
+        if (!progressive || held) {
+            return;
+        }
+        try {
+            long size = image == null ? Files.size(path) : image.length;
+            if (size < PREVIEW_THRESHOLD) {
+                return;
+            }
+            byte[] thumbnail = image == null ? previews.thumbnail(path) : previews.thumbnail(image);
+            if (thumbnail != null && thumbnail.length < size) {
+                outputStream.send(encode(Message.preview(digest, Base64.getEncoder().encodeToString(thumbnail), caption)));
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Encodes the message for a transcoded image, preceded by its preview. The image is
+     * identified by the digest of the transcoded bytes, since those are the bytes the
+     * recipient holds.
+     *
+     * @param image   transcoded image
+     * @param digest  hex-encoded SHA-256 digest of <code>image</code>
+     * @param held    whether the recipient holds the image
+     * @param caption image caption
+     * @return <code>byte[]</code>
+     */
+    private byte[] encodeImage(byte[] image, String digest, boolean held, String caption)
+            throws GeneralSecurityException {
+        sendPreview(null, image, digest, held, caption);
+        return encode(held ? Message.reference(digest, caption)
+                : new Message(Base64.getEncoder().encodeToString(image), caption));
+    }
+
+    /**
+     * Returns the digest of an image file when content addressing or progressive
+     * sending needs it, so that other sends do not hash the image
+     *
+     * @param path image file
+     * @return <code>String</code> or <code>null</code> if neither mode is enabled
+     */
+    private String digestIfNeeded(Path path) throws IOException, NoSuchAlgorithmException {
+        return contentAddressed || progressive ? ContentIndex.digest(path) : null;
+    }
+
+    /**
+     * Returns the digest of an image when content addressing or progressive
+     * sending needs it, so that other sends do not hash the image
+     *
+     * @param image image bytes
+     * @return <code>String</code> or <code>null</code> if neither mode is enabled
+     */
+    private String digestIfNeeded(byte[] image) throws NoSuchAlgorithmException {
+        return contentAddressed || progressive ? ContentIndex.digest(image) : null;
+    }
+
+    /**
+     * Returns whether a reference may be sent in place of an image, which requires
+     * content-addressed mode and a receipt from the recipient confirming that it holds
+     * the image. An image that was sent but never confirmed is sent in full again.
+     *
+     * @param digest hex-encoded SHA-256 digest of the image
+     * @return <code>boolean</code>
+     */
+    private boolean isHeldByRecipient(String digest) {
+        return contentAddressed && client.isHeldByOther(digest);
+    }
+
+    private byte[] encode(Message message) throws InvalidAlgorithmParameterException,
             NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException,
-            BadPaddingException, InvalidKeyException {
-        return PGPUtils.PGPEncode(message, client.getPrivateKey(), client.getOtherPublicKey(), Client.LOGGER);
+            BadPaddingException, InvalidKeyException, SignatureException {
+        return PGPUtils.PGPEncode(message, client.getSigningKey(), client.getOtherAgreementKey(), Client.LOGGER);
+    }
+
+    /**
+     * An image transcoded by a batch encoder and the digest of the transcoded bytes
+     */
+    private static final class ScaledImage {
+        private final byte[] image;
+        private final String digest;
+        private final String caption;
+
+        private ScaledImage(byte[] image, String digest, String caption) {
+            this.image = image;
+            this.digest = digest;
+            this.caption = caption;
+        }
     }
 }
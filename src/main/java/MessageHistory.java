@@ -0,0 +1,573 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * <code>MessageHistory</code> is a concrete class that records the sender, caption, time
+ * and content digest of every image a client saves, in an append-only store on disk.
+ * Records are appended to segment files of up to {@link #SEGMENT_SIZE} bytes, each
+ * record framed by its length and a CRC-32C checksum. A torn record at the end of the
+ * last segment, left by a crash, is truncated when the store is opened.
+ * <p>
+ * Records are located through a compact in-memory index of parallel arrays holding the
+ * time, sender and digest prefix of each record and its position on disk, about 40 bytes
+ * per record. Times are kept non-decreasing, so a time range is found by binary search;
+ * each sender has a list of its record numbers, searched the same way; and the digests
+ * are held in an open-addressing hash table. Queries read only the records they return.
+ * <p>
+ * The index is written to a checkpoint when a segment is sealed, when the store is
+ * closed, and after every {@link #CHECKPOINT_INTERVAL} records or a quarter of the records
+ * already checkpointed, whichever is more, so that the cost of checkpointing stays in
+ * proportion to the records appended. On startup the checkpoint is loaded and only the
+ * records appended after it are read from the segments.
+ *
+ * @author Emily Morris
+ * @author Insaaf Dhansay
+ * @author Aidan Bailey
+ * @author Kialan Pillay
+ * @version %I%, %G%
+ */
+public class MessageHistory implements AutoCloseable {
+
+    /**
+     * Size at which a segment is sealed and a new segment started
+     */
+    public static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    /**
+     * Least number of records appended between checkpoints
+     */
+    public static final int CHECKPOINT_INTERVAL = 1024;
+    private static final Logger LOGGER = Logger.getLogger(MessageHistory.class.getName());
+    private static final String CHECKPOINT = "checkpoint";
+    private static final int CHECKPOINT_MAGIC = 0x4D484331;
+    private static final int RECORD_HEADER = 8;
+    private static final int OFFSET_BITS = 40;
+    private static final int INITIAL_CAPACITY = 1024;
+    private final Path directory;
+    private final Map<Integer, FileChannel> segments = new HashMap<>();
+    private final Map<String, Integer> senderIds = new HashMap<>();
+    private final List<String> senders = new ArrayList<>();
+    private final List<int[]> postings = new ArrayList<>();
+    private final List<Integer> postingCounts = new ArrayList<>();
+    private long[] times = new long[INITIAL_CAPACITY];
+    private long[] locations = new long[INITIAL_CAPACITY];
+    private long[] digests = new long[INITIAL_CAPACITY];
+    private int[] senderOf = new int[INITIAL_CAPACITY];
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int count;
+    private int checkpointed;
+    private int segment;
+    private long position;
+
+    /**
+     * Class constructor specifying the directory of the store. The directory is
+     * created if it does not exist, and the index is rebuilt from the checkpoint
+     * and the records appended after it.
+     *
+     * @param directory directory of the store
+     */
+    public MessageHistory(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        if (!loadCheckpoint()) {
+            clear();
+        }
+        replay();
+    }
+
+    /**
+     * Appends a record of a saved image
+     *
+     * @param sender   alias of the sender
+     * @param caption  caption of the image
+     * @param digest   hex-encoded SHA-256 digest of the image
+     * @param fileName name of the saved image file
+     * @return <code>Entry</code>
+     */
+    public synchronized Entry append(String sender, String caption, String digest, String fileName)
+            throws IOException {
+        long time = Math.max(System.currentTimeMillis(), count == 0 ? 0 : times[count - 1]);
+        Entry entry = new Entry(time, sender, caption, digest, fileName);
+        byte[] payload = entry.encode();
+        if (position > 0 && position + RECORD_HEADER + payload.length > SEGMENT_SIZE) {
+            seal();
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        FileChannel channel = channel(segment);
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        index(time, sender, prefix(digest), ((long) segment << OFFSET_BITS) | offset);
+        if (count - checkpointed >= Math.max(CHECKPOINT_INTERVAL, checkpointed / 4)) {
+            channel.force(false);
+            writeCheckpoint();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the number of records
+     *
+     * @return <code>int</code>
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Counts the records in a time range without reading them
+     *
+     * @param from first time in the range in milliseconds since the epoch, inclusive
+     * @param to   last time in the range, exclusive
+     * @return <code>int</code>
+     */
+    public synchronized int count(long from, long to) {
+        return Math.max(0, lowerBound(to) - lowerBound(from));
+    }
+
+    /**
+     * Returns the records in a time range in the order they were appended
+     *
+     * @param from  first time in the range in milliseconds since the epoch, inclusive
+     * @param to    last time in the range, exclusive
+     * @param limit maximum number of records to return
+     * @return <code>List</code>
+     */
+    public synchronized List<Entry> range(long from, long to, int limit) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = lowerBound(from); i < count && times[i] < to && entries.size() < limit; i++) {
+            entries.add(read(i));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the records of one sender in a time range in the order they were appended
+     *
+     * @param sender alias of the sender
+     * @param from   first time in the range in milliseconds since the epoch, inclusive
+     * @param to     last time in the range, exclusive
+     * @param limit  maximum number of records to return
+     * @return <code>List</code>
+     */
+    public synchronized List<Entry> range(String sender, long from, long to, int limit) throws IOException {
+        Integer id = senderIds.get(sender);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+        int[] records = postings.get(id);
+        int size = postingCounts.get(id);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[records[middle]] < from) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (int i = low; i < size && times[records[i]] < to && entries.size() < limit; i++) {
+            entries.add(read(records[i]));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the most recent record of an image
+     *
+     * @param digest hex-encoded SHA-256 digest of the image
+     * @return <code>Entry</code>, or <code>null</code> if no record has the digest
+     */
+    public synchronized Entry find(String digest) throws IOException {
+        long key = prefix(digest);
+        for (int slot = slot(key); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+            int record = table[slot] - 1;
+            if (digests[record] == key) {
+                Entry entry = read(record);
+                if (entry.getDigest().equals(digest)) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a checkpoint of the index and closes the segments
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        writeCheckpoint();
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Starts a new segment and writes a checkpoint covering the sealed segment
+     */
+    private void seal() throws IOException {
+        channel(segment).force(false);
+        segment++;
+        position = 0;
+        writeCheckpoint();
+    }
+
+    /**
+     * Records a record in the index
+     */
+    private void index(long time, String sender, long digest, long location) {
+        if (count == times.length) {
+            int capacity = times.length * 2;
+            times = Arrays.copyOf(times, capacity);
+            locations = Arrays.copyOf(locations, capacity);
+            digests = Arrays.copyOf(digests, capacity);
+            senderOf = Arrays.copyOf(senderOf, capacity);
+        }
+        Integer id = senderIds.get(sender);
+        if (id == null) {
+            id = senders.size();
+            senderIds.put(sender, id);
+            senders.add(sender);
+            postings.add(new int[16]);
+            postingCounts.add(0);
+        }
+        times[count] = time;
+        locations[count] = location;
+        digests[count] = digest;
+        senderOf[count] = id;
+        post(count);
+        count++;
+    }
+
+    /**
+     * Adds a record to the posting list of its sender and to the digest table
+     */
+    private void post(int record) {
+        int id = senderOf[record];
+        int[] records = postings.get(id);
+        int size = postingCounts.get(id);
+        if (size == records.length) {
+            records = Arrays.copyOf(records, size * 2);
+            postings.set(id, records);
+        }
+        records[size] = record;
+        postingCounts.set(id, size + 1);
+        if ((record + 1) * 2 > table.length) {
+            int[] previous = table;
+            table = new int[previous.length * 2];
+            for (int value : previous) {
+                if (value != 0) {
+                    insert(value - 1);
+                }
+            }
+        }
+        insert(record);
+    }
+
+    /**
+     * Places a record in the digest table, replacing an earlier record of the same digest
+     */
+    private void insert(int record) {
+        int slot = slot(digests[record]);
+        while (table[slot] != 0 && digests[table[slot] - 1] != digests[record]) {
+            slot = (slot + 1) & (table.length - 1);
+        }
+        table[slot] = record + 1;
+    }
+
+    private int slot(long key) {
+        return (int) (key ^ (key >>> 32)) & (table.length - 1);
+    }
+
+    /**
+     * Returns the number of the first record at or after a time
+     */
+    private int lowerBound(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads a record from its segment
+     */
+    private Entry read(int record) throws IOException {
+        FileChannel channel = channel((int) (locations[record] >>> OFFSET_BITS));
+        long offset = locations[record] & ((1L << OFFSET_BITS) - 1);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(channel, header, offset);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(0));
+        readFully(channel, payload, offset + RECORD_HEADER);
+        return Entry.decode(payload);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("History record is truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%08d.log", number));
+    }
+
+    private FileChannel channel(int number) throws IOException {
+        FileChannel channel = segments.get(number);
+        if (channel == null) {
+            channel = FileChannel.open(segmentPath(number),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(number, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Indexes the records appended after the checkpoint, truncating a torn record
+     * at the end of the last segment
+     */
+    private void replay() throws IOException {
+        while (true) {
+            FileChannel channel = channel(segment);
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (position + RECORD_HEADER <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0 || position + RECORD_HEADER + length > size) {
+                    break;
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(channel, payload, position + RECORD_HEADER);
+                CRC32C crc = new CRC32C();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                Entry entry = Entry.decode(payload);
+                index(entry.getTime(), entry.getSender(), prefix(entry.getDigest()),
+                        ((long) segment << OFFSET_BITS) | position);
+                position += RECORD_HEADER + length;
+            }
+            boolean last = !Files.exists(segmentPath(segment + 1));
+            if (position < size) {
+                LOGGER.log(Level.WARNING, (last ? "Truncating torn" : "Skipping corrupt")
+                        + " history records in segment " + segment);
+                if (last) {
+                    channel.truncate(position);
+                }
+            }
+            if (last) {
+                return;
+            }
+            segment++;
+            position = 0;
+        }
+    }
+
+    /**
+     * Loads the index from the checkpoint
+     *
+     * @return <code>boolean</code> whether a consistent checkpoint was loaded
+     */
+    private boolean loadCheckpoint() {
+        Path path = directory.resolve(CHECKPOINT);
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Unrecognised history checkpoint");
+            }
+            segment = in.readInt();
+            position = in.readLong();
+            int senderCount = in.readInt();
+            for (int i = 0; i < senderCount; i++) {
+                String sender = in.readUTF();
+                senderIds.put(sender, i);
+                senders.add(sender);
+                postings.add(new int[16]);
+                postingCounts.add(0);
+            }
+            count = in.readInt();
+            int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, count)) * 2);
+            times = new long[capacity];
+            locations = new long[capacity];
+            digests = new long[capacity];
+            senderOf = new int[capacity];
+            table = new int[capacity * 2];
+            for (int i = 0; i < count; i++) {
+                times[i] = in.readLong();
+                locations[i] = in.readLong();
+                digests[i] = in.readLong();
+                senderOf[i] = in.readInt();
+                post(i);
+            }
+            checkpointed = count;
+            Path last = segmentPath(segment);
+            if (!Files.exists(last) || Files.size(last) < position) {
+                throw new IOException("History checkpoint is ahead of segment " + segment);
+            }
+            return true;
+        } catch (IOException | IndexOutOfBoundsException ex) {
+            LOGGER.log(Level.WARNING, "Rebuilding history index: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Resets the index so that every segment is replayed
+     */
+    private void clear() {
+        senderIds.clear();
+        senders.clear();
+        postings.clear();
+        postingCounts.clear();
+        times = new long[INITIAL_CAPACITY];
+        locations = new long[INITIAL_CAPACITY];
+        digests = new long[INITIAL_CAPACITY];
+        senderOf = new int[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+        count = 0;
+        checkpointed = 0;
+        segment = 0;
+        position = 0;
+    }
+
+    /**
+     * Writes the index to a temporary file that atomically replaces the checkpoint
+     */
+    private void writeCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT);
+        Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(segment);
+            out.writeLong(position);
+            out.writeInt(senders.size());
+            for (String sender : senders) {
+                out.writeUTF(sender);
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(times[i]);
+                out.writeLong(locations[i]);
+                out.writeLong(digests[i]);
+                out.writeInt(senderOf[i]);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointed = count;
+    }
+
+    /**
+     * Returns the first 8 bytes of a hex-encoded digest
+     */
+    private static long prefix(String digest) {
+        return Long.parseUnsignedLong(digest.substring(0, Math.min(16, digest.length())), 16);
+    }
+
+    /**
+     * <code>Entry</code> is a record of a saved image in a {@link MessageHistory}
+     */
+    public static final class Entry {
+
+        private final long time;
+        private final String sender;
+        private final String caption;
+        private final String digest;
+        private final String fileName;
+
+        private Entry(long time, String sender, String caption, String digest, String fileName) {
+            this.time = time;
+            this.sender = sender;
+            this.caption = caption;
+            this.digest = digest;
+            this.fileName = fileName;
+        }
+
+        private byte[] encode() {
+            byte[][] fields = {sender.getBytes(StandardCharsets.UTF_8), digest.getBytes(StandardCharsets.UTF_8),
+                    fileName.getBytes(StandardCharsets.UTF_8), caption.getBytes(StandardCharsets.UTF_8)};
+            int length = 8;
+            for (byte[] field : fields) {
+                length += 4 + field.length;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length).putLong(time);
+            for (byte[] field : fields) {
+                buffer.putInt(field.length).put(field);
+            }
+            return buffer.array();
+        }
+
+        private static Entry decode(ByteBuffer buffer) {
+            long time = buffer.getLong();
+            String[] fields = new String[4];
+            for (int i = 0; i < fields.length; i++) {
+                byte[] field = new byte[buffer.getInt()];
+                buffer.get(field);
+                fields[i] = new String(field, StandardCharsets.UTF_8);
+            }
+            return new Entry(time, fields[0], fields[3], fields[1], fields[2]);
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getCaption() {
+            return caption;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+    }
+}
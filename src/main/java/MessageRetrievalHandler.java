@@ -1,11 +1,27 @@
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import java.io.*;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.net.Socket;
-import java.security.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStoreException;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -16,7 +32,24 @@ import java.util.zip.DataFormatException;
  * A <code>MessageRetrievalHandler</code> is responsible
  * for retrieving encrypted messages from the <code>Server</code> after a communication session has been
  * activated, decrypting the messages using {@link PGPUtils} and delivering
- * it to a <code>Client</code>
+ * it to a <code>Client</code>.
+ * Retrieval is split into stages so that the socket is never stalled by decoding:
+ * the handler thread only reads frames, a bounded worker pool decrypts and decodes
+ * them in parallel, and decoded images are written with an {@link AsynchronousFileChannel}
+ * to a temporary file that is atomically renamed into place. Each frame is assigned a
+ * sequence number, and the actions that complete it, such as printing its caption,
+ * restoring a referenced image or sending a receipt, run one at a time in the order frames
+ * were received on a dedicated thread, so no stage waits on the I/O of another.
+ * Saved images are recorded in a {@link ContentIndex} by digest so that a reference
+ * message is restored by copying the earlier file instead of transferring the image again.
+ * When the <code>cryptosystem.dedup</code> system property is set, each saved or restored
+ * image is confirmed to the sender with an encrypted receipt, and a reference that cannot
+ * be restored is reported back, since the sender only sends references to confirmed images.
+ * Each persisted image is reported as a {@link FlightEvents.ImagePersisted} event.
+ * A preview message is saved and announced with its caption as soon as it arrives, and
+ * the preview is replaced when the image with the matching digest has been saved.
+ * When the client defers decryption, frames are stored encrypted in its
+ * {@link CiphertextStore} instead.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -29,20 +62,40 @@ public class MessageRetrievalHandler extends Thread {
 
     private static final Logger LOGGER = Logger.getLogger(MessageRetrievalHandler.class.getName());
     private static final Prettier PRETTIER = new Prettier();
+    private static final int QUEUE_CAPACITY = 64;
     private final Socket socket;
     private final Client client;
     private final ObjectInputStream inputStream;
+    private final BoundedObjectOutputStream outputStream;
+    private final boolean contentAddressed = Boolean.getBoolean("cryptosystem.dedup");
+    private final ThreadPoolExecutor workers;
+    private final OrderedOutput output = new OrderedOutput();
+    private final ContentIndex<Path> heldContent = new ContentIndex<>(ContentIndex.RECIPIENT_CAPACITY);
+    private final Map<String, Path> shownPreviews = new HashMap<>();
 
-    public MessageRetrievalHandler(Socket socket, ObjectInputStream inputStream, Client client) {
+    public MessageRetrievalHandler(Socket socket, ObjectInputStream inputStream,
+                                   BoundedObjectOutputStream outputStream, Client client) {
         this.socket = socket;
         this.client = client;
         this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "message-decoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     /**
      * Continuously reads in objects from an input stream after the thread is unblocked.
-     * For each message retrieved, decrypts the message and writes the decoded image to disk.
-     * Outputs the decrypted caption to console.
+     * Each message retrieved is assigned a sequence number and handed to the worker pool,
+     * which decrypts the message and writes the decoded image to disk.
+     * Outputs the decrypted caption to console in the order messages were received.
+     * When the worker queue is full the reader decodes the message itself, which
+     * applies back-pressure to the socket.
      *
      * @see PGPUtils
      */
@@ -55,53 +108,361 @@ public class MessageRetrievalHandler extends Thread {
             }
         }
 
+        long sequence = 0;
         while (true) {
             try {
                 Object message = inputStream.readObject();
 
                 if (message instanceof CommandMessage) {
                     CommandMessage m = (CommandMessage) message;
-                    PRETTIER.print("System", m.getMessage());
+                    output.complete(sequence++, () -> PRETTIER.print("System", m.getMessage()));
                 } else if (message != null) {
-                    Message m = decode((byte[]) message);
-                    byte[] data = Base64.getDecoder().decode(m.getBase64Image());
-
-                    File directory = new File(client.getPath());
-                    File file = new File(directory, generateFileName());
-                    try (OutputStream stream = new FileOutputStream(file.getAbsolutePath())) {
-                        stream.write(data);
-                    } catch (IOException ex) {
-                        LOGGER.log(Level.WARNING, ex.getMessage());
+                    long s = sequence++;
+                    if (client.isDeferred()) {
+                        workers.execute(() -> defer(s, (byte[]) message));
+                    } else {
+                        workers.execute(() -> process(s, (byte[]) message));
                     }
-                    PRETTIER.print(client.getOtherAlias(), m.getCaption());
-                    PRETTIER.print("System", "Decrypted image has been saved to disk");
                 }
 
             } catch (IOException ex) {
+                workers.shutdownNow();
                 client.kill();
-            } catch (ClassNotFoundException | KeyStoreException | InvalidAlgorithmParameterException
-                    | DataFormatException | NoSuchPaddingException | IllegalBlockSizeException
-                    | NoSuchAlgorithmException | BadPaddingException | SignatureException | KeyException ex) {
+            } catch (ClassNotFoundException ex) {
                 LOGGER.log(Level.WARNING, ex.getMessage());
             }
         }
     }
 
-    private Message decode(byte[] pgpMessage) throws KeyStoreException, InvalidAlgorithmParameterException,
-            NoSuchPaddingException, IllegalBlockSizeException, NoSuchAlgorithmException,
-            BadPaddingException, KeyException, DataFormatException, SignatureException {
-        return PGPUtils.PGPDecode(pgpMessage, client.getPrivateKey(), client.getOtherPublicKey(), Client.LOGGER);
+    /**
+     * Decodes a message and persists the image, then releases the
+     * console output for its sequence number. Every failure, including a runtime
+     * exception from a malformed frame, completes the sequence number so that
+     * later messages are not held back.
+     *
+     * @param sequence   sequence number of the message
+     * @param pgpMessage encrypted message
+     */
+    private void process(long sequence, byte[] pgpMessage) {
+        Message m;
+        byte[] data;
+        String digest;
+        Path directory;
+        try {
+            m = decode(pgpMessage);
+            if (m.isReference()) {
+                output.complete(sequence, () -> materialize(m));
+                return;
+            }
+            if (m.isPreview()) {
+                showPreview(sequence, m);
+                return;
+            }
+            if (m.isReceipt()) {
+                output.complete(sequence, () -> client.acceptReceipt(m));
+                return;
+            }
+            data = Base64.getDecoder().decode(m.getBase64Image());
+            digest = ContentIndex.digest(data);
+            directory = Paths.get(client.getPath());
+        } catch (GeneralSecurityException | DataFormatException | RuntimeException ex) {
+            output.complete(sequence, () -> LOGGER.log(Level.WARNING, "Discarding malformed message: " + ex));
+            return;
+        }
+        persist(directory, data).whenComplete((path, ex) -> {
+            if (ex == null) {
+                // recorded before the sequence number completes, so a later reference finds it
+                heldContent.put(digest, path);
+                client.recordHistory(m.getCaption(), digest, path);
+            }
+            output.complete(sequence, () -> received(m, digest, path, ex));
+        });
+    }
+
+    /**
+     * Confirms a saved image to the sender and prints its caption, replacing
+     * the preview of the image if one was shown
+     *
+     * @param m      image message
+     * @param digest hex-encoded SHA-256 digest of the image
+     * @param path   saved image file
+     * @param ex     exception that prevented the image being saved, or <code>null</code>
+     */
+    private void received(Message m, String digest, Path path, Throwable ex) {
+        if (ex != null) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        } else {
+            sendReceipt(Message.held(digest));
+        }
+        Path preview = shownPreviews.remove(digest);
+        if (preview == null) {
+            try {
+                PRETTIER.print(client.getOtherAlias(), m.getCaption());
+            } catch (KeyStoreException e) {
+                LOGGER.log(Level.WARNING, e.getMessage());
+            }
+        }
+        if (ex == null) {
+            if (preview != null) {
+                discard(preview);
+                PRETTIER.print("System", "Full image for '" + m.getCaption() + "' has been saved to " + path);
+            } else {
+                PRETTIER.print("System", "Decrypted image has been saved to disk");
+            }
+        }
+    }
+
+    /**
+     * Saves the thumbnail of a preview message and prints its caption, then records
+     * the preview so it can be replaced by the full image. Previews are not recorded in
+     * the {@link ContentIndex} or history. A malformed preview throws before anything
+     * is persisted, so the caller completes the sequence number.
+     *
+     * @param sequence sequence number of the message
+     * @param m        preview message
+     */
+    private void showPreview(long sequence, Message m) {
+        byte[] thumbnail = Base64.getDecoder().decode(m.getBase64Preview());
+        String previewOf = m.getPreviewOf();
+        persist(Paths.get(client.getPath()), thumbnail).whenComplete((path, ex) -> output.complete(sequence, () -> {
+            try {
+                PRETTIER.print(client.getOtherAlias(), m.getCaption());
+            } catch (KeyStoreException e) {
+                LOGGER.log(Level.WARNING, e.getMessage());
+            }
+            if (ex != null) {
+                LOGGER.log(Level.WARNING, ex.getMessage());
+                return;
+            }
+            shownPreviews.put(previewOf, path);
+            PRETTIER.print("System", "Preview has been saved to " + path + ", the full image is on its way");
+        }));
+    }
+
+    private static void discard(Path preview) {
+        try {
+            Files.deleteIfExists(preview);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Stores a message without decrypting it, then releases the console
+     * output for its sequence number
+     *
+     * @param sequence   sequence number of the message
+     * @param pgpMessage encrypted message
+     */
+    private void defer(long sequence, byte[] pgpMessage) {
+        try {
+            CiphertextStore.Entry entry = client.getStore().store(client.getOtherAlias(),
+                    client.getOtherCertificate(), pgpMessage);
+            output.complete(sequence, () -> PRETTIER.print("System", "Encrypted image from " + entry.getSender()
+                    + " has been stored as " + entry.getId()));
+        } catch (IOException | GeneralSecurityException | RuntimeException ex) {
+            output.complete(sequence, () -> LOGGER.log(Level.WARNING, "Unable to store message: " + ex));
+        }
+    }
+
+    /**
+     * Restores a referenced image from a previously saved copy in the
+     * {@link ContentIndex}, or in the {@link MessageHistory} of the client if
+     * the copy has been evicted from the index. Must be called in sequence order so that every
+     * earlier image has been recorded.
+     *
+     * @param m reference message
+     */
+    private void materialize(Message m) {
+        Path source = heldContent.get(m.getReference());
+        if (source == null) {
+            source = fromHistory(m.getReference());
+        }
+        boolean restored = false;
+        if (source == null) {
+            LOGGER.warning("Referenced image " + m.getReference() + " is not held locally");
+            sendReceipt(Message.missing(m.getReference(), m.getCaption()));
+        } else {
+            String name = source.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            Path target = Paths.get(client.getPath()).resolve(generateFileName(dot < 0 ? ".png" : name.substring(dot)));
+            Path temp = target.resolveSibling(target.getFileName() + ".part");
+            try {
+                Files.copy(source, temp);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                heldContent.put(m.getReference(), target);
+                workers.execute(() -> client.recordHistory(m.getCaption(), m.getReference(), target));
+                sendReceipt(Message.held(m.getReference()));
+                restored = true;
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, ex.getMessage());
+                sendReceipt(Message.missing(m.getReference(), m.getCaption()));
+            }
+        }
+        try {
+            PRETTIER.print(client.getOtherAlias(), m.getCaption());
+        } catch (KeyStoreException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+        if (restored) {
+            PRETTIER.print("System", "Image restored from local content store");
+        }
+    }
+
+    /**
+     * Encrypts a receipt for the sender and writes it to the socket. Receipts are
+     * only sent in content-addressed mode, and one that cannot be sent is logged,
+     * since the sender then sends the image in full.
+     *
+     * @param receipt receipt message
+     */
+    private void sendReceipt(Message receipt) {
+        if (!contentAddressed) {
+            return;
+        }
+        try {
+            outputStream.send(PGPUtils.PGPEncode(receipt, client.getSigningKey(), client.getOtherAgreementKey(),
+                    Client.LOGGER));
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Looks up a saved copy of an image in the message history
+     *
+     * @param digest hex-encoded SHA-256 digest of the image
+     * @return <code>Path</code> of the copy, or <code>null</code> if none is on disk
+     */
+    private Path fromHistory(String digest) {
+        try {
+            MessageHistory.Entry entry = client.getHistory().find(digest);
+            if (entry != null) {
+                Path path = Paths.get(client.getPath()).resolve(entry.getFileName());
+                return Files.exists(path) ? path : null;
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+        return null;
+    }
+
+    private Message decode(byte[] pgpMessage) throws GeneralSecurityException, DataFormatException {
+        return PGPUtils.PGPDecode(pgpMessage, client.getAgreementKey(), client.getOtherSigningKey(), Client.LOGGER);
+    }
+
+    /**
+     * Asynchronously writes data to a temporary file in the specified directory
+     * and atomically renames it to a generated filename, with the extension of the
+     * format of the image, once every byte is written
+     *
+     * @param directory directory to write to
+     * @param data      bytes to write
+     * @return <code>CompletableFuture</code> completed with the path of the written file
+     */
+    private CompletableFuture<Path> persist(Path directory, byte[] data) {
+        FlightEvents.ImagePersisted event = new FlightEvents.ImagePersisted();
+        event.begin();
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        Path target = directory.resolve(generateFileName(ImageTranscoder.extension(data)));
+        Path temp = directory.resolve(target.getFileName() + ".part");
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+            return future;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        CompletionHandler<Integer, ByteBuffer> handler = new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer result, ByteBuffer attachment) {
+                if (attachment.hasRemaining()) {
+                    channel.write(attachment, attachment.position(), attachment, this);
+                    return;
+                }
+                try {
+                    channel.close();
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                    event.path = target.toString();
+                    event.bytes = data.length;
+                    event.commit();
+                    future.complete(target);
+                } catch (IOException ex) {
+                    failed(ex, attachment);
+                }
+            }
+
+            @Override
+            public void failed(Throwable ex, ByteBuffer attachment) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    ex.addSuppressed(e);
+                }
+                future.completeExceptionally(ex);
+            }
+        };
+        try {
+            channel.write(buffer, 0, buffer, handler);
+        } catch (RuntimeException ex) {
+            handler.failed(ex, buffer);
+        }
+        return future;
     }
 
     /**
      * Generates a random filename using {@link ThreadLocalRandom}
      *
+     * @param extension extension of the file, including the dot
      * @return <code>String</code>
      */
-    private String generateFileName() {
+    private String generateFileName(String extension) {
         StringBuilder stringBuilder = new StringBuilder();
         return stringBuilder
                 .append(Math.abs(ThreadLocalRandom.current().nextInt()))
-                .append(".png").toString();
+                .append(extension).toString();
+    }
+
+    /**
+     * <code>OrderedOutput</code> runs the action that completes each message in sequence
+     * number order regardless of the order in which stages complete. Actions may print,
+     * copy files or write to the socket, so they run on a dedicated thread rather than
+     * under the lock, and the stage that completes a message never waits for them.
+     */
+    private static final class OrderedOutput {
+
+        private final Map<Long, Runnable> pending = new HashMap<>();
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-output");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private long next = 0;
+
+        /**
+         * Records the action for a sequence number and hands every action that is now
+         * in order to the output thread. An action that throws is logged and does not
+         * hold back the actions after it.
+         *
+         * @param sequence sequence number of the message
+         * @param action   action that completes the message
+         */
+        synchronized void complete(long sequence, Runnable action) {
+            pending.put(sequence, action);
+            Runnable ready;
+            while ((ready = pending.remove(next)) != null) {
+                next++;
+                Runnable task = ready;
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, ex.toString());
+                    }
+                });
+            }
+        }
     }
 }
@@ -0,0 +1,76 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * <code>MetricsEndpoint</code> is a concrete class that serves metrics as plain text
+ * over HTTP on the loopback interface at <code>/metrics</code>. The endpoint is off unless
+ * a port is set with the <code>cryptosystem.metrics.port</code> system property; port
+ * <code>0</code> picks a free port.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see ServerMetrics
+ */
+public class MetricsEndpoint {
+
+    public static final String PORT_PROPERTY = "cryptosystem.metrics.port";
+    private static final Logger LOGGER = Logger.getLogger(MetricsEndpoint.class.getName());
+    private final Supplier<String> metrics;
+    private HttpServer httpServer;
+
+    /**
+     * Class constructor specifying the source of the rendered metrics
+     */
+    public MetricsEndpoint(Supplier<String> metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts the endpoint on the configured port, if one is set
+     */
+    public void start() throws IOException {
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (port == null || port < 0) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", this::handle);
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+        LOGGER.info("Metrics available at http://localhost:" + httpServer.getAddress().getPort() + "/metrics");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+    /**
+     * Stops the endpoint
+     */
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <code>PGPInstrumentation</code> is a concrete class that records the duration and
+ * input size of each stage of {@link PGPUtils#PGPEncode} and {@link PGPUtils#PGPDecode}
+ * into {@link StripedHistogram}s. Instrumentation is off unless the
+ * <code>cryptosystem.pgp.instrument</code> system property is set or it is enabled
+ * through {@link #setEnabled(boolean)}. When it is off, each stage costs a single
+ * volatile read.
+ *
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @version %I%, %G%
+ * @see PGPUtils
+ */
+public class PGPInstrumentation {
+
+    /**
+     * Stages of the PGP encoding and decoding pipelines
+     */
+    public enum Stage {
+        HASH, SIGN, COMPRESS, ENCRYPT, WRAP, UNWRAP, DECRYPT, INFLATE, VERIFY
+    }
+
+    private static final Map<Stage, StripedHistogram> TIMINGS = new EnumMap<>(Stage.class);
+    private static final Map<Stage, LongAdder> BYTES = new EnumMap<>(Stage.class);
+    private static volatile boolean enabled = Boolean.getBoolean("cryptosystem.pgp.instrument");
+
+    static {
+        for (Stage stage : Stage.values()) {
+            TIMINGS.put(stage, new StripedHistogram());
+            BYTES.put(stage, new LongAdder());
+        }
+    }
+
+    /**
+     * Sole class constructor
+     */
+    private PGPInstrumentation() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        PGPInstrumentation.enabled = enabled;
+    }
+
+    /**
+     * Returns the start time of a stage
+     *
+     * @return <code>long</code> nanosecond timestamp, or <code>0</code> if instrumentation is off
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Returns the start time of a stage that is also being traced by
+     * another consumer, such as a {@link FlightEvents} event
+     *
+     * @param traced whether the caller needs the stage duration regardless of instrumentation
+     * @return <code>long</code> nanosecond timestamp, or <code>0</code> if the stage is not timed
+     */
+    static long start(boolean traced) {
+        return enabled || traced ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the completion of a stage that began at the specified time.
+     * Nothing is recorded if the stage was not timed or instrumentation is off.
+     *
+     * @param stage stage that completed
+     * @param start value returned by {@link #start()}
+     * @param bytes number of bytes processed by the stage
+     * @return <code>long</code> duration of the stage in nanoseconds, or <code>0</code> if it was not timed
+     */
+    static long record(Stage stage, long start, long bytes) {
+        if (start == 0) {
+            return 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (enabled) {
+            TIMINGS.get(stage).record(elapsed);
+            BYTES.get(stage).add(bytes);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Returns the durations recorded for a stage
+     *
+     * @param stage stage to read
+     * @return <code>LatencyHistogram</code> snapshot of the recorded durations in nanoseconds
+     */
+    public static LatencyHistogram getTimings(Stage stage) {
+        return TIMINGS.get(stage).snapshot();
+    }
+
+    /**
+     * Returns the total number of bytes processed by a stage
+     *
+     * @param stage stage to read
+     * @return <code>long</code>
+     */
+    public static long getBytes(Stage stage) {
+        return BYTES.get(stage).sum();
+    }
+
+    /**
+     * Renders the count, mean, 99th percentile and throughput of every stage
+     *
+     * @return <code>String</code>
+     */
+    public static String report() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram timings = getTimings(stage);
+            double seconds = timings.getMean() * timings.getCount() / 1e9;
+            stringBuilder.append(String.format("%-8s count=%d mean=%.1fus p99=%.1fus bytes=%d rate=%.1fMB/s%n",
+                    stage, timings.getCount(), timings.getMean() / 1e3, timings.getPercentile(99) / 1e3,
+                    getBytes(stage), seconds == 0 ? 0 : getBytes(stage) / seconds / (1024 * 1024)));
+        }
+        return stringBuilder.toString();
+    }
+}
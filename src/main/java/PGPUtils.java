@@ -4,8 +4,17 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.security.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import java.util.zip.Adler32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -15,7 +24,19 @@ import java.util.zip.Inflater;
  * Protocol (PGP) encoding and decoding functionality for a {@link Message}
  * using the {@link java.security.MessageDigest} for hashing,
  * {@link java.util.zip} for compression and {@link javax.crypto.Cipher} for
- * encryption/decryption.
+ * encryption/decryption. The duration of each stage can be recorded by
+ * {@link PGPInstrumentation} and is reported in {@link FlightEvents}.
+ * <p>
+ * Large messages are encoded by a pipeline on a shared executor: the session key is
+ * generated and wrapped, the message is hashed and signed, and the message is compressed
+ * in independent chunks, all at the same time. Each chunk is a run of deflate blocks ending
+ * in a sync flush, so the chunks and the separately compressed signature concatenate into
+ * a single zlib stream, and AES encryption consumes the chunks in order as they complete.
+ * The output is identical in format to the sequential encoder and is decoded the same way.
+ * <p>
+ * A burst of messages can be signed with one private key operation by
+ * {@link #PGPEncodeBatch(List, PrivateKey, PublicKey, Logger)} or a {@link BatchSigner}.
+ * Each message then carries a {@link BatchSignature}.
  *
  * @author Aidan Bailey
  * @author Emily Morris
@@ -26,9 +47,50 @@ import java.util.zip.Inflater;
 public class PGPUtils {
 
     /**
-     * Byte length of specified RSA keys (e.g., 128, 256)
+     * Length of the frame header: the identifiers of the {@link CipherSuite} and the
+     * {@link HashAlgorithm}, and the length of the wrapped session data
      */
-    private static final int RSA_BYTE_LENGTH = 128;
+    private static final int HEADER_LENGTH = 4;
+
+    /**
+     * Set in the hash identifier of a message hashed as a tree over chunks
+     */
+    private static final int TREE_HASH = 0x80;
+
+    /**
+     * Messages at least this many bytes long are hashed as a tree by the pipeline
+     */
+    private static final int TREE_HASH_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * Number of message bytes in each leaf of a tree hash
+     */
+    private static final int TREE_HASH_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Messages at least this many bytes long are encoded by the pipeline when
+     * more than one processor is available
+     */
+    private static final int PIPELINE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Number of message bytes compressed by each pipeline task
+     */
+    private static final int PIPELINE_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Header of a zlib stream compressed at the default level without a dictionary
+     */
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+    private static final byte[] EMPTY = new byte[0];
+    private static final int PIPELINE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService PIPELINE = createPipeline();
+
+    /**
+     * Roots of recently verified batch signatures, keyed by the digest of the signature
+     */
+    private static final ContentIndex<SignedRoot> SIGNED_ROOTS = new ContentIndex<>(256);
+    private static volatile HashAlgorithm hashAlgorithm = HashAlgorithm.configured();
 
     /**
      * Sole class constructor
@@ -36,15 +98,59 @@ public class PGPUtils {
     private PGPUtils() {
     }
 
+    private static ExecutorService createPipeline() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(PIPELINE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "pgp-pipeline-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     /**
-     * SHA-256 hashes a byte-array using the {@link MessageDigest}.
+     * Returns the algorithm that hashes new messages
      *
-     * @param messageBytes byte array of the message to be hashed
-     * @return <code>byte[]</code>
+     * @return <code>HashAlgorithm</code>
      */
-    private static byte[] SHA256Hash(final byte[] messageBytes) throws NoSuchAlgorithmException {
-        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        return digest.digest(messageBytes);
+    public static HashAlgorithm getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * Sets the algorithm that hashes new messages. Messages already encoded, and
+     * messages received, keep the algorithm recorded in their frame header.
+     *
+     * @param hashAlgorithm algorithm that hashes new messages
+     */
+    public static void setHashAlgorithm(final HashAlgorithm hashAlgorithm) {
+        PGPUtils.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Hashes a message as a {@link MerkleTree} over chunks of the message. The chunks
+     * are hashed concurrently on the pipeline. The root is prefixed with the hash identifier
+     * of the frame, including {@link #TREE_HASH}, so that the signature covers the mode of
+     * hashing as well as the header that declares it.
+     *
+     * @param hash         algorithm of the tree
+     * @param messageBytes bytes of the message to be hashed
+     * @return <code>CompletableFuture</code> completed with the hash identifier and root of the tree
+     */
+    private static CompletableFuture<byte[]> treeHash(final HashAlgorithm hash, final byte[] messageBytes) {
+        final List<CompletableFuture<byte[]>> leaves = new ArrayList<>();
+        for (int offset = 0; offset < messageBytes.length; offset += TREE_HASH_CHUNK_SIZE) {
+            final int from = offset;
+            final int length = Math.min(TREE_HASH_CHUNK_SIZE, messageBytes.length - from);
+            leaves.add(supply(() -> MerkleTree.leaf(MerkleTree.Domain.CHUNKS, hash, messageBytes, from, length)));
+        }
+        return CompletableFuture.allOf(leaves.toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> supply(() -> {
+            final List<byte[]> hashes = new ArrayList<>(leaves.size());
+            for (final CompletableFuture<byte[]> leaf : leaves) {
+                hashes.add(leaf.join());
+            }
+            final byte[] root = new MerkleTree(hashes, hash, MerkleTree.Domain.CHUNKS).getRoot();
+            return concatBytes(new byte[]{(byte) (hash.getId() | TREE_HASH)}, root);
+        }));
     }
 
     /**
@@ -92,35 +198,6 @@ public class PGPUtils {
         return byteArrayOutputStream.toByteArray();
     }
 
-    /**
-     * RSA encrypts a byte-array with a specified key using the {@link Cipher}.
-     *
-     * @param messageBytes bytes of message to be encrypted
-     * @param key          specified RSA key
-     * @return <code>byte[]</code>
-     */
-    private static byte[] RSAEncryption(final byte[] messageBytes, final Key key) throws NoSuchPaddingException,
-            NoSuchAlgorithmException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        final Cipher encryptCipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        encryptCipher.init(Cipher.ENCRYPT_MODE, key);
-        return encryptCipher.doFinal(messageBytes);
-    }
-
-    /**
-     * Decrypts an RSA encrypted byte-array with a specified key using the
-     * {@link Cipher}.
-     *
-     * @param encryptedMessageBytes bytes of message to be decrypted
-     * @param key                   specified RSA key
-     * @return <code>byte[]</code>
-     */
-    private static byte[] RSADecryption(final byte[] encryptedMessageBytes, final Key key) throws InvalidKeyException,
-            NoSuchAlgorithmException, IllegalBlockSizeException, NoSuchPaddingException, BadPaddingException {
-        final Cipher decryptCipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-        decryptCipher.init(Cipher.DECRYPT_MODE, key);
-        return decryptCipher.doFinal(encryptedMessageBytes);
-    }
-
     /**
      * AES encrypts a byte-array with a specified key and initialization vector
      * using the {@link Cipher}.
@@ -133,7 +210,7 @@ public class PGPUtils {
     private static byte[] AESEncryption(final byte[] messageBytes, final Key key, final IvParameterSpec iv)
             throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
             InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        final Cipher encryptCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        final Cipher encryptCipher = CryptoProviders.cipher(CryptoProviders.Operation.AES_CBC);
         encryptCipher.init(Cipher.ENCRYPT_MODE, key, iv);
         return encryptCipher.doFinal(messageBytes);
     }
@@ -150,7 +227,7 @@ public class PGPUtils {
     private static byte[] AESDecryption(final byte[] encryptedMessageBytes, final Key key, final IvParameterSpec iv)
             throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
             InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-        final Cipher decryptCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        final Cipher decryptCipher = CryptoProviders.cipher(CryptoProviders.Operation.AES_CBC);
         decryptCipher.init(Cipher.DECRYPT_MODE, key, iv);
         return decryptCipher.doFinal(encryptedMessageBytes);
     }
@@ -170,19 +247,62 @@ public class PGPUtils {
     }
 
     /**
-     * Validates a digital signature against a specified message and public key.
+     * Prefixes wrapped session data with the frame header
+     *
+     * @param suite                cipher suite of the message
+     * @param hashId               identifier of the hash algorithm, with {@link #TREE_HASH} for a tree hash
+     * @param encryptedSessionData wrapped session data
+     * @return <code>byte[]</code>
+     */
+    private static byte[] frameHeader(final CipherSuite suite, final int hashId, final byte[] encryptedSessionData) {
+        return ByteBuffer.allocate(HEADER_LENGTH + encryptedSessionData.length)
+                .put((byte) suite.getId())
+                .put((byte) hashId)
+                .putShort((short) encryptedSessionData.length)
+                .put(encryptedSessionData)
+                .array();
+    }
+
+    /**
+     * Prefixes a signature with its length
+     *
+     * @param signature bytes of the signature
+     * @return <code>byte[]</code>
+     */
+    private static byte[] signatureHeader(final byte[] signature) {
+        return ByteBuffer.allocate(2 + signature.length).putShort((short) signature.length).put(signature).array();
+    }
+
+    /**
+     * Validates a batch signature against a specified leaf hash and public key.
+     * The root is recomputed from the inclusion proof and verified against the
+     * signature. Roots that have been verified before are looked up in a cache,
+     * so the public key operation is performed once per batch.
      *
-     * @param signature    bytes of the signature to be validated
-     * @param messageBytes bytes of message to be validated against
-     * @param key          specified public key
+     * @param signature batch signature of the message
+     * @param leaf      leaf hash of the message
+     * @param key       specified public key
      * @return <code>boolean</code>
      */
-    private static boolean validateSignature(final byte[] signature, final byte[] messageBytes, final PublicKey key)
+    private static boolean validateBatchSignature(final BatchSignature signature, final byte[] leaf,
+                                                  final PublicKey key)
             throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException,
-            InvalidKeyException {
-        final byte[] decryptedSignature = RSADecryption(signature, key);
-        final byte[] hashedMessage = SHA256Hash(messageBytes);
-        return Arrays.equals(decryptedSignature, hashedMessage);
+            InvalidKeyException, SignatureException {
+        final byte[] root = MerkleTree.computeRoot(signature.getHash(), leaf, signature.getIndex(), signature.getCount(),
+                signature.getProof());
+        if (root == null) {
+            return false;
+        }
+        final String digest = ContentIndex.digest(signature.getSignature());
+        final SignedRoot signedRoot = SIGNED_ROOTS.get(digest);
+        if (signedRoot != null && signedRoot.key.equals(key)) {
+            return Arrays.equals(signedRoot.root, root);
+        }
+        if (!signature.getSuite().verify(root, signature.getSignature(), key)) {
+            return false;
+        }
+        SIGNED_ROOTS.put(digest, new SignedRoot(key, root));
+        return true;
     }
 
     /**
@@ -196,28 +316,412 @@ public class PGPUtils {
     public static byte[] PGPEncode(final Message message, final PrivateKey senderKey, final PublicKey receiverKey,
                                    final Logger logger)
             throws NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException,
+            InvalidKeyException, InvalidAlgorithmParameterException, SignatureException {
+        final FlightEvents.MessageEncoded event = new FlightEvents.MessageEncoded();
+        event.begin();
+        final boolean traced = event.isEnabled();
+        final CipherSuite suite = CipherSuite.forSigningKey(senderKey);
+        final HashAlgorithm hash = hashAlgorithm;
+        final String messageConcat = message.toString();
+        final byte[] messageConcatBytes = messageConcat.getBytes();
+        final byte[] captionLengthBytes = ByteBuffer.allocate(4).putInt(message.getCaption().length()).array();
+        if (messageConcatBytes.length >= PIPELINE_THRESHOLD && PIPELINE_THREADS > 1) {
+            return pipelinedEncode(suite, hash, messageConcatBytes, captionLengthBytes, senderKey, receiverKey,
+                    logger, event);
+        }
+        long start = PGPInstrumentation.start(traced);
+        final byte[] hashedMessage = hash.digest(messageConcatBytes);
+        event.hashNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.HASH, start, messageConcatBytes.length);
+        logger.info("Hashed message length: " + hashedMessage.length);
+        start = PGPInstrumentation.start(traced);
+        final byte[] signatureBytes = suite.sign(hashedMessage, senderKey);
+        event.signNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.SIGN, start, hashedMessage.length);
+        return seal(suite, hash.getId(), signatureHeader(signatureBytes), captionLengthBytes, messageConcatBytes,
+                receiverKey, logger, event);
+    }
+
+    /**
+     * Encodes a message that was signed as part of a batch using PGP. The message
+     * carries the signature of the batch root and its inclusion proof in place of
+     * its own signature.
+     *
+     * @param message     message to be encoded
+     * @param signature   batch signature of the message from {@link #signBatch(List, HashAlgorithm, PrivateKey)}
+     * @param receiverKey public key of receiver
+     * @return <code>byte[]</code>
+     */
+    public static byte[] PGPEncode(final Message message, final BatchSignature signature, final PublicKey receiverKey,
+                                   final Logger logger)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException,
             InvalidKeyException, InvalidAlgorithmParameterException {
+        final FlightEvents.MessageEncoded event = new FlightEvents.MessageEncoded();
+        event.begin();
+        final byte[] messageConcatBytes = message.toString().getBytes();
+        final byte[] captionLengthBytes = ByteBuffer.allocate(4).putInt(message.getCaption().length()).array();
+        final byte[] header = concatBytes(signatureHeader(signature.getSignature()), signature.encodeProof());
+        return seal(signature.getSuite(), signature.getHash().getId(), header, captionLengthBytes, messageConcatBytes,
+                receiverKey, logger, event);
+    }
+
+    /**
+     * Encodes a batch of messages using PGP with a single signature. A {@link MerkleTree}
+     * is built over the messages and only its root is signed.
+     *
+     * @param messages    messages to be encoded
+     * @param senderKey   private key of sender
+     * @param receiverKey public key of receiver
+     * @return <code>List</code> of encoded messages in the order of <code>messages</code>
+     */
+    public static List<byte[]> PGPEncodeBatch(final List<Message> messages, final PrivateKey senderKey,
+                                              final PublicKey receiverKey, final Logger logger)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException,
+            InvalidKeyException, InvalidAlgorithmParameterException, SignatureException {
+        final HashAlgorithm hash = hashAlgorithm;
+        final List<byte[]> leaves = new ArrayList<>(messages.size());
+        for (final Message message : messages) {
+            final byte[] messageConcatBytes = message.toString().getBytes();
+            final long start = PGPInstrumentation.start();
+            leaves.add(MerkleTree.leaf(hash, messageConcatBytes, 0, messageConcatBytes.length));
+            PGPInstrumentation.record(PGPInstrumentation.Stage.HASH, start, messageConcatBytes.length);
+        }
+        final List<BatchSignature> signatures = signBatch(leaves, hash, senderKey);
+        final List<byte[]> pgpMessages = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            pgpMessages.add(PGPEncode(messages.get(i), signatures.get(i), receiverKey, logger));
+        }
+        return pgpMessages;
+    }
+
+    /**
+     * Signs a batch of messages with one private key operation. The root of a
+     * {@link MerkleTree} over the leaf hashes is signed, and each message receives
+     * the root signature with its inclusion proof.
+     *
+     * @param leaves    leaf hashes of the messages computed by {@link MerkleTree#leaf(HashAlgorithm, byte[], int, int)}
+     * @param hash      algorithm that hashed the leaves
+     * @param senderKey private key of sender
+     * @return <code>List</code> of batch signatures in the order of <code>leaves</code>
+     */
+    public static List<BatchSignature> signBatch(final List<byte[]> leaves, final HashAlgorithm hash,
+                                                 final PrivateKey senderKey)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException,
+            BadPaddingException, SignatureException {
+        final CipherSuite suite = CipherSuite.forSigningKey(senderKey);
+        final MerkleTree tree = new MerkleTree(leaves, hash);
+        final long start = PGPInstrumentation.start();
+        final byte[] signature = suite.sign(tree.getRoot(), senderKey);
+        PGPInstrumentation.record(PGPInstrumentation.Stage.SIGN, start, MerkleTree.HASH_LENGTH);
+        final List<BatchSignature> signatures = new ArrayList<>(leaves.size());
+        for (int i = 0; i < leaves.size(); i++) {
+            signatures.add(new BatchSignature(suite, hash, signature, i, leaves.size(), tree.getProof(i)));
+        }
+        return signatures;
+    }
+
+    /**
+     * Compresses, encrypts and frames a signed message
+     *
+     * @param suite              cipher suite that wraps the session key
+     * @param hashId             identifier of the algorithm that hashed the message
+     * @param header             signature, and inclusion proof for a batch signed message
+     * @param captionLengthBytes big-endian length of the caption
+     * @param messageConcatBytes bytes of the caption and image
+     * @param receiverKey        public key of receiver
+     * @param event              flight recorder event to populate and commit
+     * @return <code>byte[]</code>
+     */
+    private static byte[] seal(final CipherSuite suite, final int hashId, final byte[] header,
+                               final byte[] captionLengthBytes, final byte[] messageConcatBytes,
+                               final PublicKey receiverKey, final Logger logger,
+                               final FlightEvents.MessageEncoded event)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException,
+            InvalidKeyException, InvalidAlgorithmParameterException {
+        final boolean traced = event.isEnabled();
         final SecretKey sessionKey = KeyUtils.generateSessionKey();
-        logger.info("Session key: " + sessionKey.getEncoded().toString());
         logger.info("Session key algorithm: " + sessionKey.getAlgorithm());
         final IvParameterSpec iv = KeyUtils.generateIV();
-        final String messageConcat = message.toString();
-        final byte[] captionLengthBytes = ByteBuffer.allocate(4).putInt(message.getCaption().length()).array();
-        final byte[] messageBytes = concatBytes(captionLengthBytes, messageConcat.getBytes());
-        logger.info("Hashed message: " + SHA256Hash(messageConcat.getBytes()).toString());
-        final byte[] signatureBytes = RSAEncryption(SHA256Hash(messageConcat.getBytes()), senderKey);
-        final byte[] signedMessage = concatBytes(signatureBytes, messageBytes);
+        final byte[] messageBytes = concatBytes(captionLengthBytes, messageConcatBytes);
+        final byte[] signedMessage = concatBytes(header, messageBytes);
         logger.info("Signed message length: " + signedMessage.length);
+        long start = PGPInstrumentation.start(traced);
         final byte[] compressedSignedMessage = ZIPCompress(signedMessage);
+        event.compressNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.COMPRESS, start, signedMessage.length);
         logger.info("Compressed signed message length: " + compressedSignedMessage.length);
+        start = PGPInstrumentation.start(traced);
         final byte[] encryptedSignedMessage = AESEncryption(compressedSignedMessage, sessionKey, iv);
+        event.encryptNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.ENCRYPT, start, compressedSignedMessage.length);
         final byte[] concatSessionData = concatBytes(iv.getIV(), sessionKey.getEncoded());
-        final byte[] encryptedSessionData = RSAEncryption(concatSessionData, receiverKey);
-        final byte[] pgpMessage = concatBytes(encryptedSessionData, encryptedSignedMessage);
-        logger.info("Encrypted message bytes: " + pgpMessage.toString());
+        start = PGPInstrumentation.start(traced);
+        final byte[] encryptedSessionData = suite.wrap(concatSessionData, receiverKey);
+        event.wrapNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.WRAP, start, concatSessionData.length);
+        final byte[] pgpMessage = concatBytes(frameHeader(suite, hashId, encryptedSessionData), encryptedSignedMessage);
+        logger.info("Encrypted message length: " + pgpMessage.length);
+        event.end();
+        if (event.shouldCommit()) {
+            event.plaintextBytes = messageConcatBytes.length;
+            event.encodedBytes = pgpMessage.length;
+            event.commit();
+        }
+        return pgpMessage;
+    }
+
+    /**
+     * Encodes a large message on the pipeline. The session key is generated and wrapped,
+     * the message is hashed and signed, and chunks of the message are compressed
+     * concurrently. Messages of at least {@link #TREE_HASH_THRESHOLD} bytes are hashed
+     * as a tree, so that hashing is spread over the pipeline too. Encryption starts once
+     * the signature is available and proceeds through the compressed chunks in order as
+     * each completes.
+     *
+     * @param suite              cipher suite of the sender
+     * @param hash               algorithm that hashes the message
+     * @param messageConcatBytes bytes of the caption and image
+     * @param captionLengthBytes big-endian length of the caption
+     * @param senderKey          private key of sender
+     * @param receiverKey        public key of receiver
+     * @param event              flight recorder event to populate
+     * @return <code>byte[]</code>
+     */
+    private static byte[] pipelinedEncode(final CipherSuite suite, final HashAlgorithm hash,
+                                          final byte[] messageConcatBytes, final byte[] captionLengthBytes,
+                                          final PrivateKey senderKey, final PublicKey receiverKey,
+                                          final Logger logger, final FlightEvents.MessageEncoded event)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException,
+            InvalidKeyException, InvalidAlgorithmParameterException, SignatureException {
+        final boolean traced = event.isEnabled();
+        final AtomicLong compressNanos = new AtomicLong();
+        final AtomicLong encryptNanos = new AtomicLong();
+        final boolean tree = messageConcatBytes.length >= TREE_HASH_THRESHOLD;
+        final int hashId = tree ? hash.getId() | TREE_HASH : hash.getId();
+
+        final CompletableFuture<SessionData> session = supply(() -> {
+            final SecretKey sessionKey = KeyUtils.generateSessionKey();
+            final IvParameterSpec iv = KeyUtils.generateIV();
+            final Cipher cipher = CryptoProviders.cipher(CryptoProviders.Operation.AES_CBC);
+            cipher.init(Cipher.ENCRYPT_MODE, sessionKey, iv);
+            final byte[] concatSessionData = concatBytes(iv.getIV(), sessionKey.getEncoded());
+            final long start = PGPInstrumentation.start(traced);
+            final byte[] encryptedSessionData = suite.wrap(concatSessionData, receiverKey);
+            event.wrapNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.WRAP, start, concatSessionData.length);
+            return new SessionData(cipher, frameHeader(suite, hashId, encryptedSessionData));
+        });
+        final long hashStart = PGPInstrumentation.start(traced);
+        final CompletableFuture<byte[]> hashed = tree ? treeHash(hash, messageConcatBytes)
+                : supply(() -> hash.digest(messageConcatBytes));
+        final CompletableFuture<byte[]> signature = hashed.thenCompose(hashedMessage -> supply(() -> {
+            event.hashNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.HASH, hashStart,
+                    messageConcatBytes.length);
+            final long start = PGPInstrumentation.start(traced);
+            final byte[] signatureBytes = suite.sign(hashedMessage, senderKey);
+            event.signNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.SIGN, start, hashedMessage.length);
+            return signatureBytes;
+        }));
+        final List<CompletableFuture<DeflatedChunk>> chunks = new ArrayList<>();
+        for (int offset = 0; offset < messageConcatBytes.length; offset += PIPELINE_CHUNK_SIZE) {
+            final int from = offset;
+            final int length = Math.min(PIPELINE_CHUNK_SIZE, messageConcatBytes.length - from);
+            final byte[] prefix = from == 0 ? captionLengthBytes : EMPTY;
+            final boolean last = from + length == messageConcatBytes.length;
+            chunks.add(supply(() -> {
+                final long start = PGPInstrumentation.start(traced);
+                final DeflatedChunk chunk = deflateChunk(prefix, messageConcatBytes, from, length, last);
+                compressNanos.addAndGet(PGPInstrumentation.record(PGPInstrumentation.Stage.COMPRESS, start,
+                        prefix.length + length));
+                return chunk;
+            }));
+        }
+
+        CompletableFuture<Encryption> encryption = session.thenCombine(signature, (sessionData, signatureBytes) -> {
+            final Encryption state = new Encryption(sessionData, messageConcatBytes.length);
+            final DeflatedChunk head = deflateChunk(signatureHeader(signatureBytes), EMPTY, 0, 0, false);
+            state.update(ZLIB_HEADER, encryptNanos, traced);
+            state.update(head.bytes, encryptNanos, traced);
+            state.adler = head.adler;
+            return state;
+        });
+        for (final CompletableFuture<DeflatedChunk> chunk : chunks) {
+            encryption = encryption.thenCombine(chunk, (state, deflated) -> {
+                state.update(deflated.bytes, encryptNanos, traced);
+                state.adler = adler32Combine(state.adler, deflated.adler, deflated.length);
+                return state;
+            });
+        }
+        final byte[] pgpMessage = join(encryption.thenApply(state -> {
+            final byte[] trailer = ByteBuffer.allocate(4).putInt((int) state.adler).array();
+            final long start = PGPInstrumentation.start(traced);
+            try {
+                state.output.writeBytes(state.cipher.doFinal(trailer));
+            } catch (IllegalBlockSizeException | BadPaddingException ex) {
+                throw new CompletionException(ex);
+            }
+            encryptNanos.addAndGet(PGPInstrumentation.record(PGPInstrumentation.Stage.ENCRYPT, start, trailer.length));
+            return state.output.toByteArray();
+        }));
+        logger.info("Pipelined encoding of " + chunks.size() + " chunks, encrypted message length: " + pgpMessage.length);
+        event.end();
+        if (event.shouldCommit()) {
+            event.compressNanos = compressNanos.get();
+            event.encryptNanos = encryptNanos.get();
+            event.plaintextBytes = messageConcatBytes.length;
+            event.encodedBytes = pgpMessage.length;
+            event.commit();
+        }
         return pgpMessage;
     }
 
+    /**
+     * Compresses a range of bytes, preceded by a prefix, into raw deflate blocks.
+     * Chunks other than the last end in a sync flush so that they can be concatenated
+     * with the blocks of the following chunk.
+     *
+     * @param prefix bytes compressed ahead of the range
+     * @param data   bytes to compress
+     * @param offset start of the range
+     * @param length length of the range
+     * @param last   whether the chunk ends the stream
+     * @return <code>DeflatedChunk</code>
+     */
+    private static DeflatedChunk deflateChunk(final byte[] prefix, final byte[] data, final int offset,
+                                              final int length, final boolean last) {
+        final Adler32 adler = new Adler32();
+        adler.update(prefix);
+        adler.update(data, offset, length);
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(length / 2 + 64);
+        final byte[] readBuffer = new byte[64 * 1024];
+        int readCount;
+        try {
+            if (prefix.length > 0) {
+                deflater.setInput(prefix);
+                while (!deflater.needsInput()) {
+                    readCount = deflater.deflate(readBuffer);
+                    byteArrayOutputStream.write(readBuffer, 0, readCount);
+                }
+            }
+            deflater.setInput(data, offset, length);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    readCount = deflater.deflate(readBuffer);
+                    byteArrayOutputStream.write(readBuffer, 0, readCount);
+                }
+            } else {
+                do {
+                    readCount = deflater.deflate(readBuffer, 0, readBuffer.length, Deflater.SYNC_FLUSH);
+                    byteArrayOutputStream.write(readBuffer, 0, readCount);
+                } while (readCount == readBuffer.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        return new DeflatedChunk(byteArrayOutputStream.toByteArray(), adler.getValue(), prefix.length + length);
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two byte sequences into the checksum
+     * of their concatenation
+     *
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param length2 length of the second sequence
+     * @return <code>long</code>
+     */
+    private static long adler32Combine(final long adler1, final long adler2, final long length2) {
+        final long base = 65521;
+        final long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Runs a pipeline stage on the shared executor
+     *
+     * @param stage stage to run
+     * @return <code>CompletableFuture</code>
+     */
+    private static <T> CompletableFuture<T> supply(final PipelineStage<T> stage) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return stage.run();
+            } catch (GeneralSecurityException ex) {
+                throw new CompletionException(ex);
+            }
+        }, PIPELINE);
+    }
+
+    /**
+     * Waits for a pipeline to complete and rethrows the exception of a failed stage
+     *
+     * @param future pipeline to wait for
+     * @return <code>T</code>
+     */
+    private static <T> T join(final CompletableFuture<T> future)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException,
+            InvalidKeyException, InvalidAlgorithmParameterException, SignatureException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            } else if (cause instanceof NoSuchPaddingException) {
+                throw (NoSuchPaddingException) cause;
+            } else if (cause instanceof IllegalBlockSizeException) {
+                throw (IllegalBlockSizeException) cause;
+            } else if (cause instanceof BadPaddingException) {
+                throw (BadPaddingException) cause;
+            } else if (cause instanceof InvalidKeyException) {
+                throw (InvalidKeyException) cause;
+            } else if (cause instanceof InvalidAlgorithmParameterException) {
+                throw (InvalidAlgorithmParameterException) cause;
+            } else if (cause instanceof SignatureException) {
+                throw (SignatureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks the envelope of an encoded message without decrypting it. The cipher suite
+     * and hash algorithm must be known, the wrapped session data must fit in the message
+     * and the ciphertext must be a whole number of AES blocks. The signature is only
+     * verified when the message is decoded by {@link #PGPDecode}.
+     *
+     * @param pgpMessage encoded message
+     * @return <code>CipherSuite</code> of the message
+     */
+    public static CipherSuite checkEnvelope(final byte[] pgpMessage) throws GeneralSecurityException {
+        if (pgpMessage.length < HEADER_LENGTH) {
+            throw new GeneralSecurityException("Message is too short to have an envelope");
+        }
+        final ByteBuffer frame = ByteBuffer.wrap(pgpMessage);
+        final CipherSuite suite = CipherSuite.forId(frame.get());
+        HashAlgorithm.forId((frame.get() & 0xFF) & ~TREE_HASH);
+        final int wrappedLength = frame.getShort() & 0xFFFF;
+        final int ciphertextLength = pgpMessage.length - HEADER_LENGTH - wrappedLength;
+        if (wrappedLength == 0 || ciphertextLength < 16 || ciphertextLength % 16 != 0) {
+            throw new GeneralSecurityException("Malformed message envelope");
+        }
+        return suite;
+    }
+
     /**
      * Encodes a message to be sent using PGP.
      *
@@ -230,36 +734,68 @@ public class PGPUtils {
                                     final Logger logger)
             throws IllegalBlockSizeException, NoSuchPaddingException, NoSuchAlgorithmException, BadPaddingException,
             InvalidAlgorithmParameterException, DataFormatException, SignatureException, KeyException {
-        // acquire encrypted session data
-        final byte[] encryptedSessionData = Arrays.copyOfRange(pgpMessage, 0, RSA_BYTE_LENGTH);
+        final FlightEvents.MessageDecoded event = new FlightEvents.MessageDecoded();
+        event.begin();
+        final boolean traced = event.isEnabled();
+        // acquire cipher suite, hash algorithm and encrypted session data
+        final ByteBuffer frame = ByteBuffer.wrap(pgpMessage);
+        final CipherSuite suite = CipherSuite.forId(frame.get());
+        final int hashId = frame.get() & 0xFF;
+        final HashAlgorithm hash = HashAlgorithm.forId(hashId & ~TREE_HASH);
+        final int headerLength = HEADER_LENGTH + (frame.getShort() & 0xFFFF);
+        final byte[] encryptedSessionData = Arrays.copyOfRange(pgpMessage, HEADER_LENGTH, headerLength);
         // decrypt session data
-        final byte[] sessionData = RSADecryption(encryptedSessionData, receiverKey);
+        long start = PGPInstrumentation.start(traced);
+        final byte[] sessionData = suite.unwrap(encryptedSessionData, receiverKey);
+        event.unwrapNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.UNWRAP, start, encryptedSessionData.length);
         // acquire IV
         final byte[] ivBytes = Arrays.copyOfRange(sessionData, 0, 16);
         final IvParameterSpec iv = new IvParameterSpec(ivBytes);
         // acquire aes session key
         final byte[] sessionKeyBytes = Arrays.copyOfRange(sessionData, 16, sessionData.length);
         final SecretKey sessionKey = new SecretKeySpec(sessionKeyBytes, 0, sessionKeyBytes.length, "AES");
-        logger.info("Session key: " + sessionKey.getEncoded().toString());
         logger.info("Session key algorithm: " + sessionKey.getAlgorithm());
         // acquire encrypted compressed message
-        final byte[] encryptedCompressedMessage = Arrays.copyOfRange(pgpMessage, RSA_BYTE_LENGTH, pgpMessage.length);
+        final byte[] encryptedCompressedMessage = Arrays.copyOfRange(pgpMessage, headerLength, pgpMessage.length);
         // decrypt compressed message
+        start = PGPInstrumentation.start(traced);
         final byte[] decryptedCompressedMessage = AESDecryption(encryptedCompressedMessage, sessionKey, iv);
+        event.decryptNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.DECRYPT, start, encryptedCompressedMessage.length);
         // decompress message
         logger.info("Compressed message length: " + decryptedCompressedMessage.length);
+        start = PGPInstrumentation.start(traced);
         final byte[] decompressedMessage = ZIPDecompress(decryptedCompressedMessage);
+        event.inflateNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.INFLATE, start, decryptedCompressedMessage.length);
         logger.info("Decompressed message length: " + decompressedMessage.length);
         // acquire signature
-        final byte[] signature = Arrays.copyOfRange(decompressedMessage, 0, RSA_BYTE_LENGTH);
+        final ByteBuffer buffer = ByteBuffer.wrap(decompressedMessage);
+        final byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(signature);
+        // acquire inclusion proof of a batch signed message
+        final BatchSignature batchSignature = buffer.getInt(buffer.position()) == BatchSignature.MARKER
+                ? BatchSignature.decode(suite, hash, signature, buffer) : null;
         // acquire caption length
-        final int captionLength = ByteBuffer
-                .wrap(Arrays.copyOfRange(decompressedMessage, RSA_BYTE_LENGTH, RSA_BYTE_LENGTH + 4)).getInt();
+        final int captionLength = buffer.getInt();
         // acquire message
-        final byte[] messageBytes = Arrays.copyOfRange(decompressedMessage, RSA_BYTE_LENGTH + 4,
+        final byte[] messageBytes = Arrays.copyOfRange(decompressedMessage, buffer.position(),
                 decompressedMessage.length);
-        logger.info("Hashed message: " + SHA256Hash(messageBytes).toString());
-        if (!validateSignature(signature, messageBytes, senderKey)) {
+        start = PGPInstrumentation.start(traced);
+        final byte[] hashedMessage;
+        if (batchSignature != null) {
+            hashedMessage = MerkleTree.leaf(hash, messageBytes, 0, messageBytes.length);
+        } else if ((hashId & TREE_HASH) != 0) {
+            hashedMessage = join(treeHash(hash, messageBytes));
+        } else {
+            hashedMessage = hash.digest(messageBytes);
+        }
+        event.hashNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.HASH, start, messageBytes.length);
+        logger.info("Hashed message length: " + hashedMessage.length);
+        start = PGPInstrumentation.start(traced);
+        final boolean valid = batchSignature == null
+                ? suite.verify(hashedMessage, signature, senderKey)
+                : validateBatchSignature(batchSignature, hashedMessage, senderKey);
+        event.verifyNanos = PGPInstrumentation.record(PGPInstrumentation.Stage.VERIFY, start, signature.length);
+        if (!valid) {
             throw new SignatureException("Invalid signature for given message");
         }
         logger.info("Message signature validated");
@@ -267,7 +803,86 @@ public class PGPUtils {
         // split message using the caption length into caption and picture strings and
         // return result
         logger.info("Decrypted message caption: " + messageString.substring(0, captionLength));
+        event.end();
+        if (event.shouldCommit()) {
+            event.encodedBytes = pgpMessage.length;
+            event.plaintextBytes = messageBytes.length;
+            event.commit();
+        }
         return new Message(messageString.substring(captionLength), messageString.substring(0, captionLength));
     }
 
+    /**
+     * A stage of the pipeline that may fail with a security exception
+     */
+    @FunctionalInterface
+    private interface PipelineStage<T> {
+        T run() throws GeneralSecurityException;
+    }
+
+    /**
+     * A batch root whose signature has been verified with a public key
+     */
+    private static final class SignedRoot {
+        private final PublicKey key;
+        private final byte[] root;
+
+        SignedRoot(final PublicKey key, final byte[] root) {
+            this.key = key;
+            this.root = root;
+        }
+    }
+
+    /**
+     * The frame header with the wrapped session key and an AES cipher initialised with it
+     */
+    private static final class SessionData {
+        private final Cipher cipher;
+        private final byte[] encryptedSessionData;
+
+        SessionData(final Cipher cipher, final byte[] encryptedSessionData) {
+            this.cipher = cipher;
+            this.encryptedSessionData = encryptedSessionData;
+        }
+    }
+
+    /**
+     * Raw deflate blocks of a chunk with the Adler-32 checksum and length of its input
+     */
+    private static final class DeflatedChunk {
+        private final byte[] bytes;
+        private final long adler;
+        private final long length;
+
+        DeflatedChunk(final byte[] bytes, final long adler, final long length) {
+            this.bytes = bytes;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * State of the encryption stage, which is advanced by one chunk at a time
+     * in stream order. The output begins with the frame header.
+     */
+    private static final class Encryption {
+        private final Cipher cipher;
+        private final ByteArrayOutputStream output;
+        private long adler;
+
+        Encryption(final SessionData sessionData, final int messageLength) {
+            this.cipher = sessionData.cipher;
+            this.output = new ByteArrayOutputStream(messageLength + messageLength / 8 + 1024);
+            this.output.writeBytes(sessionData.encryptedSessionData);
+        }
+
+        void update(final byte[] bytes, final AtomicLong encryptNanos, final boolean traced) {
+            final long start = PGPInstrumentation.start(traced);
+            final byte[] encrypted = cipher.update(bytes);
+            if (encrypted != null) {
+                output.writeBytes(encrypted);
+            }
+            encryptNanos.addAndGet(PGPInstrumentation.record(PGPInstrumentation.Stage.ENCRYPT, start, bytes.length));
+        }
+    }
 }
@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * <code>RevocationIndex</code> is an immutable set of revoked certificate serial
+ * numbers. Membership is tested against a Bloom filter first, which rejects almost
+ * every unrevoked serial with a handful of memory reads, and is confirmed by a
+ * binary search of a sorted <code>long[]</code> so that there are no false positives.
+ * The index costs between nine and eleven bytes per revoked serial.
+ * Updates produce a new index, so readers never need to lock.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see RevocationList
+ */
+public final class RevocationIndex {
+
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+    private static final RevocationIndex EMPTY = new RevocationIndex(new long[0]);
+    private final long[] serials;
+    private final long[] bits;
+    private final long mask;
+
+    /**
+     * Class constructor specifying sorted, distinct serial numbers
+     */
+    private RevocationIndex(long[] serials) {
+        this.serials = serials;
+        long bitCount = Long.highestOneBit(Math.max(64L, (long) serials.length * BITS_PER_ENTRY - 1)) << 1;
+        this.bits = new long[(int) (bitCount >>> 6)];
+        this.mask = bitCount - 1;
+        for (long serial : serials) {
+            long h1 = mix(serial);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                long bit = (h1 + i * h2) & mask;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    public static RevocationIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates an index containing the specified serial numbers
+     *
+     * @param serials revoked serial numbers in any order
+     * @return <code>RevocationIndex</code>
+     */
+    public static RevocationIndex of(long[] serials) {
+        return new RevocationIndex(distinct(serials.clone()));
+    }
+
+    /**
+     * Finalising mix of the SplitMix64 generator, used to derive
+     * independent Bloom filter probes from a serial number
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Sorts an array in place and returns its distinct values
+     */
+    private static long[] distinct(long[] values) {
+        Arrays.sort(values);
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                values[n++] = values[i];
+            }
+        }
+        return n == values.length ? values : Arrays.copyOf(values, n);
+    }
+
+    /**
+     * Returns whether a serial number has been revoked
+     *
+     * @param serial certificate serial number
+     * @return <code>boolean</code>
+     */
+    public boolean contains(long serial) {
+        long h1 = mix(serial);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = (h1 + i * h2) & mask;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return Arrays.binarySearch(serials, serial) >= 0;
+    }
+
+    /**
+     * Creates a new index with the specified serial numbers added and removed.
+     * Removals are applied after additions.
+     *
+     * @param added   serial numbers to revoke
+     * @param removed serial numbers to reinstate
+     * @return <code>RevocationIndex</code>
+     */
+    public RevocationIndex apply(long[] added, long[] removed) {
+        long[] additions = distinct(added.clone());
+        long[] removals = distinct(removed.clone());
+        long[] merged = new long[serials.length + additions.length];
+        int i = 0, j = 0, n = 0;
+        while (i < serials.length || j < additions.length) {
+            long next;
+            if (j == additions.length || (i < serials.length && serials[i] <= additions[j])) {
+                next = serials[i++];
+                if (j < additions.length && additions[j] == next) {
+                    j++;
+                }
+            } else {
+                next = additions[j++];
+            }
+            if (Arrays.binarySearch(removals, next) < 0) {
+                merged[n++] = next;
+            }
+        }
+        return new RevocationIndex(Arrays.copyOf(merged, n));
+    }
+
+    /**
+     * Returns a copy of the revoked serial numbers in ascending order
+     *
+     * @return <code>long[]</code>
+     */
+    public long[] toArray() {
+        return serials.clone();
+    }
+
+    public int size() {
+        return serials.length;
+    }
+
+    /**
+     * Returns the approximate heap footprint of the index in bytes
+     *
+     * @return <code>long</code>
+     */
+    public long memoryBytes() {
+        return 8L * serials.length + 8L * bits.length;
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>RevocationList</code> is a concrete class that publishes and consumes the
+ * certificate revocation list of the Certificate Authority.
+ * The list is a signed base file of revoked serial numbers, followed by signed delta
+ * files numbered <code>1, 2, ...</code> that add or reinstate serial numbers.
+ * A base file records the sequence number of the last delta it includes, so it can
+ * be re-published to compact the deltas. Files are signed with the CA private key
+ * and rejected unless they verify against the current CA public key, which is looked
+ * up on every refresh so that lists signed after a CA key rotation are accepted.
+ * Lookups are answered from an in-memory {@link RevocationIndex}.
+ *
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see CertificateAuthority
+ */
+public class RevocationList {
+
+    public static final String DEFAULT_FILENAME = "revocation.list";
+    private static final Logger LOGGER = Logger.getLogger(RevocationList.class.getName());
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final int MAGIC = 0x43524c31;
+    private static final byte BASE = 0;
+    private static final byte DELTA = 1;
+    private final Path path;
+    private final Supplier<PublicKey> CAPublicKey;
+    private volatile RevocationIndex index = RevocationIndex.empty();
+    private volatile long sequence = -1;
+    private FileTime baseModified;
+    private long baseSize;
+    private PublicKey baseKey;
+
+    /**
+     * Class constructor specifying the CA public key. Uses the default
+     * list in the working directory.
+     */
+    public RevocationList(PublicKey CAPublicKey) {
+        this(Paths.get(DEFAULT_FILENAME), () -> CAPublicKey);
+    }
+
+    /**
+     * Class constructor specifying a source of the current CA public key, such as
+     * {@link SecretsManager#getPublicKey()}. Uses the default list in the working directory.
+     */
+    public RevocationList(Supplier<PublicKey> CAPublicKey) {
+        this(Paths.get(DEFAULT_FILENAME), CAPublicKey);
+    }
+
+    /**
+     * Class constructor specifying the base file and CA public key.
+     * Loads the base file and every delta that follows it.
+     */
+    public RevocationList(Path path, PublicKey CAPublicKey) {
+        this(path, () -> CAPublicKey);
+    }
+
+    /**
+     * Class constructor specifying the base file and a source of the current CA
+     * public key. Loads the base file and every delta that follows it.
+     */
+    public RevocationList(Path path, Supplier<PublicKey> CAPublicKey) {
+        this.path = path;
+        this.CAPublicKey = CAPublicKey;
+        refresh();
+    }
+
+    /**
+     * Returns whether a certificate has been revoked
+     *
+     * @param certificate certificate to check
+     * @return <code>boolean</code>
+     */
+    public boolean isRevoked(X509Certificate certificate) {
+        return index.contains(certificate.getSerialNumber().longValue());
+    }
+
+    /**
+     * Returns whether a serial number has been revoked
+     *
+     * @param serial certificate serial number
+     * @return <code>boolean</code>
+     */
+    public boolean isRevoked(long serial) {
+        return index.contains(serial);
+    }
+
+    /**
+     * Loads the base file if it has not been loaded, has been re-published since or
+     * the CA key has changed, then applies any delta files that follow it. The new index is published once
+     * every file has been read, so lookups never see a base without its deltas.
+     * Files that are missing, malformed or not signed by the CA are ignored.
+     *
+     * @return <code>boolean</code> returns <code>False</code> if the CA key cannot be
+     * loaded, in which case no certificate can be checked and peers should be rejected
+     */
+    public synchronized boolean refresh() {
+        RevocationIndex next = index;
+        long nextSequence = sequence;
+        try {
+            if (Files.notExists(path)) {
+                return true;
+            }
+            PublicKey key = CAPublicKey.get();
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (sequence < 0 || !key.equals(baseKey) || !attributes.lastModifiedTime().equals(baseModified)
+                    || attributes.size() != baseSize) {
+                DataInputStream input = open(path, BASE, key);
+                nextSequence = input.readLong();
+                next = RevocationIndex.of(readSerials(input));
+                baseModified = attributes.lastModifiedTime();
+                baseSize = attributes.size();
+                baseKey = key;
+                LOGGER.info("Loaded " + next.size() + " revoked serials from " + path);
+            }
+            Path delta = deltaPath(path, nextSequence + 1);
+            while (Files.exists(delta)) {
+                DataInputStream input = open(delta, DELTA, key);
+                if (input.readLong() != nextSequence + 1) {
+                    throw new IOException("Out of sequence revocation delta " + delta);
+                }
+                long[] added = readSerials(input);
+                long[] removed = readSerials(input);
+                next = next.apply(added, removed);
+                nextSequence++;
+                LOGGER.info("Applied revocation delta " + nextSequence + " (+" + added.length + " -" + removed.length + ")");
+                delta = deltaPath(path, nextSequence + 1);
+            }
+        } catch (IOException | GeneralSecurityException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        } catch (IllegalStateException ex) {
+            LOGGER.log(Level.SEVERE, ex.getMessage());
+            return false;
+        } finally {
+            index = next;
+            sequence = nextSequence;
+        }
+        return true;
+    }
+
+    public RevocationIndex getIndex() {
+        return index;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Publishes a base file containing the specified serial numbers and
+     * including every delta up to the specified sequence number
+     *
+     * @param path         base file
+     * @param sequence     sequence number of the last included delta, or <code>0</code>
+     * @param serials      revoked serial numbers
+     * @param CAPrivateKey private key of the Certificate Authority
+     */
+    public static void publish(Path path, long sequence, long[] serials, PrivateKey CAPrivateKey)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+        output.writeInt(MAGIC);
+        output.writeByte(BASE);
+        output.writeLong(sequence);
+        writeSerials(output, serials);
+        write(path, body.toByteArray(), CAPrivateKey);
+    }
+
+    /**
+     * Publishes the next delta file after the base file and any existing deltas
+     *
+     * @param path         base file
+     * @param added        serial numbers to revoke
+     * @param removed      serial numbers to reinstate
+     * @param CAPrivateKey private key of the Certificate Authority
+     * @return <code>long</code> sequence number of the published delta
+     */
+    public static long publishDelta(Path path, long[] added, long[] removed, PrivateKey CAPrivateKey)
+            throws IOException, GeneralSecurityException {
+        long sequence = 1;
+        while (Files.exists(deltaPath(path, sequence))) {
+            sequence++;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(body);
+        output.writeInt(MAGIC);
+        output.writeByte(DELTA);
+        output.writeLong(sequence);
+        writeSerials(output, added);
+        writeSerials(output, removed);
+        write(deltaPath(path, sequence), body.toByteArray(), CAPrivateKey);
+        return sequence;
+    }
+
+    private static Path deltaPath(Path path, long sequence) {
+        return path.resolveSibling(path.getFileName() + "." + sequence);
+    }
+
+    /**
+     * Signs a file body and writes it to a temporary file that
+     * atomically replaces the target
+     */
+    private static void write(Path path, byte[] body, PrivateKey CAPrivateKey)
+            throws IOException, GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(CAPrivateKey);
+        signature.update(body);
+        byte[] signatureBytes = signature.sign();
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + body.length + signatureBytes.length);
+        buffer.putInt(body.length).put(body).putInt(signatureBytes.length).put(signatureBytes);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a file, verifies its signature against the specified CA public key
+     * and returns a stream positioned after the header
+     */
+    private DataInputStream open(Path file, byte kind, PublicKey key) throws IOException, GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        byte[] body = new byte[buffer.getInt()];
+        buffer.get(body);
+        byte[] signatureBytes = new byte[buffer.getInt()];
+        buffer.get(signatureBytes);
+
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initVerify(key);
+        signature.update(body);
+        if (!signature.verify(signatureBytes)) {
+            throw new SignatureException("Invalid signature for revocation file " + file);
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+        if (input.readInt() != MAGIC || input.readByte() != kind) {
+            throw new IOException("Unrecognised revocation file " + file);
+        }
+        return input;
+    }
+
+    private static void writeSerials(DataOutputStream output, long[] serials) throws IOException {
+        output.writeInt(serials.length);
+        for (long serial : serials) {
+            output.writeLong(serial);
+        }
+    }
+
+    private static long[] readSerials(DataInputStream input) throws IOException {
+        long[] serials = new long[input.readInt()];
+        for (int i = 0; i < serials.length; i++) {
+            serials[i] = input.readLong();
+        }
+        return serials;
+    }
+}
@@ -1,14 +1,16 @@
-import java.io.FileInputStream;
-import java.io.IOException;
+import org.bouncycastle.operator.OperatorCreationException;
+
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Map;
 
 /**
  * <code>SecretsManager</code> is a concrete class that manages secrets
  * required for secure encrypted communication between clients.
- * <code>SecretsManager</code> loads the CA {@link KeyPair} from a keystore
- * and uses a <code>CertificateGenerator</code> to generated digital certificates.
+ * <code>SecretsManager</code> obtains the CA {@link KeyPair} from a shared {@link CAKeyHolder}
+ * and uses a <code>CertificateIssuer</code> to generated digital certificates.
+ * The issuer is rebuilt whenever the holder swaps in a new key pair.
  * <code>Client</code>s use a <code>SecretsManager</code> to retrieve the public key
  * of the Certificate Authority.
  *
@@ -18,26 +20,58 @@ import java.security.cert.X509Certificate;
  * @author Emily Morris
  * @version %I%, %G%
  * @see CertificateGenerator
+ * @see CertificateIssuer
+ * @see CAKeyHolder
  */
 public class SecretsManager {
 
-    private final String KEYSTORE_FILENAME = "keystore.pkcs12";
-    private final String KEYSTORE_PASSWORD = "crypto";
-    private KeyPair CAKeyPair;
+    private final CAKeyHolder holder;
+    private CertificateIssuer issuer;
+    private KeyPair issuerKeyPair;
 
     /**
-     * Sole class constructor
+     * Class constructor using the process-wide {@link CAKeyHolder}
      */
     public SecretsManager() {
-        try {
-            this.CAKeyPair = load(KEYSTORE_FILENAME, KEYSTORE_PASSWORD.toCharArray());
-        } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException | UnrecoverableEntryException e) {
-            e.printStackTrace();
-        }
+        this(CAKeyHolder.getInstance());
+    }
+
+    /**
+     * Class constructor specifying a {@link CAKeyHolder}
+     */
+    public SecretsManager(CAKeyHolder holder) {
+        this.holder = holder;
     }
 
     public PublicKey getPublicKey() {
-        return CAKeyPair.getPublic();
+        return holder.getKeyPair().getPublic();
+    }
+
+    /**
+     * Returns the current CA key pair
+     *
+     * @return <code>KeyPair</code>
+     */
+    KeyPair getKeyPair() {
+        return holder.getKeyPair();
+    }
+
+    PrivateKey getPrivateKey() {
+        return holder.getKeyPair().getPrivate();
+    }
+
+    /**
+     * Returns an issuer bound to the current CA key pair
+     *
+     * @return <code>CertificateIssuer</code>
+     */
+    private synchronized CertificateIssuer issuer() throws OperatorCreationException {
+        KeyPair CAKeyPair = holder.getKeyPair();
+        if (issuer == null || issuerKeyPair != CAKeyPair) {
+            issuer = new CertificateIssuer(CAKeyPair.getPrivate());
+            issuerKeyPair = CAKeyPair;
+        }
+        return issuer;
     }
 
     /**
@@ -48,32 +82,57 @@ public class SecretsManager {
      * @return <code>X509Certificate</code>
      */
     public X509Certificate generateCertificate(String alias, PublicKey publicKey) {
-        return CertificateGenerator.generate(alias, publicKey, CAKeyPair.getPrivate());
+        X509Certificate certificate = null;
+        try {
+            certificate = issuer().issue(alias, publicKey);
+        } catch (CertificateException | OperatorCreationException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return certificate;
     }
 
     /**
-     * Retrieves a <code>PrivateKeyEntry</code> from the keystore on disk
+     * Generates a signed certificate offering the cipher suites of a client
      *
-     * @param filename keystore filename
-     * @param password keystore password
+     * @param alias alias of the certificate subject
+     * @param keys  key-pairs of the client for each suite it offers
      * @return <code>X509Certificate</code>
      */
-    private KeyPair load(String filename, char[] password)
-            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
-            IOException, UnrecoverableEntryException {
-        KeyStore keyStore = KeyStore.getInstance("PKCS12");
-
-        try (FileInputStream fis = new FileInputStream(filename)) {
-            keyStore.load(fis, password);
+    public X509Certificate generateCertificate(String alias, SuiteKeys keys) {
+        X509Certificate certificate = null;
+        try {
+            certificate = issuer().issue(alias, keys);
+        } catch (CertificateException | OperatorCreationException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return certificate;
+    }
 
-        KeyStore.ProtectionParameter param = new KeyStore.PasswordProtection(password);
-        KeyStore.Entry entry = keyStore.getEntry("CA", param);
-
-        KeyStore.PrivateKeyEntry privateKeyEntry = (KeyStore.PrivateKeyEntry) entry;
-        PublicKey CAPublicKey = privateKeyEntry.getCertificate().getPublicKey();
-        PrivateKey CAPrivateKey = privateKeyEntry.getPrivateKey();
-        return new KeyPair(CAPublicKey, CAPrivateKey);
+    /**
+     * Generates signed public key certificates for a batch of subjects in parallel
+     *
+     * @param subjects public keys keyed by subject alias
+     * @return <code>Map</code> of certificates keyed by alias
+     * @see CertificateIssuer#issueAll(Map)
+     */
+    public Map<String, X509Certificate> generateCertificates(Map<String, PublicKey> subjects)
+            throws CertificateException, InterruptedException, OperatorCreationException {
+        return issuer().issueAll(subjects);
     }
 
+    /**
+     * Generates certificates offering the cipher suites of a batch of subjects in parallel
+     *
+     * @param subjects key-pairs for the offered suites keyed by subject alias
+     * @return <code>Map</code> of certificates keyed by alias
+     * @see CertificateIssuer#issueAllSuites(Map)
+     */
+    public Map<String, X509Certificate> generateSuiteCertificates(Map<String, SuiteKeys> subjects)
+            throws CertificateException, InterruptedException, OperatorCreationException {
+        return issuer().issueAllSuites(subjects);
+    }
 }
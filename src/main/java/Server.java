@@ -1,21 +1,25 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.KeyStoreException;
 import java.security.cert.X509Certificate;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * <code>Server</code> is a concrete class that controls and manages communication
  * between two clients in a communication {@link Session}. A server instance is started
  * on a specified port and continuously listen for incoming client connections.
  * A dedicated <code>ClientHandler</code> is spawned to manage communication with each
- * client in parallel.
+ * client in parallel. A multi-session server pairs clients into a new {@link Session}
+ * in order of arrival and keeps running when a session terminates, so that one relay
+ * can serve many sessions at once. Server activity is recorded in {@link ServerMetrics}, which is
+ * exported over JMX and by a {@link MetricsEndpoint}, and connection lifecycle events
+ * are emitted to JDK Flight Recorder as {@link FlightEvents}.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -26,23 +30,37 @@ import java.util.stream.Collectors;
 public class Server {
 
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    private static final SecretsManager SECRETS_MANAGER = new SecretsManager();
     private final CommandMessageFactory COMMAND_MESSAGE_FACTORY = new CommandMessageFactory();
+    private final RevocationList revocationList = new RevocationList(SECRETS_MANAGER::getPublicKey);
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final AtomicInteger sessionsOpen = new AtomicInteger();
     private final int port;
-    private final Set<ClientHandler> handlers = new HashSet<>();
-    private Session session;
+    private final boolean multiSession;
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private volatile Session session;
 
     /**
      * Class constructor.
      */
     public Server() {
-        this.port = 4444;
+        this(4444);
     }
 
     /**
      * Class constructor specifying port
      */
     public Server(int port) {
+        this(port, false);
+    }
+
+    /**
+     * Class constructor specifying port and whether clients are paired into
+     * many concurrent sessions
+     */
+    public Server(int port, boolean multiSession) {
         this.port = port;
+        this.multiSession = multiSession;
     }
 
     /**
@@ -68,45 +86,80 @@ public class Server {
 
             LOGGER.info("Server listening on port " + port);
             session = new Session();
+            metrics.register();
+            try {
+                new MetricsEndpoint(metrics::render).start();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Metrics endpoint unavailable: " + ex.getMessage());
+            }
 
             while (true) {
                 Socket socket = serverSocket.accept();
+                metrics.connectionAccepted();
+                FlightEvents.ConnectionAccepted event = new FlightEvents.ConnectionAccepted();
+                event.remotePort = socket.getPort();
+                event.commit();
                 LOGGER.info("Created socket at port " + socket.getPort());
-                ClientHandler handler = new ClientHandler(socket, this);
+                Session assigned = assignSession();
+                ClientHandler handler = new ClientHandler(socket, this, assigned);
+                assigned.join(handler);
                 handlers.add(handler);
                 handler.start();
             }
 
-        } catch (IOException | KeyStoreException ex) {
+        } catch (IOException ex) {
             LOGGER.log(Level.SEVERE, ex.getMessage());
             kill();
         }
     }
 
+    /**
+     * Returns the session that a newly accepted client joins. A multi-session
+     * server starts a new session once the current one has two clients.
+     *
+     * @return <code>Session</code>
+     */
+    private Session assignSession() {
+        if (multiSession && session.getHandlers().size() >= 2) {
+            session = new Session();
+        }
+        return session;
+    }
+
     /**
      * Delivers an encrypted message to the other connected client
-     * using the dedicated handler
+     * using the dedicated handler. Records the size of the message and
+     * the time taken to write it.
      *
      * @param message message to deliver to client
      * @param source  handler that manages communication with the source client
      */
     public void deliver(Object message, ClientHandler source) throws IOException {
-        for (ClientHandler handler : handlers) {
+        long bytes = message instanceof byte[] ? ((byte[]) message).length : 0;
+        for (ClientHandler handler : source.getSession().getHandlers()) {
             if (handler != source) {
+                FlightEvents.FrameRelayed event = new FlightEvents.FrameRelayed();
+                event.begin();
+                long start = System.nanoTime();
                 handler.write(message);
-                LOGGER.info("Delivered encrypted message to client " + getRecipientAlias(source.getAlias()));
+                metrics.frameRelayed(bytes, System.nanoTime() - start);
+                event.source = source.getAlias();
+                event.bytes = bytes;
+                event.commit();
+                LOGGER.info("Delivered encrypted message to client " + handler.getAlias());
             }
         }
     }
 
     /**
-     * Delivers a {@link CommandMessage} to all connected clients.
+     * Delivers a {@link CommandMessage} to all clients in a session.
      * Typically used to disconnect all clients.
      *
      * @param message command message to broadcast
+     * @param session session whose clients receive the message
      */
-    public void broadcast(CommandMessage message) throws IOException {
-        for (ClientHandler handler : handlers) {
+    public void broadcast(CommandMessage message, Session session) throws IOException {
+        for (ClientHandler handler : session.getHandlers()) {
             handler.write(message);
             LOGGER.info("Broadcast message to all connected clients");
         }
@@ -114,49 +167,68 @@ public class Server {
 
     /**
      * Delivers a signed certificate to the connected client
-     * using the dedicated handler
+     * using the dedicated handler. The certificate is written in its
+     * cached DER encoding.
      *
      * @param source handler that manages communication with the source client
      */
-    public void deliverCertificate(ClientHandler source) throws IOException, KeyStoreException {
-        for (ClientHandler handler : handlers) {
+    public void deliverCertificate(ClientHandler source) throws IOException {
+        Session session = source.getSession();
+        for (ClientHandler handler : session.getHandlers()) {
             if (handler != source) {
-                handler.write(session.getCertificate(source.getAlias()));
-                LOGGER.info("Delivered X.509 certificate to client " + getRecipientAlias(source.getAlias()) + " from client " + source.getAlias());
+                handler.write(session.getEncodedCertificate(source.getAlias()));
+                LOGGER.info("Delivered X.509 certificate to client " + handler.getAlias() + " from client " + source.getAlias());
                 session.log(source.getAlias());
+                metrics.certificateDelivered();
             }
         }
     }
 
     /**
-     * Stores a client's alias in a {@link Session}
+     * Stores a client's alias in its {@link Session}
      *
-     * @param alias client alias
+     * @param source handler that manages communication with the client
      */
-    public void storeAlias(String alias) {
-        session.storeAlias(alias);
-        LOGGER.info("Client " + alias + " has connected to the server");
+    public void storeAlias(ClientHandler source) {
+        Session session = source.getSession();
+        session.storeAlias(source.getAlias());
+        LOGGER.info("Client " + source.getAlias() + " has connected to the server");
         LOGGER.info("Connected clients " + session.getAliases());
     }
 
     /**
      * Retrieves alias of recipient client
      *
-     * @param alias source client alias
+     * @param source handler that manages communication with the source client
      * @return <code>String</code>
      */
-    public String getRecipientAlias(String alias) {
-        return session.getAliases().stream().filter(a -> !a.equals(alias)).collect(Collectors.toList()).get(0);
+    public String getRecipientAlias(ClientHandler source) {
+        return source.getSession().getAliases().stream().filter(a -> !a.equals(source.getAlias()))
+                .collect(Collectors.toList()).get(0);
     }
 
     /**
-     * Stores a client certificate in a {@link Session}
-     * If two clients have connected, a session is initiated
+     * Stores a client certificate in its {@link Session}
+     * If two clients have connected, the session is initiated.
+     * Certificates that appear in the {@link RevocationList} are rejected, as are all
+     * certificates while the CA key cannot be loaded.
      *
      * @param certificate signed certificate containing client public key
-     * @param alias       client alias
+     * @param source      handler that manages communication with the client
+     * @return <code>boolean</code> returns <code>True</code> if the certificate is accepted
+     * <code>False</code> if it has been revoked or cannot be checked
      */
-    public void storeCertificate(X509Certificate certificate, String alias) {
+    public boolean storeCertificate(X509Certificate certificate, ClientHandler source) {
+        String alias = source.getAlias();
+        Session session = source.getSession();
+        if (!revocationList.refresh()) {
+            LOGGER.warning("Rejected X.509 certificate from client " + alias + ", the CA key is unavailable");
+            return false;
+        }
+        if (revocationList.isRevoked(certificate)) {
+            LOGGER.warning("Rejected revoked X.509 certificate " + certificate.getSerialNumber() + " from client " + alias);
+            return false;
+        }
         try {
             session.storeCertificate(certificate, alias);
         } catch (Exception ex) {
@@ -164,8 +236,24 @@ public class Server {
         }
         LOGGER.info("Cached X.509 certificate from client " + alias);
         if (session.getAliases().size() == 2) {
-            initiateSession();
+            initiateSession(session);
         }
+        return true;
+    }
+
+    /**
+     * Removes a client that has been refused entry to a session
+     * without terminating the session
+     *
+     * @param alias   alias of client to remove
+     * @param handler handler that manages communication with the specified client
+     */
+    public void rejectClient(String alias, ClientHandler handler) {
+        handler.getSession().disconnectClient(alias);
+        handler.getSession().leave(handler);
+        handlers.remove(handler);
+        metrics.connectionClosed();
+        LOGGER.info("Client " + alias + " has been rejected");
     }
 
     /**
@@ -177,6 +265,7 @@ public class Server {
      * @param handler handler that manages communication with the specified client
      */
     public void disconnectClient(String alias, ClientHandler handler) {
+        Session session = handler.getSession();
         boolean disconnect = false;
         try {
             disconnect = session.disconnectClient(alias);
@@ -184,67 +273,153 @@ public class Server {
             LOGGER.log(Level.WARNING, ex.getMessage());
         }
         if (disconnect) {
+            session.leave(handler);
             handlers.remove(handler);
+            metrics.connectionClosed();
             LOGGER.info("Client " + alias + " has disconnected");
             try {
                 String message = alias + " has left the matrix";
                 CommandMessage quitMessage = COMMAND_MESSAGE_FACTORY.getCommandMessage("QUIT", message);
-                broadcast(quitMessage);
+                broadcast(quitMessage, session);
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, ex.getMessage());
             }
-            terminateSession();
+            terminateSession(session);
+        }
+
+    }
+
+    /**
+     * Handles a client whose connection has failed. A single-session server
+     * shuts down, while a multi-session server disconnects the client and
+     * terminates only its session.
+     *
+     * @param handler handler that manages communication with the failed client
+     */
+    public void dropClient(ClientHandler handler) {
+        if (!multiSession) {
+            kill();
         }
+        disconnectClient(handler.getAlias(), handler);
+    }
+
+    public void authenticateClient(ClientHandler source) {
+        source.getSession().authenticate();
+    }
 
+    /**
+     * Returns the number of clients that have joined any open session
+     *
+     * @return <code>int</code>
+     */
+    public int getClientsInSessions() {
+        return openSessions().mapToInt(s -> s.getAliases().size()).sum();
     }
 
-    public void authenticateClient() {
-        session.authenticate();
+    /**
+     * Returns the number of clients that have been authenticated in any open session
+     *
+     * @return <code>int</code>
+     */
+    public int getAuthenticatedClients() {
+        return openSessions().mapToInt(s -> s.getAuthenticatedClients().get()).sum();
     }
 
-    public AtomicInteger getSessionAuthenticatedClients() {
-        return session.getAuthenticatedClients();
+    /**
+     * Returns the number of open sessions in which each client has authenticated the other
+     *
+     * @return <code>int</code>
+     */
+    public int getSessionsActive() {
+        return (int) openSessions().filter(Session::isActive).count();
     }
 
-    public boolean isSessionAlive() {
-        return session.isAlive();
+    /**
+     * Returns every session that at least one connected client belongs to
+     *
+     * @return <code>Stream</code> of distinct sessions
+     */
+    private Stream<Session> openSessions() {
+        return handlers.stream().map(ClientHandler::getSession).distinct();
     }
 
-    public boolean isSessionActive() {
-        return session.isActive();
+    public int getSessionsOpen() {
+        return sessionsOpen.get();
     }
 
-    public boolean isSessionCertificateDelivered(String alias) {
-        return session.isLogged(alias);
+    /**
+     * Returns the largest number of bytes retained by the output stream of any open connection
+     *
+     * @return <code>long</code>
+     */
+    public long getMaxRetainedBytes() {
+        return handlers.stream().mapToLong(ClientHandler::getRetainedBytes).max().orElse(0);
+    }
+
+    /**
+     * Returns the number of bytes retained by the output streams of all open connections
+     *
+     * @return <code>long</code>
+     */
+    public long getTotalRetainedBytes() {
+        return handlers.stream().mapToLong(ClientHandler::getRetainedBytes).sum();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isSessionCertificateDelivered(ClientHandler source) {
+        return source.getSession().isLogged(source.getAlias());
     }
 
     /**
      * Initiates a session after a second client
      * has connected to the server
+     *
+     * @param session session to initiate
      */
-    public void initiateSession() {
+    public void initiateSession(Session session) {
+        if (session.isAlive()) {
+            return;
+        }
         session.setAlive(true);
+        sessionsOpen.incrementAndGet();
+        new FlightEvents.SessionAlive().commit();
         LOGGER.info("Session initiated");
     }
 
     /**
      * Activates a session after each client has
      * authenticated the other post certificate exchange
+     *
+     * @param session session to activate
      */
-    public void activateSession() {
+    public void activateSession(Session session) {
+        if (session.isActive()) {
+            return;
+        }
         session.setActive(true);
+        new FlightEvents.SessionActive().commit();
         LOGGER.info("Session activated");
     }
 
     /**
-     * Terminates a {@link Session} and server instance
-     * once a client has disconnected
+     * Terminates a {@link Session} once a client has disconnected.
+     * A single-session server instance is also terminated.
+     *
+     * @param session session to terminate
      */
-    public void terminateSession() {
+    public void terminateSession(Session session) {
+        if (session.isAlive()) {
+            sessionsOpen.decrementAndGet();
+        }
         session.setAlive(false);
         session.setActive(false);
         LOGGER.info("Session terminated");
-        kill();
+        if (!multiSession) {
+            kill();
+        }
     }
 
     /**
@@ -0,0 +1,230 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>ServerMetrics</code> is a concrete class that instruments a {@link Server}.
+ * It counts accepted connections, relayed frames and bytes and delivered certificates,
+ * exposes gauges summed over every open {@link Session} and for the bytes retained by the
+ * {@link BoundedObjectOutputStream} of each connection, and records the time from accepting
+ * a connection to the session becoming active and the time taken to relay each frame
+ * in {@link LatencyHistogram}s.
+ * Metrics are exported as the <code>CryptoSystem:type=ServerMetrics</code> MBean and
+ * in plain text by a {@link MetricsEndpoint}.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see ServerMetricsMBean
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    public static final String OBJECT_NAME = "CryptoSystem:type=ServerMetrics";
+    private static final Logger LOGGER = Logger.getLogger(ServerMetrics.class.getName());
+    private final Server server;
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final AtomicInteger connectionsOpen = new AtomicInteger();
+    private final LongAdder framesRelayed = new LongAdder();
+    private final LongAdder bytesRelayed = new LongAdder();
+    private final LongAdder certificatesDelivered = new LongAdder();
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    private final LatencyHistogram relay = new LatencyHistogram();
+
+    /**
+     * Class constructor specifying the server to report session gauges for
+     */
+    public ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers this instance with the platform {@link MBeanServer}
+     */
+    public void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+            mBeanServer.registerMBean(this, name);
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+        connectionsOpen.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        connectionsOpen.decrementAndGet();
+    }
+
+    /**
+     * Records a relayed frame
+     *
+     * @param bytes size of the frame payload
+     * @param nanos time taken to write the frame to the recipient
+     */
+    public void frameRelayed(long bytes, long nanos) {
+        framesRelayed.increment();
+        bytesRelayed.add(bytes);
+        relay.record(nanos);
+    }
+
+    public void certificateDelivered() {
+        certificatesDelivered.increment();
+    }
+
+    /**
+     * Records the time from accepting a connection to the session becoming active
+     *
+     * @param nanos handshake duration
+     */
+    public void handshakeCompleted(long nanos) {
+        handshake.record(nanos);
+    }
+
+    public LatencyHistogram getHandshakeHistogram() {
+        return handshake;
+    }
+
+    public LatencyHistogram getRelayHistogram() {
+        return relay;
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public int getConnectionsOpen() {
+        return connectionsOpen.get();
+    }
+
+    @Override
+    public long getFramesRelayed() {
+        return framesRelayed.sum();
+    }
+
+    @Override
+    public long getBytesRelayed() {
+        return bytesRelayed.sum();
+    }
+
+    @Override
+    public long getCertificatesDelivered() {
+        return certificatesDelivered.sum();
+    }
+
+    @Override
+    public int getSessionsOpen() {
+        return server.getSessionsOpen();
+    }
+
+    @Override
+    public long getConnectionRetainedBytesMax() {
+        return server.getMaxRetainedBytes();
+    }
+
+    @Override
+    public long getConnectionRetainedBytesTotal() {
+        return server.getTotalRetainedBytes();
+    }
+
+    @Override
+    public int getSessionClients() {
+        return server.getClientsInSessions();
+    }
+
+    @Override
+    public int getSessionAuthenticatedClients() {
+        return server.getAuthenticatedClients();
+    }
+
+    @Override
+    public int getSessionsActive() {
+        return server.getSessionsActive();
+    }
+
+    @Override
+    public long getHandshakeCount() {
+        return handshake.getCount();
+    }
+
+    @Override
+    public long getHandshakeP50Micros() {
+        return handshake.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getHandshakeP99Micros() {
+        return handshake.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getHandshakeMaxMicros() {
+        return handshake.getMax() / 1000;
+    }
+
+    @Override
+    public long getRelayP50Micros() {
+        return relay.getPercentile(50) / 1000;
+    }
+
+    @Override
+    public long getRelayP99Micros() {
+        return relay.getPercentile(99) / 1000;
+    }
+
+    @Override
+    public long getRelayMaxMicros() {
+        return relay.getMax() / 1000;
+    }
+
+    /**
+     * Renders every metric as one <code>name value</code> line
+     *
+     * @return <code>String</code>
+     */
+    public String render() {
+        StringBuilder stringBuilder = new StringBuilder();
+        line(stringBuilder, "connections_accepted_total", getConnectionsAccepted());
+        line(stringBuilder, "connections_open", getConnectionsOpen());
+        line(stringBuilder, "frames_relayed_total", getFramesRelayed());
+        line(stringBuilder, "bytes_relayed_total", getBytesRelayed());
+        line(stringBuilder, "certificates_delivered_total", getCertificatesDelivered());
+        line(stringBuilder, "sessions_open", getSessionsOpen());
+        line(stringBuilder, "connection_retained_bytes_max", getConnectionRetainedBytesMax());
+        line(stringBuilder, "connection_retained_bytes_total", getConnectionRetainedBytesTotal());
+        line(stringBuilder, "session_clients", getSessionClients());
+        line(stringBuilder, "session_authenticated_clients", getSessionAuthenticatedClients());
+        line(stringBuilder, "sessions_active", getSessionsActive());
+        histogram(stringBuilder, "handshake_seconds", handshake);
+        histogram(stringBuilder, "relay_seconds", relay);
+        return stringBuilder.toString();
+    }
+
+    private static void line(StringBuilder stringBuilder, String name, Object value) {
+        stringBuilder.append("cryptosystem_").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder stringBuilder, String name, LatencyHistogram histogram) {
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            stringBuilder.append("cryptosystem_").append(name).append("{quantile=\"").append(percentile / 100)
+                    .append("\"} ").append(histogram.getPercentile(percentile) / 1e9).append('\n');
+        }
+        line(stringBuilder, name + "_max", histogram.getMax() / 1e9);
+        line(stringBuilder, name + "_count", histogram.getCount());
+    }
+}
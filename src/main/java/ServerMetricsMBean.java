@@ -0,0 +1,50 @@
+/**
+ * <code>ServerMetricsMBean</code> is the management interface through which
+ * {@link ServerMetrics} is exported over JMX. Session gauges are summed over every open
+ * session. Durations are reported in microseconds.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see ServerMetrics
+ */
+public interface ServerMetricsMBean {
+
+    long getConnectionsAccepted();
+
+    int getConnectionsOpen();
+
+    long getFramesRelayed();
+
+    long getBytesRelayed();
+
+    long getCertificatesDelivered();
+
+    int getSessionsOpen();
+
+    long getConnectionRetainedBytesMax();
+
+    long getConnectionRetainedBytesTotal();
+
+    int getSessionClients();
+
+    int getSessionAuthenticatedClients();
+
+    int getSessionsActive();
+
+    long getHandshakeCount();
+
+    long getHandshakeP50Micros();
+
+    long getHandshakeP99Micros();
+
+    long getHandshakeMaxMicros();
+
+    long getRelayP50Micros();
+
+    long getRelayP99Micros();
+
+    long getRelayMaxMicros();
+}
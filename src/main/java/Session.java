@@ -1,13 +1,8 @@
-import java.io.IOException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -23,14 +18,16 @@ import java.util.concurrent.atomic.AtomicInteger;
  *     </li>
  * </ol>
  * A <code>Session</code> that is alive has two or more connected clients and
- * has been initiated by the {@link Server}.
+ * has been initiated by the {@link Server}. The {@link ClientHandler}s of the clients
+ * that joined a session are recorded so that messages are relayed only within it.
  * For the purposes of this implementation, the upper bound on clients will be two.
  * A <code>Session</code> is active once certificates have been exchanged and
  * verified and each client has authenticated the other party by dispatching
  * an {@link AuthenticateMessage}.
  * A <code>Session</code> also stores a copy of each certificate and a record
- * of delivery to the other party. This is to prevent duplicate certificates being
- * delivered to a client.
+ * of delivery to the other party in a {@link CertificateCache}. This is to prevent
+ * duplicate certificates being delivered to a client. Session state is shared
+ * between {@link ClientHandler} threads and is backed by concurrent collections.
  *
  * @author Kialan Pillay
  * @author Aidan Bailey
@@ -42,34 +39,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class Session {
 
     private final AtomicInteger authenticatedClients;
-    private final Set<String> aliases = new HashSet<>();
-    private final Map<String, Boolean> log = new HashMap<>();
-    private KeyStore keyStore;
+    private final Set<String> aliases = ConcurrentHashMap.newKeySet();
+    private final Set<ClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private final CertificateCache certificateCache = new CertificateCache();
     private volatile boolean alive;
     private volatile boolean active;
 
-    public Session() throws KeyStoreException {
+    public Session() {
         this.alive = false;
         this.active = false;
         this.authenticatedClients = new AtomicInteger(0);
-        loadKeyStore();
-    }
-
-    /**
-     * Initialises a PKCS12 keystore for in-memory storage
-     * of trusted certificates
-     */
-    private void loadKeyStore() {
-        try {
-            this.keyStore = KeyStore.getInstance("PKCS12");
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        }
-        try {
-            this.keyStore.load(null, null);
-        } catch (IOException | NoSuchAlgorithmException | CertificateException e) {
-            e.printStackTrace();
-        }
     }
 
     public boolean isAlive() {
@@ -113,11 +92,34 @@ public class Session {
     /**
      * Returns the stored certificate for a specified client
      *
-     * @return <code>X509Certificate</code>
-     * @throws {@link KeyStoreException}
+     * @return <code>X509Certificate</code> or <code>null</code> if no certificate is stored
      */
-    public X509Certificate getCertificate(String alias) throws KeyStoreException {
-        return (X509Certificate) keyStore.getCertificate(alias);
+    public X509Certificate getCertificate(String alias) {
+        CertificateCache.Entry entry = certificateCache.get(alias);
+        return entry == null ? null : entry.getCertificate();
+    }
+
+    /**
+     * Returns the DER encoding of the stored certificate for a specified client.
+     * The encoding is computed once when the certificate is stored.
+     *
+     * @return <code>byte[]</code> or <code>null</code> if no certificate is stored
+     */
+    public byte[] getEncodedCertificate(String alias) {
+        CertificateCache.Entry entry = certificateCache.get(alias);
+        return entry == null ? null : entry.getEncoded();
+    }
+
+    public Set<ClientHandler> getHandlers() {
+        return handlers;
+    }
+
+    public void join(ClientHandler handler) {
+        handlers.add(handler);
+    }
+
+    public void leave(ClientHandler handler) {
+        handlers.remove(handler);
     }
 
     public Set<String> getAliases() {
@@ -129,19 +131,17 @@ public class Session {
     }
 
     /**
-     * Stores a client certificate as an entry of an in-memory {@link KeyStore}
-     * and adds a log entry to track certificate delivery
+     * Stores a client certificate in the {@link CertificateCache}
+     * with a cleared delivery record
      *
      * @param certificate signed certificate containing client public key
      * @param alias       client alias
+     * @throws CertificateEncodingException if the certificate cannot be encoded
+     * @throws NoSuchAlgorithmException     if SHA-256 is unavailable for fingerprinting
      */
-    public void storeCertificate(X509Certificate certificate, String alias) {
-        try {
-            keyStore.setCertificateEntry(alias, certificate);
-        } catch (KeyStoreException e) {
-            e.printStackTrace();
-        }
-        log.put(alias, false);
+    public void storeCertificate(X509Certificate certificate, String alias)
+            throws CertificateEncodingException, NoSuchAlgorithmException {
+        certificateCache.put(alias, certificate);
     }
 
     /**
@@ -151,7 +151,7 @@ public class Session {
      * @param alias alias of client attached to the certificate
      */
     public void log(String alias) {
-        log.replace(alias, true);
+        certificateCache.markDelivered(alias);
     }
 
     /**
@@ -162,13 +162,11 @@ public class Session {
      * <code>False</code> otherwise
      */
     public boolean isLogged(String alias) {
-        return log.get(alias);
+        return certificateCache.isDelivered(alias);
     }
 
     public void resetLog() {
-        for (String k : log.keySet()) {
-            log.replace(k, false);
-        }
+        certificateCache.resetDelivered();
     }
 
     /**
@@ -181,12 +179,7 @@ public class Session {
     public boolean disconnectClient(String alias) {
         boolean disconnect = aliases.remove(alias);
         if (disconnect) {
-            try {
-                keyStore.deleteEntry(alias);
-            } catch (KeyStoreException e) {
-                e.printStackTrace();
-            }
-            log.remove(alias);
+            certificateCache.remove(alias);
             resetLog();
         }
         return disconnect;
@@ -0,0 +1,53 @@
+/**
+ * <code>StripedHistogram</code> is a concrete class that spreads recordings from
+ * concurrent threads across several {@link LatencyHistogram} stripes, selected by
+ * thread, so that threads recording at the same time rarely contend on the same
+ * counters. Reads merge the stripes into a snapshot.
+ *
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @version %I%, %G%
+ */
+public class StripedHistogram {
+
+    private final LatencyHistogram[] stripes;
+    private final int mask;
+
+    /**
+     * Class constructor. Allocates a power of two stripes, at least
+     * twice the number of available processors.
+     */
+    public StripedHistogram() {
+        int count = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.stripes = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new LatencyHistogram();
+        }
+        this.mask = count - 1;
+    }
+
+    /**
+     * Records a duration in the calling thread's stripe
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long id = Thread.currentThread().getId();
+        stripes[(int) ((id ^ (id >>> 16)) & mask)].record(nanos);
+    }
+
+    /**
+     * Merges every stripe into a new histogram
+     *
+     * @return <code>LatencyHistogram</code>
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram snapshot = new LatencyHistogram();
+        for (LatencyHistogram stripe : stripes) {
+            snapshot.merge(stripe);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,241 @@
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <code>SuiteKeys</code> is a concrete class that holds the key-pairs of a client for
+ * each {@link CipherSuite} it offers: a signing key-pair and an agreement key-pair used to
+ * wrap session keys, which are the same key-pair for RSA suites. The public keys are
+ * carried in a non-critical extension of the client certificate, so they are signed by
+ * the Certificate Authority along with the rest of the certificate. The subject public
+ * key of the certificate is the signing key of the first suite.
+ * <p>
+ * Keys of the other client are read from its certificate with
+ * {@link #fromCertificate(X509Certificate)} and hold no private keys. A certificate without
+ * the extension offers the single RSA suite matching its subject public key.
+ * <p>
+ * Key-pairs can be kept across runs in a password-protected PKCS12 key store with
+ * {@link #save(Path, char[], X509Certificate)} and {@link #load(Path, char[])}.
+ *
+ * @author Insaaf Dhansay
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see CipherSuite
+ */
+public class SuiteKeys {
+
+    /**
+     * Identifier of the certificate extension that lists the suites of a client
+     */
+    static final ASN1ObjectIdentifier EXTENSION = new ASN1ObjectIdentifier(
+            "2.25.231873066170434185466377493851658405397");
+    private final Map<CipherSuite, KeyPair> signing = new LinkedHashMap<>();
+    private final Map<CipherSuite, KeyPair> agreement = new LinkedHashMap<>();
+
+    /**
+     * Sole class constructor
+     */
+    private SuiteKeys() {
+    }
+
+    /**
+     * Generates key-pairs for each of the specified suites
+     *
+     * @param suites suites to offer, in order of preference
+     * @return <code>SuiteKeys</code>
+     */
+    public static SuiteKeys generate(List<CipherSuite> suites) throws NoSuchAlgorithmException {
+        SuiteKeys keys = new SuiteKeys();
+        for (CipherSuite suite : suites) {
+            KeyPair signingKeyPair = suite.generateSigningKeyPair();
+            keys.signing.put(suite, signingKeyPair);
+            keys.agreement.put(suite, suite.generateAgreementKeyPair(signingKeyPair));
+        }
+        return keys;
+    }
+
+    /**
+     * Offers the single RSA suite of an existing key-pair
+     *
+     * @param keyPair RSA key-pair
+     * @return <code>SuiteKeys</code>
+     */
+    public static SuiteKeys of(KeyPair keyPair) throws NoSuchAlgorithmException {
+        SuiteKeys keys = new SuiteKeys();
+        CipherSuite suite = CipherSuite.forSigningKey(keyPair.getPublic());
+        keys.signing.put(suite, keyPair);
+        keys.agreement.put(suite, keyPair);
+        return keys;
+    }
+
+    /**
+     * Reads key-pairs written by {@link #save(Path, char[], X509Certificate)}. The public
+     * keys, and the order of preference of the suites, are read from the certificate
+     * stored with the private keys.
+     *
+     * @param file     PKCS12 key store
+     * @param password password of the key store
+     * @return <code>SuiteKeys</code>
+     * @throws IOException if the file cannot be read or the password is incorrect
+     */
+    public static SuiteKeys load(Path file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            keyStore.load(in, password);
+        }
+        Enumeration<String> aliases = keyStore.aliases();
+        if (!aliases.hasMoreElements()) {
+            throw new KeyStoreException("No keys in " + file);
+        }
+        SuiteKeys offered = fromCertificate((X509Certificate) keyStore.getCertificate(aliases.nextElement()));
+        SuiteKeys keys = new SuiteKeys();
+        for (CipherSuite suite : offered.getSuites()) {
+            PrivateKey signingKey = (PrivateKey) keyStore.getKey(suite.name() + "-signing", password);
+            PrivateKey agreementKey = (PrivateKey) keyStore.getKey(suite.name() + "-agreement", password);
+            if (signingKey == null || agreementKey == null) {
+                throw new KeyStoreException("No keys for " + suite + " in " + file);
+            }
+            keys.signing.put(suite, new KeyPair(offered.getPublicSigningKey(suite), signingKey));
+            keys.agreement.put(suite, new KeyPair(offered.getPublicAgreementKey(suite), agreementKey));
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the private keys to a PKCS12 key store protected by a password, each with the
+     * certificate that carries the public keys. The key store is written to a temporary
+     * file that atomically replaces the file.
+     *
+     * @param file        PKCS12 key store
+     * @param password    password of the key store
+     * @param certificate certificate issued for these keys
+     */
+    public void save(Path file, char[] password, X509Certificate certificate) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        X509Certificate[] chain = {certificate};
+        for (CipherSuite suite : signing.keySet()) {
+            keyStore.setKeyEntry(suite.name() + "-signing", getSigningKey(suite), password, chain);
+            keyStore.setKeyEntry(suite.name() + "-agreement", getAgreementKey(suite), password, chain);
+        }
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            keyStore.store(out, password);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the public keys offered in a certificate
+     *
+     * @param certificate certificate of a client
+     * @return <code>SuiteKeys</code>
+     */
+    public static SuiteKeys fromCertificate(X509Certificate certificate) throws CertificateException {
+        SuiteKeys keys = new SuiteKeys();
+        try {
+            byte[] extension = certificate.getExtensionValue(EXTENSION.getId());
+            if (extension == null) {
+                PublicKey publicKey = certificate.getPublicKey();
+                CipherSuite suite = CipherSuite.forSigningKey(publicKey);
+                keys.signing.put(suite, new KeyPair(publicKey, null));
+                keys.agreement.put(suite, new KeyPair(publicKey, null));
+                return keys;
+            }
+            ASN1Sequence entries = ASN1Sequence.getInstance(ASN1OctetString.getInstance(extension).getOctets());
+            for (int i = 0; i < entries.size(); i++) {
+                ASN1Sequence entry = ASN1Sequence.getInstance(entries.getObjectAt(i));
+                CipherSuite suite = CipherSuite.forId(ASN1Integer.getInstance(entry.getObjectAt(0)).intValueExact());
+                PublicKey signingKey = suite.decodePublicKey(
+                        ASN1OctetString.getInstance(entry.getObjectAt(1)).getOctets(), true);
+                PublicKey agreementKey = suite.decodePublicKey(
+                        ASN1OctetString.getInstance(entry.getObjectAt(2)).getOctets(), false);
+                keys.signing.put(suite, new KeyPair(signingKey, null));
+                keys.agreement.put(suite, new KeyPair(agreementKey, null));
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            throw new CertificateException("Malformed cipher suite extension: " + ex.getMessage(), ex);
+        }
+        return keys;
+    }
+
+    /**
+     * Encodes the public keys as the value of the certificate extension
+     *
+     * @return <code>DERSequence</code>
+     */
+    DERSequence toExtension() {
+        ASN1EncodableVector entries = new ASN1EncodableVector();
+        for (CipherSuite suite : signing.keySet()) {
+            ASN1EncodableVector entry = new ASN1EncodableVector();
+            entry.add(new ASN1Integer(suite.getId()));
+            entry.add(new DEROctetString(signing.get(suite).getPublic().getEncoded()));
+            entry.add(new DEROctetString(agreement.get(suite).getPublic().getEncoded()));
+            entries.add(new DERSequence(entry));
+        }
+        return new DERSequence(entries);
+    }
+
+    /**
+     * Returns the offered suites in order of preference
+     *
+     * @return <code>Set</code>
+     */
+    public Set<CipherSuite> getSuites() {
+        return Collections.unmodifiableSet(signing.keySet());
+    }
+
+    /**
+     * Returns the public key placed in the subject of the certificate
+     *
+     * @return <code>PublicKey</code>
+     */
+    public PublicKey getSubjectPublicKey() {
+        return signing.values().iterator().next().getPublic();
+    }
+
+    public PrivateKey getSigningKey(CipherSuite suite) {
+        return signing.get(suite).getPrivate();
+    }
+
+    public PublicKey getPublicSigningKey(CipherSuite suite) {
+        return signing.get(suite).getPublic();
+    }
+
+    public PrivateKey getAgreementKey(CipherSuite suite) {
+        return agreement.get(suite).getPrivate();
+    }
+
+    public PublicKey getPublicAgreementKey(CipherSuite suite) {
+        return agreement.get(suite).getPublic();
+    }
+}
@@ -0,0 +1,271 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <code>TrustCache</code> is a concrete class that records certificates that
+ * have already been verified against the Certificate Authority, keyed by the
+ * SHA-256 fingerprint of their encoding. Entries expire with the certificate's
+ * <code>notAfter</code> date. A cache created with {@link #persistent(Supplier)} is
+ * persisted to a small file so that a repeat peer is trusted without a signature
+ * check across restarts. The file is bound to the fingerprint of the CA public key
+ * and is discarded if the CA key changes, whether between runs or while the cache is
+ * in use. It is authenticated with an HMAC keyed from the CA private key, so adding a
+ * fingerprint to it takes the same secret as issuing a certificate, and a file that
+ * fails the check is ignored. A cache given only the CA public key is kept in memory.
+ *
+ * @author Kialan Pillay
+ * @author Aidan Bailey
+ * @author Insaaf Dhansay
+ * @author Emily Morris
+ * @version %I%, %G%
+ * @see Client
+ */
+public class TrustCache {
+
+    private static final Logger LOGGER = Logger.getLogger(TrustCache.class.getName());
+    private static final String DEFAULT_FILENAME = "trustcache.dat";
+    private static final int MAGIC = 0x54525354;
+    private static final int VERSION = 2;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    private static final byte[] MAC_CONTEXT = "CryptoSystem trust cache".getBytes(StandardCharsets.UTF_8);
+    private final Map<String, Long> entries = new ConcurrentHashMap<>();
+    private final Path path;
+    private final Supplier<PublicKey> CAPublicKey;
+    private final Supplier<KeyPair> CAKeyPair;
+    private PublicKey boundKey;
+    private String CAFingerprint;
+
+    /**
+     * Class constructor specifying the CA public key. The cache is kept in memory.
+     */
+    public TrustCache(PublicKey CAPublicKey) throws NoSuchAlgorithmException {
+        this(() -> CAPublicKey);
+    }
+
+    /**
+     * Class constructor specifying a source of the current CA public key, such as
+     * {@link SecretsManager#getPublicKey()}. The cache is kept in memory.
+     */
+    public TrustCache(Supplier<PublicKey> CAPublicKey) throws NoSuchAlgorithmException {
+        this(null, CAPublicKey, null);
+    }
+
+    /**
+     * Class constructor specifying the cache file and a source of the current CA key pair,
+     * such as {@link SecretsManager#getKeyPair()}. Loads any persisted entries issued under
+     * the same CA key whose HMAC is valid.
+     */
+    public TrustCache(Path path, Supplier<KeyPair> CAKeyPair) throws NoSuchAlgorithmException {
+        this(path, () -> CAKeyPair.get().getPublic(), CAKeyPair);
+    }
+
+    private TrustCache(Path path, Supplier<PublicKey> CAPublicKey, Supplier<KeyPair> CAKeyPair)
+            throws NoSuchAlgorithmException {
+        this.path = path;
+        this.CAPublicKey = CAPublicKey;
+        this.CAKeyPair = CAKeyPair;
+        this.boundKey = CAPublicKey.get();
+        this.CAFingerprint = CertificateCache.fingerprint(boundKey.getEncoded());
+        if (path != null) {
+            load();
+        }
+    }
+
+    /**
+     * Creates a cache persisted to the default file in the working directory
+     *
+     * @param CAKeyPair source of the current CA key pair
+     * @return <code>TrustCache</code>
+     */
+    public static TrustCache persistent(Supplier<KeyPair> CAKeyPair) throws NoSuchAlgorithmException {
+        return new TrustCache(Paths.get(DEFAULT_FILENAME), CAKeyPair);
+    }
+
+    /**
+     * Returns whether a certificate fingerprint has been verified and
+     * has not yet expired. Expired entries are evicted.
+     *
+     * @param fingerprint hex-encoded SHA-256 certificate fingerprint
+     * @return <code>boolean</code>
+     */
+    public boolean isTrusted(String fingerprint) {
+        checkAuthority();
+        Long notAfter = entries.get(fingerprint);
+        if (notAfter == null) {
+            return false;
+        }
+        if (notAfter < System.currentTimeMillis()) {
+            entries.remove(fingerprint, notAfter);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a verified certificate and persists the cache
+     *
+     * @param fingerprint hex-encoded SHA-256 certificate fingerprint
+     * @param notAfter    expiry of the certificate in epoch milliseconds
+     */
+    public void trust(String fingerprint, long notAfter) {
+        if (notAfter < System.currentTimeMillis()) {
+            return;
+        }
+        checkAuthority();
+        entries.put(fingerprint, notAfter);
+        if (path != null) {
+            save();
+        }
+    }
+
+    /**
+     * Discards every entry if the CA key has changed since the cache was bound to it,
+     * since those certificates were verified against the previous key
+     */
+    private synchronized void checkAuthority() {
+        PublicKey current = CAPublicKey.get();
+        if (current == boundKey) {
+            return;
+        }
+        try {
+            String fingerprint = CertificateCache.fingerprint(current.getEncoded());
+            if (!fingerprint.equals(CAFingerprint)) {
+                LOGGER.info("CA key has changed, trust cache invalidated");
+                entries.clear();
+                CAFingerprint = fingerprint;
+            }
+            boundKey = current;
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Computes the HMAC of the contents of the cache file with a key derived from the
+     * current CA private key
+     *
+     * @param contents bytes of the file before the HMAC
+     * @return <code>byte[]</code>
+     */
+    private byte[] mac(byte[] contents) throws GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(MAC_CONTEXT);
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(digest.digest(CAKeyPair.get().getPrivate().getEncoded()), MAC_ALGORITHM));
+        return mac.doFinal(contents);
+    }
+
+    /**
+     * Reads persisted entries from disk. The file is ignored if it is
+     * missing, malformed, fails the HMAC check or is bound to a different CA key.
+     */
+    private void load() {
+        if (Files.notExists(path)) {
+            return;
+        }
+        try {
+            byte[] file = Files.readAllBytes(path);
+            if (file.length < MAC_LENGTH) {
+                LOGGER.warning("Ignoring unrecognised trust cache " + path);
+                return;
+            }
+            byte[] contents = Arrays.copyOf(file, file.length - MAC_LENGTH);
+            if (!MessageDigest.isEqual(mac(contents), Arrays.copyOfRange(file, contents.length, file.length))) {
+                LOGGER.warning("Ignoring trust cache " + path + " that fails its integrity check");
+                return;
+            }
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                LOGGER.warning("Ignoring unrecognised trust cache " + path);
+                return;
+            }
+            if (!CAFingerprint.equals(input.readUTF())) {
+                LOGGER.info("CA key has changed, trust cache invalidated");
+                return;
+            }
+            long now = System.currentTimeMillis();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String fingerprint = input.readUTF();
+                long notAfter = input.readLong();
+                if (notAfter >= now) {
+                    entries.put(fingerprint, notAfter);
+                }
+            }
+        } catch (IOException | GeneralSecurityException | IllegalStateException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes the cache and its HMAC to a uniquely named temporary file and atomically
+     * replaces the previous file
+     */
+    private synchronized void save() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(notAfter -> notAfter < now);
+        Map<String, Long> snapshot = Map.copyOf(entries);
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] mac;
+        try (DataOutputStream output = new DataOutputStream(contents)) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(CAFingerprint);
+            output.writeInt(snapshot.size());
+            for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue());
+            }
+            output.flush();
+            mac = mac(contents.toByteArray());
+        } catch (IOException | GeneralSecurityException | IllegalStateException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+            return;
+        }
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            Files.write(temp, contents.toByteArray());
+            Files.write(temp, mac, StandardOpenOption.APPEND);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, ex.getMessage());
+            try {
+                if (temp != null) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, e.getMessage());
+            }
+        }
+    }
+}